@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in of GoodData authentication for load tests.
+ * <p>
+ * Serves <code>/gdc/account/login</code> (any credentials), <code>/gdc/account/token</code> and any other path
+ * as a protected resource over HTTPS with self-signed certificate, as the client sends SST cookie only over secure
+ * connection. Tokens carry their expiry, so the server keeps no per-token state. TT/SST lifetime, latency and
+ * error rate can be changed while running.
+ */
+public class AuthSimulator {
+
+    private static final String LOGIN_URL = "/gdc/account/login";
+    private static final String TOKEN_URL = "/gdc/account/token";
+    private static final String STORE_PASSWORD = "simulator";
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong tokenRequests = new AtomicLong();
+    private final AtomicLong resourceRequests = new AtomicLong();
+    private final AtomicLong ttChallenges = new AtomicLong();
+    private final AtomicLong sstChallenges = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private volatile long ttLifetimeMillis = TimeUnit.MINUTES.toMillis(10);
+    private volatile long sstLifetimeMillis = TimeUnit.HOURS.toMillis(2);
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+
+    // tokens issued before the epoch change are rejected
+    private volatile long epoch;
+
+    private HttpsServer server;
+    private ExecutorService executor;
+
+    public void setTtLifetime(final long lifetime, final TimeUnit unit) {
+        ttLifetimeMillis = unit.toMillis(lifetime);
+    }
+
+    public void setSstLifetime(final long lifetime, final TimeUnit unit) {
+        sstLifetimeMillis = unit.toMillis(lifetime);
+    }
+
+    /**
+     * @param latency delay added to every response
+     * @param unit time unit
+     */
+    public void setLatency(final long latency, final TimeUnit unit) {
+        latencyMillis = unit.toMillis(latency);
+    }
+
+    /**
+     * @param errorRate probability in range [0, 1] a request fails with 503 Service Unavailable
+     */
+    public void setErrorRate(final double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Revoke all issued tokens, e.g. to simulate server restart.
+     */
+    public void revokeTokens() {
+        epoch++;
+    }
+
+    /**
+     * Start the server.
+     * @param port port, 0 for any free port
+     * @throws IOException unable to start
+     */
+    public synchronized void start(final int port) throws IOException {
+        if (System.getProperty(NODELAY_PROPERTY) == null) {
+            // read once by the server implementation, small responses would wait for delayed ACK otherwise
+            System.setProperty(NODELAY_PROPERTY, "true");
+        }
+        server = HttpsServer.create(new InetSocketAddress("localhost", port), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(createSslContext()));
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "auth-simulator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    AuthSimulator.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getLogins() {
+        return logins.get();
+    }
+
+    public long getTokenRequests() {
+        return tokenRequests.get();
+    }
+
+    public long getResourceRequests() {
+        return resourceRequests.get();
+    }
+
+    public long getTtChallenges() {
+        return ttChallenges.get();
+    }
+
+    public long getSstChallenges() {
+        return sstChallenges.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        final String path = exchange.getRequestURI().getPath();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            injectedErrors.incrementAndGet();
+            respond(exchange, 503, "{\"error\":\"injected\"}");
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (LOGIN_URL.equals(path) && "POST".equals(exchange.getRequestMethod())) {
+            logins.incrementAndGet();
+            exchange.getResponseHeaders().add("Set-Cookie",
+                    "GDCAuthSST=" + token(now + sstLifetimeMillis) + "; path=/gdc/account; secure; HttpOnly");
+            respond(exchange, 200, "{\"userLogin\":{\"profile\":\"/gdc/account/profile/simulated\"}}");
+        } else if (TOKEN_URL.equals(path)) {
+            tokenRequests.incrementAndGet();
+            if (!valid(cookie(exchange, "GDCAuthSST"), now)) {
+                sstChallenges.incrementAndGet();
+                challenge(exchange, "GDCAuthSST");
+                return;
+            }
+            exchange.getResponseHeaders().add("Set-Cookie",
+                    "GDCAuthTT=" + token(now + ttLifetimeMillis) + "; path=/gdc; secure; HttpOnly");
+            respond(exchange, 200, "{\"userToken\":{}}");
+        } else {
+            resourceRequests.incrementAndGet();
+            if (!valid(cookie(exchange, "GDCAuthTT"), now)) {
+                ttChallenges.incrementAndGet();
+                challenge(exchange, "GDCAuthTT");
+                return;
+            }
+            respond(exchange, 200, "{\"about\":{\"links\":[]}}");
+        }
+    }
+
+    private String token(final long expiry) {
+        return epoch + "." + expiry + "." + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    private boolean valid(final String token, final long now) {
+        if (token == null) {
+            return false;
+        }
+        final String[] parts = token.split("\\.");
+        try {
+            return parts.length == 3 && Long.parseLong(parts[0]) == epoch && Long.parseLong(parts[1]) > now;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String cookie(final HttpExchange exchange, final String name) {
+        final List<String> headers = exchange.getRequestHeaders().get("Cookie");
+        if (headers != null) {
+            for (final String header : headers) {
+                for (final String pair : header.split(";")) {
+                    final String trimmed = pair.trim();
+                    if (trimmed.startsWith(name + "=")) {
+                        return trimmed.substring(name.length() + 1);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void challenge(final HttpExchange exchange, final String cookie) throws IOException {
+        exchange.getResponseHeaders().add("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=" + cookie);
+        respond(exchange, 401, "<html><head><title>401 Authorization Required</title></head><body></body></html>");
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static void drain(final InputStream input) throws IOException {
+        final byte[] buffer = new byte[4096];
+        while (input.read(buffer) >= 0) {
+            // discard
+        }
+    }
+
+    /**
+     * Create SSL context with self-signed certificate generated by keytool.
+     */
+    private static SSLContext createSslContext() throws IOException {
+        final File keyStoreFile = File.createTempFile("auth-simulator", ".p12");
+        if (!keyStoreFile.delete()) {
+            throw new IOException("Unable to prepare key store " + keyStoreFile);
+        }
+        try {
+            final String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "simulator", "-keyalg", "RSA",
+                    "-keysize", "2048", "-dname", "CN=localhost", "-validity", "365", "-storetype", "PKCS12",
+                    "-keystore", keyStoreFile.getPath(), "-storepass", STORE_PASSWORD, "-keypass", STORE_PASSWORD)
+                    .redirectErrorStream(true).start();
+            drain(process.getInputStream());
+            if (process.waitFor() != 0) {
+                throw new IOException("Unable to generate certificate using " + keytool);
+            }
+            final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream input = new FileInputStream(keyStoreFile)) {
+                keyStore.load(input, STORE_PASSWORD.toCharArray());
+            }
+            final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, STORE_PASSWORD.toCharArray());
+            final SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to create SSL context: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating certificate", e);
+        } finally {
+            keyStoreFile.delete();
+        }
+    }
+
+    /**
+     * Run the simulator standalone.
+     * Properties: <code>port</code> (8443), <code>ttLifetime</code>, <code>sstLifetime</code>, <code>latency</code>
+     * in milliseconds, <code>errorRate</code>.
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final AuthSimulator simulator = configure(new AuthSimulator());
+        simulator.start(Integer.getInteger("port", 8443));
+        System.out.println("GoodData auth simulator listening on https://localhost:" + simulator.getPort());
+        Thread.currentThread().join();
+    }
+
+    static AuthSimulator configure(final AuthSimulator simulator) {
+        simulator.setTtLifetime(Long.getLong("ttLifetime", simulator.ttLifetimeMillis), TimeUnit.MILLISECONDS);
+        simulator.setSstLifetime(Long.getLong("sstLifetime", simulator.sstLifetimeMillis), TimeUnit.MILLISECONDS);
+        simulator.setLatency(Long.getLong("latency", 0), TimeUnit.MILLISECONDS);
+        simulator.setErrorRate(Double.parseDouble(System.getProperty("errorRate", "0")));
+        return simulator;
+    }
+}
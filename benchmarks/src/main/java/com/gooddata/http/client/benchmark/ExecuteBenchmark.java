@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.benchmark;
+
+import com.gooddata.http.client.GoodDataHttpClient;
+import com.gooddata.http.client.SSTRetrievalStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of {@link GoodDataHttpClient#execute} shared by all benchmark threads.
+ * <ul>
+ *     <li><code>NONE</code> - fast path, tokens never expire</li>
+ *     <li><code>TT</code> - TT challenge storm, TT expires every <code>expireEvery</code> requests</li>
+ *     <li><code>SST</code> - SST challenge storm, SST expires every <code>expireEvery</code> requests</li>
+ * </ul>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecuteBenchmark {
+
+    private static final HttpHost HOST = new HttpHost("server.com", 443, "https");
+
+    private static final int MAX_REPLAYS = 100;
+
+    @Param({"NONE", "TT", "SST"})
+    public String challenge;
+
+    @Param({"10000"})
+    public long expireEvery;
+
+    private GoodDataHttpClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final StubHttpClient stub = new StubHttpClient(StubHttpClient.Challenge.valueOf(challenge), expireEvery);
+        client = new GoodDataHttpClient(stub, new SSTRetrievalStrategy() {
+            @Override
+            public String obtainSst() {
+                return stub.currentSst();
+            }
+        });
+        // threads descheduled for a while can miss several expirations, don't fail them
+        client.setMaxReplays(MAX_REPLAYS);
+    }
+
+    @Benchmark
+    public int execute() throws IOException {
+        final HttpResponse response = client.execute(HOST, new HttpGet("/gdc/md/project/obj/1"));
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
+}
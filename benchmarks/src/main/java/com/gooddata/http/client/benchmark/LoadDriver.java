@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.benchmark;
+
+import com.gooddata.http.client.GoodDataAuthMetrics;
+import com.gooddata.http.client.GoodDataChallengeType;
+import com.gooddata.http.client.GoodDataHttpClient;
+import com.gooddata.http.client.LatencyHistogram;
+import com.gooddata.http.client.LoginSSTRetrievalStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of {@link GoodDataHttpClient} against embedded {@link AuthSimulator}.
+ * <p>
+ * Properties: <code>threads</code> (16), <code>duration</code> in seconds (30) and simulator settings,
+ * see {@link AuthSimulator#main(String[])}. Reports latency percentiles, throughput and number of authentication
+ * round-trips (login and TT requests) per 1000 requests.
+ */
+public class LoadDriver {
+
+    public static void main(final String[] args) throws Exception {
+        final int threads = Integer.getInteger("threads", 16);
+        final long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("duration", 30));
+
+        final AuthSimulator simulator = AuthSimulator.configure(new AuthSimulator());
+        simulator.start(0);
+        try {
+            final HttpHost host = new HttpHost("localhost", simulator.getPort(), "https");
+            final PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager(createSchemeRegistry());
+            connectionManager.setMaxTotal(threads + 1);
+            connectionManager.setDefaultMaxPerRoute(threads + 1);
+            final GoodDataAuthMetrics metrics = new GoodDataAuthMetrics();
+            final LoginSSTRetrievalStrategy sstStrategy = new LoginSSTRetrievalStrategy(
+                    new DefaultHttpClient(connectionManager), host, "user@domain.com", "secret");
+            sstStrategy.setAuthListener(metrics);
+            final GoodDataHttpClient client = new GoodDataHttpClient(new DefaultHttpClient(connectionManager), sstStrategy);
+            client.setAuthListener(metrics);
+
+            final LatencyHistogram latency = new LatencyHistogram();
+            final AtomicLong failures = new AtomicLong();
+            final long start = System.nanoTime();
+            final long end = start + durationNanos;
+            final List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (System.nanoTime() < end) {
+                            final long requestStart = System.nanoTime();
+                            try {
+                                final HttpResponse response = client.execute(host, new HttpGet("/gdc/md/project/obj/1"));
+                                EntityUtils.consume(response.getEntity());
+                                if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                                    failures.incrementAndGet();
+                                }
+                            } catch (IOException | RuntimeException e) {
+                                failures.incrementAndGet();
+                            }
+                            latency.record(System.nanoTime() - requestStart);
+                        }
+                    }
+                }, "load-" + i);
+                workers.add(worker);
+                worker.start();
+            }
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            connectionManager.shutdown();
+
+            final long requests = latency.getCount();
+            final long authRoundTrips = simulator.getLogins() + simulator.getTokenRequests();
+            System.out.printf("requests            %d (%d failed)%n", requests, failures.get());
+            System.out.printf("throughput          %.1f req/s%n", requests / seconds);
+            System.out.printf("latency p50         %.3f ms%n", latency.getPercentileNanos(50) / 1e6);
+            System.out.printf("latency p99         %.3f ms%n", latency.getPercentileNanos(99) / 1e6);
+            System.out.printf("latency p999        %.3f ms%n", latency.getPercentileNanos(99.9) / 1e6);
+            System.out.printf("latency max         %.3f ms%n", latency.getMaxNanos() / 1e6);
+            System.out.printf("auth per 1000 req   %.2f (%d logins, %d TT requests)%n",
+                    requests == 0 ? 0 : authRoundTrips * 1000.0 / requests, simulator.getLogins(), simulator.getTokenRequests());
+            System.out.printf("challenges          %d TT, %d SST, %d replays%n",
+                    metrics.getChallengeCount(GoodDataChallengeType.TT), metrics.getChallengeCount(GoodDataChallengeType.SST),
+                    metrics.getReplayCount());
+            System.out.printf("injected errors     %d%n", simulator.getInjectedErrors());
+        } finally {
+            simulator.stop();
+        }
+    }
+
+    private static SchemeRegistry createSchemeRegistry() throws GeneralSecurityException {
+        final SchemeRegistry registry = SchemeRegistryFactory.createDefault();
+        registry.register(new Scheme("https", 443,
+                new SSLSocketFactory(new TrustSelfSignedStrategy(), SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER)));
+        return registry;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.benchmark;
+
+import com.gooddata.http.client.LoginSSTRetrievalStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side cost of {@link LoginSSTRetrievalStrategy#obtainSst()}, i.e. request serialization and SST cookie parsing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoginBenchmark {
+
+    private static final HttpHost HOST = new HttpHost("server.com", 443, "https");
+
+    private LoginSSTRetrievalStrategy strategy;
+
+    @Setup
+    public void setUp() {
+        strategy = new LoginSSTRetrievalStrategy(new StubHttpClient(StubHttpClient.Challenge.NONE, 0) {
+            @Override
+            public HttpResponse execute(final HttpHost target, final HttpRequest request) throws IOException {
+                final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+                response.addHeader("Set-Cookie", "GDCAuthSST=sst; path=/gdc/account; secure; HttpOnly");
+                response.setEntity(new ByteArrayEntity("{\"userLogin\":{}}".getBytes()));
+                return response;
+            }
+
+            @Override
+            public HttpResponse execute(final HttpHost target, final HttpRequest request, final HttpContext context)
+                    throws IOException {
+                return execute(target, request);
+            }
+        }, HOST, "user@domain.com", "secret");
+    }
+
+    @Benchmark
+    public String obtainSst() {
+        return strategy.obtainSst();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.benchmark;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory HTTP client emulating GoodData authentication without any I/O.
+ * <p>
+ * Tokens are versioned: resources accept only the current TT, token resource issues TT only for the current SST.
+ * Every <code>expireEvery</code>-th resource request expires the TT (or SST), so all threads in flight are
+ * challenged at once.
+ */
+class StubHttpClient implements HttpClient {
+
+    static final String TOKEN_URL = "/gdc/account/token";
+
+    private static final byte[] BODY = "{\"about\":{}}".getBytes();
+
+    private final HttpParams params = new BasicHttpParams();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong ttVersion = new AtomicLong();
+
+    private final AtomicLong sstVersion = new AtomicLong();
+
+    private final AtomicLong tokenRequests = new AtomicLong();
+
+    private final Challenge challenge;
+
+    private final long expireEvery;
+
+    /**
+     * Expired token.
+     */
+    enum Challenge {
+        NONE, TT, SST
+    }
+
+    StubHttpClient(final Challenge challenge, final long expireEvery) {
+        this.challenge = challenge;
+        this.expireEvery = expireEvery;
+    }
+
+    /**
+     * SST valid at the moment, used by the benchmark SST strategy.
+     */
+    String currentSst() {
+        return Long.toString(sstVersion.get());
+    }
+
+    long getTokenRequests() {
+        return tokenRequests.get();
+    }
+
+    @Override
+    public HttpResponse execute(final HttpHost target, final HttpRequest request, final HttpContext context) throws IOException {
+        final CookieStore cookieStore = (CookieStore) context.getAttribute(ClientContext.COOKIE_STORE);
+        if (TOKEN_URL.equals(request.getRequestLine().getUri())) {
+            tokenRequests.incrementAndGet();
+            if (!Long.toString(sstVersion.get()).equals(cookie(cookieStore, "GDCAuthSST"))) {
+                return response(HttpStatus.SC_UNAUTHORIZED, "cookie=GDCAuthSST");
+            }
+            final BasicClientCookie tt = new BasicClientCookie("GDCAuthTT", Long.toString(ttVersion.get()));
+            tt.setDomain(target.getHostName());
+            tt.setPath("/gdc");
+            cookieStore.addCookie(tt);
+            return response(HttpStatus.SC_OK, null);
+        }
+
+        if (expireEvery > 0 && requests.incrementAndGet() % expireEvery == 0) {
+            switch (challenge) {
+                case SST:
+                    sstVersion.incrementAndGet();
+                    ttVersion.incrementAndGet();
+                    break;
+                case TT:
+                    ttVersion.incrementAndGet();
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!Long.toString(ttVersion.get()).equals(cookie(cookieStore, "GDCAuthTT"))) {
+            return response(HttpStatus.SC_UNAUTHORIZED, "cookie=GDCAuthTT");
+        }
+        return response(HttpStatus.SC_OK, null);
+    }
+
+    private static String cookie(final CookieStore cookieStore, final String name) {
+        for (final Cookie cookie : cookieStore.getCookies()) {
+            if (name.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static HttpResponse response(final int status, final String challenge) {
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        if (challenge != null) {
+            response.setHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" " + challenge);
+        }
+        response.setEntity(new ByteArrayEntity(BODY));
+        return response;
+    }
+
+    @Override
+    public HttpParams getParams() {
+        return params;
+    }
+
+    @Override
+    public ClientConnectionManager getConnectionManager() {
+        return null;
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request, final HttpContext context) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpResponse execute(final HttpHost target, final HttpRequest request) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T execute(final HttpUriRequest request, final ResponseHandler<? extends T> responseHandler) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T execute(final HttpUriRequest request, final ResponseHandler<? extends T> responseHandler,
+                         final HttpContext context) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T execute(final HttpHost target, final HttpRequest request, final ResponseHandler<? extends T> responseHandler)
+            throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T execute(final HttpHost target, final HttpRequest request, final ResponseHandler<? extends T> responseHandler,
+                         final HttpContext context) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.hc5;
+
+import com.gooddata.http.client.CookieUtils;
+import com.gooddata.http.client.GoodDataChallengeType;
+import com.gooddata.http.client.GoodDataHttpClient;
+import org.apache.hc.client5.http.cookie.CookieStore;
+import org.apache.hc.client5.http.impl.cookie.BasicClientCookie;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+
+/**
+ * GoodData authentication helpers shared by the HttpClient 5 handlers.
+ */
+final class AuthUtils {
+
+    static final String TOKEN_URL = "/gdc/account/token";
+
+    private AuthUtils() { }
+
+    /**
+     * Identify GoodData authentication challenge of the response.
+     * @param response HTTP response
+     * @return challenge type, {@link GoodDataChallengeType#UNKNOWN} when the response is not GoodData challenge
+     */
+    static GoodDataChallengeType identify(final HttpResponse response) {
+        if (response.getCode() == HttpStatus.SC_UNAUTHORIZED) {
+            for (final Header header : response.getHeaders(HttpHeaders.WWW_AUTHENTICATE)) {
+                final String challenge = header.getValue();
+                if (challenge.contains(GoodDataHttpClient.COOKIE_GDC_AUTH_SST)) {
+                    return GoodDataChallengeType.SST;
+                } else if (challenge.contains(GoodDataHttpClient.COOKIE_GDC_AUTH_TT)) {
+                    return GoodDataChallengeType.TT;
+                }
+            }
+        }
+        return GoodDataChallengeType.UNKNOWN;
+    }
+
+    /**
+     * Add (or replace) super-secure cookie in cookie store.
+     * @param sst super-secure token
+     * @param cookieStore cookie store
+     * @param domain domain
+     */
+    static void replaceSst(final String sst, final CookieStore cookieStore, final String domain) {
+        final BasicClientCookie cookie = new BasicClientCookie(CookieUtils.SST_COOKIE_NAME, sst);
+        cookie.setSecure(true);
+        cookie.setPath(CookieUtils.SST_COOKIE_PATH);
+        cookie.setDomain(domain);
+        cookieStore.addCookie(cookie);
+    }
+}
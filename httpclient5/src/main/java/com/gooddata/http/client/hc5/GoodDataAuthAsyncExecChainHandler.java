@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.hc5;
+
+import com.gooddata.http.client.GoodDataAuthException;
+import com.gooddata.http.client.GoodDataChallengeType;
+import com.gooddata.http.client.SSTRetrievalStrategy;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hc.client5.http.ClientProtocolException;
+import org.apache.hc.client5.http.async.AsyncExecCallback;
+import org.apache.hc.client5.http.async.AsyncExecChain;
+import org.apache.hc.client5.http.async.AsyncExecChainHandler;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.nio.AsyncDataConsumer;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>GoodData authentication for Apache HttpClient 5 async execution chain.</p>
+ *
+ * <p>Requests rejected by TT/SST challenge are queued until a single authentication completes and replayed then,
+ * requests sent meanwhile wait in the queue too. The TT request is sent through the rest of the chain with
+ * the execution runtime of the challenged request. I/O dispatcher threads are never blocked, SST is obtained using
+ * the given executor as {@link SSTRetrievalStrategy} may block. Challenged request with non-repeatable entity can't be
+ * replayed, it fails with {@link ClientProtocolException}. Insert the handler before the protocol element:</p>
+ * <pre>
+ * CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+ *         .addExecInterceptorBefore(ChainElement.PROTOCOL.name(), GoodDataAuthAsyncExecChainHandler.NAME,
+ *                 new GoodDataAuthAsyncExecChainHandler(sstStrategy))
+ *         .build();
+ * </pre>
+ */
+public class GoodDataAuthAsyncExecChainHandler implements AsyncExecChainHandler {
+
+    public static final String NAME = GoodDataAuthExecChainHandler.NAME;
+
+    private static final int DEFAULT_MAX_REPLAYS = 2;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final SSTRetrievalStrategy sstStrategy;
+
+    private final Executor sstExecutor;
+
+    //guards the authentication state below
+    private final Object authMonitor = new Object();
+
+    private long generation;
+
+    private boolean authenticating;
+
+    private GoodDataAuthException failure;
+
+    //exchanges waiting for the running authentication
+    private List<Exchange> waiting = new ArrayList<>();
+
+    private volatile int maxReplays = DEFAULT_MAX_REPLAYS;
+
+    /**
+     * Construct object.
+     * @param sstStrategy super-secure token (SST) obtaining strategy
+     * @param sstExecutor executor used to obtain SST
+     */
+    public GoodDataAuthAsyncExecChainHandler(final SSTRetrievalStrategy sstStrategy, final Executor sstExecutor) {
+        notNull(sstStrategy, "SST strategy cannot be null");
+        notNull(sstExecutor, "SST executor cannot be null");
+        this.sstStrategy = sstStrategy;
+        this.sstExecutor = sstExecutor;
+    }
+
+    /**
+     * Construct object. SST is obtained in daemon threads created on demand.
+     * @param sstStrategy super-secure token (SST) obtaining strategy
+     */
+    public GoodDataAuthAsyncExecChainHandler(final SSTRetrievalStrategy sstStrategy) {
+        this(sstStrategy, Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "gooddata-sst");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Set maximum number of times a request is replayed after it has been rejected by GoodData authentication challenge.
+     * When the request is rejected after the last replay, it fails with {@link GoodDataAuthException}. Default is 2.
+     * @param maxReplays maximum number of replays
+     */
+    public void setMaxReplays(final int maxReplays) {
+        isTrue(maxReplays >= 0, "Max replays cannot be negative");
+        this.maxReplays = maxReplays;
+    }
+
+    @Override
+    public void execute(final HttpRequest request, final AsyncEntityProducer entityProducer, final AsyncExecChain.Scope scope,
+                        final AsyncExecChain chain, final AsyncExecCallback callback) {
+        new Exchange(request, entityProducer, scope, chain, callback).send();
+    }
+
+    /**
+     * Handle challenged exchange. Starts the authentication unless it is already running or has been performed
+     * since the exchange was sent.
+     */
+    private void challenged(final Exchange exchange, final GoodDataChallengeType challenge) {
+        final boolean authenticate;
+        final GoodDataAuthException lastFailure;
+        synchronized (authMonitor) {
+            if (exchange.generation != generation) {
+                // authenticated since the exchange was sent
+                authenticate = false;
+                lastFailure = failure;
+            } else if (authenticating) {
+                waiting.add(exchange);
+                return;
+            } else {
+                waiting.add(exchange);
+                authenticating = true;
+                authenticate = true;
+                lastFailure = null;
+            }
+        }
+        if (!authenticate) {
+            exchange.resume(lastFailure);
+        } else if (challenge == GoodDataChallengeType.TT) {
+            refreshTt(exchange, true);
+        } else {
+            obtainSst(exchange);
+        }
+    }
+
+    private void obtainSst(final Exchange exchange) {
+        sstExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final String sst = sstStrategy.obtainSst();
+                    AuthUtils.replaceSst(sst, exchange.scope.clientContext.getCookieStore(),
+                            exchange.scope.route.getTargetHost().getHostName());
+                } catch (GoodDataAuthException e) {
+                    authenticated(e);
+                    return;
+                } catch (RuntimeException e) {
+                    authenticated(new GoodDataAuthException("Unable to obtain SST: " + e.getMessage(), e));
+                    return;
+                }
+                refreshTt(exchange, false);
+            }
+        });
+    }
+
+    /**
+     * Refresh temporary token through the rest of the chain.
+     * @param exchange challenged exchange providing the scope and chain
+     * @param obtainSstOnFailure obtain SST when the TT refresh is rejected (SST expired)
+     */
+    private void refreshTt(final Exchange exchange, final boolean obtainSstOnFailure) {
+        log.debug("Obtaining TT");
+        final AsyncExecChain.Scope scope = exchange.scope;
+        final HttpRequest getTt = new BasicHttpRequest(Method.GET, scope.route.getTargetHost(), AuthUtils.TOKEN_URL);
+        final AsyncExecChain.Scope ttScope = new AsyncExecChain.Scope(scope.exchangeId, scope.route, getTt,
+                scope.cancellableDependency, scope.clientContext, scope.execRuntime, scope.scheduler, scope.execCount);
+        final AsyncExecCallback ttCallback = new AsyncExecCallback() {
+
+            private int status;
+
+            @Override
+            public AsyncDataConsumer handleResponse(final HttpResponse response, final EntityDetails entityDetails) {
+                status = response.getCode();
+                // discard the body
+                return null;
+            }
+
+            @Override
+            public void handleInformationResponse(final HttpResponse response) {
+            }
+
+            @Override
+            public void completed() {
+                switch (status) {
+                    case HttpStatus.SC_OK:
+                        authenticated(null);
+                        break;
+                    case HttpStatus.SC_UNAUTHORIZED:
+                        if (obtainSstOnFailure) {
+                            obtainSst(exchange);
+                        } else {
+                            authenticated(new GoodDataAuthException("Unable to obtain TT after successfully obtained SST"));
+                        }
+                        break;
+                    default:
+                        authenticated(new GoodDataAuthException("Unable to obtain TT, HTTP status: " + status));
+                }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                authenticated(new GoodDataAuthException("Error during temporary token refresh: " + e.getMessage(), e));
+            }
+        };
+        try {
+            exchange.chain.proceed(getTt, null, ttScope, ttCallback);
+        } catch (HttpException | IOException e) {
+            ttCallback.failed(e);
+        }
+    }
+
+    /**
+     * Finish the authentication and resume all waiting exchanges.
+     * @param failure authentication failure or <code>null</code> when authentication succeeded
+     */
+    private void authenticated(final GoodDataAuthException failure) {
+        final List<Exchange> resumed;
+        synchronized (authMonitor) {
+            generation++;
+            this.failure = failure;
+            authenticating = false;
+            resumed = waiting;
+            waiting = new ArrayList<>();
+        }
+        for (final Exchange exchange : resumed) {
+            exchange.resume(failure);
+        }
+    }
+
+    /**
+     * Single request execution including its replays.
+     */
+    private class Exchange implements AsyncExecCallback {
+
+        private final HttpRequest request;
+
+        private final AsyncEntityProducer entityProducer;
+
+        private final AsyncExecChain.Scope scope;
+
+        private final AsyncExecChain chain;
+
+        private final AsyncExecCallback callback;
+
+        private int replays;
+
+        private GoodDataChallengeType challenge;
+
+        private long generation;
+
+        private Exchange(final HttpRequest request, final AsyncEntityProducer entityProducer,
+                         final AsyncExecChain.Scope scope, final AsyncExecChain chain, final AsyncExecCallback callback) {
+            this.request = request;
+            this.entityProducer = entityProducer;
+            this.scope = scope;
+            this.chain = chain;
+            this.callback = callback;
+        }
+
+        private void send() {
+            synchronized (authMonitor) {
+                if (authenticating) {
+                    waiting.add(this);
+                    return;
+                }
+                generation = GoodDataAuthAsyncExecChainHandler.this.generation;
+            }
+            challenge = null;
+            try {
+                chain.proceed(request, entityProducer, scope, this);
+            } catch (HttpException | IOException e) {
+                callback.failed(e);
+            }
+        }
+
+        private void resume(final GoodDataAuthException failure) {
+            if (challenge != null && failure != null) {
+                callback.failed(failure);
+            } else {
+                send();
+            }
+        }
+
+        @Override
+        public AsyncDataConsumer handleResponse(final HttpResponse response, final EntityDetails entityDetails)
+                throws HttpException, IOException {
+            final GoodDataChallengeType identified = AuthUtils.identify(response);
+            if (identified == GoodDataChallengeType.UNKNOWN) {
+                return callback.handleResponse(response, entityDetails);
+            }
+            challenge = identified;
+            // discard the body of the challenge
+            return null;
+        }
+
+        @Override
+        public void handleInformationResponse(final HttpResponse response) throws HttpException, IOException {
+            callback.handleInformationResponse(response);
+        }
+
+        @Override
+        public void completed() {
+            if (challenge == null) {
+                callback.completed();
+                return;
+            }
+            if (replays >= maxReplays) {
+                callback.failed(new GoodDataAuthException("Request rejected by " + challenge + " challenge after "
+                        + replays + " replays"));
+                return;
+            }
+            if (entityProducer != null) {
+                if (!entityProducer.isRepeatable()) {
+                    callback.failed(new ClientProtocolException("Cannot replay request with non-repeatable entity after "
+                            + challenge + " challenge"));
+                    return;
+                }
+                entityProducer.releaseResources();
+            }
+            replays++;
+            challenged(this, challenge);
+        }
+
+        @Override
+        public void failed(final Exception cause) {
+            callback.failed(cause);
+        }
+    }
+}
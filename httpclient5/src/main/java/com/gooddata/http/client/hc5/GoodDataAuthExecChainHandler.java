@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.hc5;
+
+import com.gooddata.http.client.GoodDataAuthException;
+import com.gooddata.http.client.GoodDataChallengeType;
+import com.gooddata.http.client.SSTRetrievalStrategy;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hc.client5.http.ClientProtocolException;
+import org.apache.hc.client5.http.classic.ExecChain;
+import org.apache.hc.client5.http.classic.ExecChainHandler;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.support.ClassicRequestBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>GoodData authentication for Apache HttpClient 5 classic execution chain.</p>
+ *
+ * <p>Requests rejected by TT/SST challenge are replayed after a single authentication, which is sent through
+ * the same execution runtime (connection lease) as the challenged request. Challenged request with non-repeatable
+ * entity can't be replayed, it fails with {@link ClientProtocolException}. Insert the handler before the protocol
+ * element, so the cookies are handled by the client:</p>
+ * <pre>
+ * CloseableHttpClient client = HttpClients.custom()
+ *         .addExecInterceptorBefore(ChainElement.PROTOCOL.name(), GoodDataAuthExecChainHandler.NAME,
+ *                 new GoodDataAuthExecChainHandler(sstStrategy))
+ *         .build();
+ * </pre>
+ */
+public class GoodDataAuthExecChainHandler implements ExecChainHandler {
+
+    public static final String NAME = "gooddata-auth";
+
+    private static final int DEFAULT_MAX_REPLAYS = 2;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final SSTRetrievalStrategy sstStrategy;
+
+    //guards that only one thread authenticates, others wait for it and share its result
+    private final ReentrantLock authLock = new ReentrantLock();
+
+    private volatile long generation;
+
+    private volatile GoodDataAuthException failure;
+
+    private volatile int maxReplays = DEFAULT_MAX_REPLAYS;
+
+    /**
+     * Construct object.
+     * @param sstStrategy super-secure token (SST) obtaining strategy
+     */
+    public GoodDataAuthExecChainHandler(final SSTRetrievalStrategy sstStrategy) {
+        notNull(sstStrategy, "SST strategy cannot be null");
+        this.sstStrategy = sstStrategy;
+    }
+
+    /**
+     * Set maximum number of times a request is replayed after it has been rejected by GoodData authentication challenge.
+     * When the request is rejected after the last replay, {@link GoodDataAuthException} is thrown. Default is 2.
+     * @param maxReplays maximum number of replays
+     */
+    public void setMaxReplays(final int maxReplays) {
+        isTrue(maxReplays >= 0, "Max replays cannot be negative");
+        this.maxReplays = maxReplays;
+    }
+
+    @Override
+    public ClassicHttpResponse execute(final ClassicHttpRequest request, final ExecChain.Scope scope,
+                                       final ExecChain chain) throws IOException, HttpException {
+        for (int replays = 0; ; replays++) {
+            final long sentGeneration = generation;
+            final ClassicHttpResponse response = chain.proceed(request, scope);
+            final GoodDataChallengeType challenge = AuthUtils.identify(response);
+            if (challenge == GoodDataChallengeType.UNKNOWN) {
+                return response;
+            }
+            EntityUtils.consume(response.getEntity());
+            response.close();
+            if (replays >= maxReplays) {
+                throw new GoodDataAuthException("Request rejected by " + challenge + " challenge after " + replays + " replays");
+            }
+            final HttpEntity entity = request.getEntity();
+            if (entity != null && !entity.isRepeatable()) {
+                throw new ClientProtocolException("Cannot replay request with non-repeatable entity after "
+                        + challenge + " challenge");
+            }
+            handleChallenge(challenge, scope, chain, sentGeneration);
+        }
+    }
+
+    private void handleChallenge(final GoodDataChallengeType challenge, final ExecChain.Scope scope,
+                                 final ExecChain chain, final long sentGeneration) throws IOException, HttpException {
+        authLock.lock();
+        try {
+            if (generation != sentGeneration) {
+                // authenticated by other thread since the request was sent
+                if (failure != null) {
+                    throw failure;
+                }
+                return;
+            }
+            GoodDataAuthException authFailure = null;
+            try {
+                authenticate(challenge, scope, chain);
+            } catch (GoodDataAuthException e) {
+                authFailure = e;
+                throw e;
+            } finally {
+                failure = authFailure;
+                generation++;
+            }
+        } finally {
+            authLock.unlock();
+        }
+    }
+
+    private void authenticate(final GoodDataChallengeType challenge, final ExecChain.Scope scope,
+                              final ExecChain chain) throws IOException, HttpException {
+        if (challenge == GoodDataChallengeType.TT && refreshTt(scope, chain)) {
+            return;
+        }
+        final String sst = sstStrategy.obtainSst();
+        AuthUtils.replaceSst(sst, scope.clientContext.getCookieStore(), scope.route.getTargetHost().getHostName());
+        if (!refreshTt(scope, chain)) {
+            throw new GoodDataAuthException("Unable to obtain TT after successfully obtained SST");
+        }
+    }
+
+    /**
+     * Refresh temporary token through the rest of the chain, reusing the execution runtime of the challenged request.
+     * @return <code>true</code> TT refresh successful, <code>false</code> TT refresh unsuccessful (SST expired)
+     */
+    private boolean refreshTt(final ExecChain.Scope scope, final ExecChain chain) throws IOException, HttpException {
+        log.debug("Obtaining TT");
+        final HttpHost target = scope.route.getTargetHost();
+        final ClassicHttpRequest getTt = ClassicRequestBuilder.get().setHttpHost(target).setPath(AuthUtils.TOKEN_URL).build();
+        final ExecChain.Scope ttScope = new ExecChain.Scope(scope.exchangeId, scope.route, getTt, scope.execRuntime,
+                scope.clientContext);
+        try (ClassicHttpResponse response = chain.proceed(getTt, ttScope)) {
+            final int status = response.getCode();
+            EntityUtils.consume(response.getEntity());
+            switch (status) {
+                case HttpStatus.SC_OK:
+                    return true;
+                case HttpStatus.SC_UNAUTHORIZED:
+                    return false;
+                default:
+                    throw new GoodDataAuthException("Unable to obtain TT, HTTP status: " + status);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.hc5;
+
+import com.gooddata.http.client.GoodDataAuthException;
+import com.gooddata.http.client.LoginSSTRetrievalStrategy;
+import org.apache.hc.client5.http.ClientProtocolException;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.ChainElement;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducerWrapper;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityProducer;
+import org.apache.hc.core5.http.nio.support.AsyncRequestBuilder;
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutionException;
+
+import static net.jadler.Jadler.closeJadler;
+import static net.jadler.Jadler.initJadler;
+import static net.jadler.Jadler.onRequest;
+import static net.jadler.Jadler.port;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GoodDataAuthAsyncExecChainHandlerIntegrationTest {
+
+    private static final String GDC_TOKEN_URL = "/gdc/account/token";
+    private static final String GDC_LOGIN_URL = "/gdc/account/login";
+    private static final String GDC_PROJECTS_URL = "/gdc/projects";
+
+    private CloseableHttpAsyncClient client;
+
+    @Before
+    public void setUp() {
+        initJadler();
+        final LoginSSTRetrievalStrategy sstStrategy = new LoginSSTRetrievalStrategy(new DefaultHttpClient(),
+                new HttpHost("localhost", port(), "http"), "user@email.com", "top secret");
+        client = HttpAsyncClients.custom()
+                .addExecInterceptorBefore(ChainElement.PROTOCOL.name(), GoodDataAuthAsyncExecChainHandler.NAME,
+                        new GoodDataAuthAsyncExecChainHandler(sstStrategy))
+                .build();
+        client.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        closeJadler();
+    }
+
+    @Test
+    public void getProjectOkloginAndTtRefresh() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withBody("<html><head><title>401 Authorization Required</title></head><body></body></html>")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("text/html; charset=UTF-8")
+        .thenRespond()
+                .withStatus(200)
+                .withBody("{\"about\":{\"summary\":\"Project Resources\",\"category\":\"Projects\",\"links\":[]}}")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("application/json; charset=UTF-8");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withBody("{\"parameters\":[],\"component\":\"Account::Token\",\"message\":\"/gdc/account/login\"}")
+                .withContentType("application/json")
+        .thenRespond()
+                .withStatus(200)
+                .withBody("{}")
+                .withHeader("Set-Cookie", "GDCAuthTT=cookieTt; path=/gdc; secure; HttpOnly")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(200)
+                .withBody("{\"userLogin\":{\"profile\":\"/gdc/account/profile/asdfasdf45t4ar\"}}")
+                .withContentType("application/json")
+                .withHeader("Set-Cookie", "GDCAuthSST=cookieSst; path=/gdc/account; secure; HttpOnly");
+
+        assertEquals(HttpStatus.SC_OK, performGet().getCode());
+    }
+
+    @Test
+    public void getProjectsBadLogin() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withContentType("text/html");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\"")
+                .withContentType("application/json");
+
+        try {
+            performGet();
+            fail("Expected GoodDataAuthException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GoodDataAuthException);
+        }
+    }
+
+    @Test
+    public void postNonRepeatableEntityChallenged() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withContentType("text/html");
+
+        final AsyncEntityProducerWrapper entity = new AsyncEntityProducerWrapper(
+                new StringAsyncEntityProducer("{}", ContentType.APPLICATION_JSON)) {
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+        try {
+            client.execute(AsyncRequestBuilder.post("http://localhost:" + port() + GDC_PROJECTS_URL).setEntity(entity).build(),
+                    SimpleResponseConsumer.create(), null).get();
+            fail("Expected ClientProtocolException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientProtocolException);
+        }
+    }
+
+    private SimpleHttpResponse performGet() throws Exception {
+        return client.execute(SimpleRequestBuilder.get("http://localhost:" + port() + GDC_PROJECTS_URL).build(), null).get();
+    }
+}
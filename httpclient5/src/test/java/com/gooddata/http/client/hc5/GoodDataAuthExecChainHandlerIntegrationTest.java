@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.hc5;
+
+import com.gooddata.http.client.GoodDataAuthException;
+import com.gooddata.http.client.LoginSSTRetrievalStrategy;
+import org.apache.hc.client5.http.ClientProtocolException;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.impl.ChainElement;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static net.jadler.Jadler.closeJadler;
+import static net.jadler.Jadler.initJadler;
+import static net.jadler.Jadler.onRequest;
+import static net.jadler.Jadler.port;
+import static org.junit.Assert.assertEquals;
+
+public class GoodDataAuthExecChainHandlerIntegrationTest {
+
+    private static final String GDC_TOKEN_URL = "/gdc/account/token";
+    private static final String GDC_LOGIN_URL = "/gdc/account/login";
+    private static final String GDC_PROJECTS_URL = "/gdc/projects";
+
+    private CloseableHttpClient client;
+
+    @Before
+    public void setUp() {
+        initJadler();
+        final LoginSSTRetrievalStrategy sstStrategy = new LoginSSTRetrievalStrategy(new DefaultHttpClient(),
+                new HttpHost("localhost", port(), "http"), "user@email.com", "top secret");
+        client = HttpClients.custom()
+                .addExecInterceptorBefore(ChainElement.PROTOCOL.name(), GoodDataAuthExecChainHandler.NAME,
+                        new GoodDataAuthExecChainHandler(sstStrategy))
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        closeJadler();
+    }
+
+    @Test
+    public void getProjectOkloginAndTtRefresh() throws IOException {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withBody("<html><head><title>401 Authorization Required</title></head><body></body></html>")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("text/html; charset=UTF-8")
+        .thenRespond()
+                .withStatus(200)
+                .withBody("{\"about\":{\"summary\":\"Project Resources\",\"category\":\"Projects\",\"links\":[]}}")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("application/json; charset=UTF-8");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withBody("{\"parameters\":[],\"component\":\"Account::Token\",\"message\":\"/gdc/account/login\"}")
+                .withContentType("application/json")
+        .thenRespond()
+                .withStatus(200)
+                .withBody("{}")
+                .withHeader("Set-Cookie", "GDCAuthTT=cookieTt; path=/gdc; secure; HttpOnly")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(200)
+                .withBody("{\"userLogin\":{\"profile\":\"/gdc/account/profile/asdfasdf45t4ar\"}}")
+                .withContentType("application/json")
+                .withHeader("Set-Cookie", "GDCAuthSST=cookieSst; path=/gdc/account; secure; HttpOnly");
+
+        try (CloseableHttpResponse response = client.execute(new HttpGet("http://localhost:" + port() + GDC_PROJECTS_URL))) {
+            assertEquals(HttpStatus.SC_OK, response.getCode());
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    @Test(expected = GoodDataAuthException.class)
+    public void getProjectsBadLogin() throws IOException {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withContentType("text/html");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\"")
+                .withContentType("application/json");
+
+        client.execute(new HttpGet("http://localhost:" + port() + GDC_PROJECTS_URL)).close();
+    }
+
+    @Test(expected = ClientProtocolException.class)
+    public void postNonRepeatableEntityChallenged() throws IOException {
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withContentType("text/html");
+
+        final HttpPost post = new HttpPost("http://localhost:" + port() + GDC_PROJECTS_URL);
+        post.setEntity(new InputStreamEntity(new ByteArrayInputStream("{}".getBytes("UTF-8")), ContentType.APPLICATION_JSON));
+        client.execute(post).close();
+    }
+}
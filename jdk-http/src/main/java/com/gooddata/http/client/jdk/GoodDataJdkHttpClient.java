@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.jdk;
+
+import com.gooddata.http.client.CookieUtils;
+import com.gooddata.http.client.GoodDataAuthException;
+import com.gooddata.http.client.GoodDataChallengeType;
+import com.gooddata.http.client.GoodDataHttpClient;
+import com.gooddata.http.client.SSTRetrievalStrategy;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>HTTP client with ability to handle GoodData authentication over JDK {@link HttpClient}.</p>
+ *
+ * <p>Alternative transport to {@link GoodDataHttpClient} using HTTP/2, so many concurrent requests are multiplexed
+ * over few connections. Challenge handling is the same: request rejected by TT challenge triggers TT refresh,
+ * SST challenge (or failed TT refresh) obtains new SST, and the request is replayed. Single authentication runs
+ * at a time, requests challenged or sent meanwhile wait for it. No thread is blocked while waiting,
+ * SST is obtained using the given executor as {@link SSTRetrievalStrategy} may block.</p>
+ *
+ * <p>Authentication cookies are kept by own {@link CookieManager} installed into the JDK client.
+ * Replayed requests must use replayable body publishers (all the JDK ones except single-use input streams are).</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * GoodDataJdkHttpClient client = new GoodDataJdkHttpClient(sstStrategy);
+ * HttpResponse&lt;String&gt; response = client.send(
+ *         HttpRequest.newBuilder(URI.create("https://secure.gooddata.com/gdc/projects")).build(),
+ *         HttpResponse.BodyHandlers.ofString());
+ * </pre>
+ */
+public class GoodDataJdkHttpClient {
+
+    private static final String TOKEN_URL = "/gdc/account/token";
+
+    private static final int DEFAULT_MAX_REPLAYS = 2;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final HttpClient httpClient;
+
+    private final CookieManager cookieManager = new CookieManager();
+
+    private final SSTRetrievalStrategy sstStrategy;
+
+    private final Executor sstExecutor;
+
+    //guards the authentication state below
+    private final Object authMonitor = new Object();
+
+    private long generation;
+
+    private CompletableFuture<Void> authentication;
+
+    private GoodDataAuthException failure;
+
+    private volatile int maxReplays = DEFAULT_MAX_REPLAYS;
+
+    /**
+     * Construct object.
+     * @param builder builder of the JDK client with your settings, its cookie handler is replaced
+     * @param sstStrategy super-secure token (SST) obtaining strategy
+     * @param sstExecutor executor used to obtain SST
+     */
+    public GoodDataJdkHttpClient(final HttpClient.Builder builder, final SSTRetrievalStrategy sstStrategy,
+                                 final Executor sstExecutor) {
+        notNull(builder, "HTTP client builder cannot be null");
+        notNull(sstStrategy, "SST strategy cannot be null");
+        notNull(sstExecutor, "SST executor cannot be null");
+        this.httpClient = builder.cookieHandler(cookieManager).build();
+        this.sstStrategy = sstStrategy;
+        this.sstExecutor = sstExecutor;
+    }
+
+    /**
+     * Construct object using HTTP/2 JDK client. SST is obtained in daemon threads created on demand.
+     * @param sstStrategy super-secure token (SST) obtaining strategy
+     */
+    public GoodDataJdkHttpClient(final SSTRetrievalStrategy sstStrategy) {
+        this(HttpClient.newBuilder().version(HttpClient.Version.HTTP_2), sstStrategy, Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "gooddata-sst");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Set maximum number of times a request is replayed after it has been rejected by GoodData authentication challenge.
+     * When the request is rejected after the last replay, it fails with {@link GoodDataAuthException}.
+     * Default is 2.
+     * @param maxReplays maximum number of replays
+     */
+    public void setMaxReplays(final int maxReplays) {
+        isTrue(maxReplays >= 0, "Max replays cannot be negative");
+        this.maxReplays = maxReplays;
+    }
+
+    /**
+     * Get wrapped JDK HTTP client.
+     * @return HTTP client
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Send the request, authenticate when needed.
+     * @param request HTTP request
+     * @param bodyHandler handler of the response body, not used for the challenged responses
+     * @param <T> type of the response body
+     * @return HTTP response
+     * @throws IOException I/O error
+     * @throws InterruptedException interrupted while waiting for the response
+     * @throws GoodDataAuthException authentication failed
+     */
+    public <T> HttpResponse<T> send(final HttpRequest request, final BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        try {
+            return sendAsync(request, bodyHandler).get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Send the request asynchronously, authenticate when needed.
+     * @param request HTTP request
+     * @param bodyHandler handler of the response body, not used for the challenged responses
+     * @param <T> type of the response body
+     * @return future response, fails with {@link GoodDataAuthException} when authentication failed
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(final HttpRequest request, final BodyHandler<T> bodyHandler) {
+        notNull(request, "Request cannot be null");
+        notNull(bodyHandler, "Body handler cannot be null");
+        return send(request, new ChallengeAwareBodyHandler<>(bodyHandler), 0);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(final HttpRequest request, final BodyHandler<T> bodyHandler,
+                                                         final int replays) {
+        final CompletableFuture<Void> running;
+        final long sentGeneration;
+        synchronized (authMonitor) {
+            running = authentication;
+            sentGeneration = generation;
+        }
+        if (running != null) {
+            // requests are sent after the authentication even when it failed, they may not need it
+            return running.handle((ignored, e) -> null).thenCompose(ignored -> send(request, bodyHandler, replays));
+        }
+        return httpClient.sendAsync(request, bodyHandler).thenCompose(response -> {
+            final GoodDataChallengeType challenge = identify(response.statusCode(), response.headers());
+            if (challenge == GoodDataChallengeType.UNKNOWN) {
+                return CompletableFuture.completedFuture(response);
+            }
+            if (replays >= maxReplays) {
+                return CompletableFuture.failedFuture(new GoodDataAuthException("Request rejected by " + challenge
+                        + " challenge after " + replays + " replays"));
+            }
+            return authenticate(sentGeneration, challenge, request.uri())
+                    .thenCompose(ignored -> send(request, bodyHandler, replays + 1));
+        });
+    }
+
+    /**
+     * Start authentication unless it is already running or has been performed since the request was sent.
+     * @return future completed when the authentication finishes
+     */
+    private CompletableFuture<Void> authenticate(final long sentGeneration, final GoodDataChallengeType challenge,
+                                                 final URI uri) {
+        final CompletableFuture<Void> started = new CompletableFuture<>();
+        synchronized (authMonitor) {
+            if (sentGeneration != generation) {
+                // authenticated since the request was sent
+                return failure != null ? CompletableFuture.failedFuture(failure) : CompletableFuture.completedFuture(null);
+            }
+            if (authentication != null) {
+                return authentication;
+            }
+            authentication = started;
+        }
+        final CompletableFuture<Boolean> ttRefreshed = challenge == GoodDataChallengeType.TT
+                ? refreshTt(uri) : CompletableFuture.completedFuture(false);
+        ttRefreshed.thenCompose(success -> success ? CompletableFuture.completedFuture((Void) null) : obtainSst(uri))
+                .whenComplete((ignored, e) -> authenticated(started, e));
+        return started;
+    }
+
+    private CompletableFuture<Void> obtainSst(final URI uri) {
+        return CompletableFuture.runAsync(() -> {
+            final String sst = sstStrategy.obtainSst();
+            final HttpCookie cookie = new HttpCookie(CookieUtils.SST_COOKIE_NAME, sst);
+            cookie.setVersion(0);
+            cookie.setPath(CookieUtils.SST_COOKIE_PATH);
+            cookie.setSecure("https".equalsIgnoreCase(uri.getScheme()));
+            cookieManager.getCookieStore().add(uri.resolve(CookieUtils.SST_COOKIE_PATH), cookie);
+        }, sstExecutor).thenCompose(ignored -> refreshTt(uri)).thenAccept(success -> {
+            if (!success) {
+                throw new GoodDataAuthException("Unable to obtain TT after successfully obtained SST");
+            }
+        });
+    }
+
+    /**
+     * Refresh temporary token.
+     * @param uri URI of the challenged request
+     * @return future <code>true</code> when TT refresh was successful, <code>false</code> when SST expired
+     */
+    private CompletableFuture<Boolean> refreshTt(final URI uri) {
+        log.debug("Obtaining TT");
+        final HttpRequest request = HttpRequest.newBuilder(uri.resolve(TOKEN_URL)).GET().build();
+        return httpClient.sendAsync(request, BodyHandlers.discarding()).thenApply(response -> {
+            switch (response.statusCode()) {
+                case 200:
+                    return true;
+                case 401:
+                    return false;
+                default:
+                    throw new GoodDataAuthException("Unable to obtain TT, HTTP status: " + response.statusCode());
+            }
+        });
+    }
+
+    /**
+     * Finish the authentication and release all requests waiting for it.
+     */
+    private void authenticated(final CompletableFuture<Void> finished, final Throwable e) {
+        final GoodDataAuthException authFailure = e == null ? null : authException(e);
+        synchronized (authMonitor) {
+            generation++;
+            failure = authFailure;
+            authentication = null;
+        }
+        if (authFailure == null) {
+            finished.complete(null);
+        } else {
+            finished.completeExceptionally(authFailure);
+        }
+    }
+
+    private static GoodDataAuthException authException(final Throwable e) {
+        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof GoodDataAuthException ? (GoodDataAuthException) cause
+                : new GoodDataAuthException("Authentication failed: " + cause.getMessage(), cause);
+    }
+
+    /**
+     * Identify GoodData authentication challenge of the response.
+     * @param statusCode HTTP status code
+     * @param headers HTTP headers
+     * @return challenge type, {@link GoodDataChallengeType#UNKNOWN} when the response is not GoodData challenge
+     */
+    static GoodDataChallengeType identify(final int statusCode, final HttpHeaders headers) {
+        if (statusCode == 401) {
+            for (final String challenge : headers.allValues("WWW-Authenticate")) {
+                if (challenge.contains(GoodDataHttpClient.COOKIE_GDC_AUTH_SST)) {
+                    return GoodDataChallengeType.SST;
+                } else if (challenge.contains(GoodDataHttpClient.COOKIE_GDC_AUTH_TT)) {
+                    return GoodDataChallengeType.TT;
+                }
+            }
+        }
+        return GoodDataChallengeType.UNKNOWN;
+    }
+
+    /**
+     * Discards body of the challenged responses, the caller's handler gets only the final response.
+     */
+    private static class ChallengeAwareBodyHandler<T> implements BodyHandler<T> {
+
+        private final BodyHandler<T> bodyHandler;
+
+        private ChallengeAwareBodyHandler(final BodyHandler<T> bodyHandler) {
+            this.bodyHandler = bodyHandler;
+        }
+
+        @Override
+        public HttpResponse.BodySubscriber<T> apply(final HttpResponse.ResponseInfo responseInfo) {
+            if (identify(responseInfo.statusCode(), responseInfo.headers()) != GoodDataChallengeType.UNKNOWN) {
+                return BodySubscribers.replacing(null);
+            }
+            return bodyHandler.apply(responseInfo);
+        }
+    }
+}
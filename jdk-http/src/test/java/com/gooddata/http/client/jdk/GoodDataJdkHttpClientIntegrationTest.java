@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client.jdk;
+
+import com.gooddata.http.client.GoodDataAuthException;
+import com.gooddata.http.client.LoginSSTRetrievalStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static net.jadler.Jadler.closeJadler;
+import static net.jadler.Jadler.initJadler;
+import static net.jadler.Jadler.onRequest;
+import static net.jadler.Jadler.port;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class GoodDataJdkHttpClientIntegrationTest {
+
+    private static final String GDC_TOKEN_URL = "/gdc/account/token";
+    private static final String GDC_LOGIN_URL = "/gdc/account/login";
+    private static final String GDC_PROJECTS_URL = "/gdc/projects";
+    private static final String PROJECTS = "{\"about\":{\"summary\":\"Project Resources\",\"category\":\"Projects\",\"links\":[]}}";
+
+    private GoodDataJdkHttpClient client;
+
+    @Before
+    public void setUp() {
+        initJadler();
+        final LoginSSTRetrievalStrategy sstStrategy = new LoginSSTRetrievalStrategy(new DefaultHttpClient(),
+                new HttpHost("localhost", port(), "http"), "user@email.com", "top secret");
+        client = new GoodDataJdkHttpClient(sstStrategy);
+    }
+
+    @After
+    public void tearDown() {
+        closeJadler();
+    }
+
+    @Test
+    public void getProjectOkloginAndTtRefresh() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withBody("<html><head><title>401 Authorization Required</title></head><body></body></html>")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("text/html; charset=UTF-8");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+                .havingHeaderEqualTo("Cookie", "GDCAuthTT=cookieTt")
+        .respond()
+                .withStatus(200)
+                .withBody(PROJECTS)
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("application/json; charset=UTF-8");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withBody("{\"parameters\":[],\"component\":\"Account::Token\",\"message\":\"/gdc/account/login\"}")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+                .havingHeaderEqualTo("Cookie", "GDCAuthSST=cookieSst")
+        .respond()
+                .withStatus(200)
+                .withBody("{}")
+                .withHeader("Set-Cookie", "GDCAuthTT=cookieTt; path=/gdc; HttpOnly")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(200)
+                .withBody("{\"userLogin\":{\"profile\":\"/gdc/account/profile/asdfasdf45t4ar\"}}")
+                .withContentType("application/json")
+                .withHeader("Set-Cookie", "GDCAuthSST=cookieSst; path=/gdc/account; secure; HttpOnly");
+
+        final HttpResponse<String> response = performGet();
+        assertEquals(200, response.statusCode());
+        assertEquals(PROJECTS, response.body());
+    }
+
+    @Test
+    public void concurrentRequestsSingleTtRefresh() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withContentType("text/html");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+                .havingHeaderEqualTo("Cookie", "GDCAuthTT=cookieTt")
+        .respond()
+                .withStatus(200)
+                .withBody(PROJECTS)
+                .withContentType("application/json");
+
+        // second TT refresh would fail the requests
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(200)
+                .withBody("{}")
+                .withHeader("Set-Cookie", "GDCAuthTT=cookieTt; path=/gdc; HttpOnly")
+                .withContentType("application/json")
+        .thenRespond()
+                .withStatus(500);
+
+        final List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            responses.add(client.sendAsync(projectsRequest(), HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertEquals(PROJECTS, response.get().body());
+        }
+    }
+
+    @Test
+    public void getProjectsBadLogin() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withContentType("text/html");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\"")
+                .withContentType("application/json");
+
+        try {
+            performGet();
+            fail("Expected GoodDataAuthException");
+        } catch (GoodDataAuthException e) {
+            // expected
+        }
+    }
+
+    private HttpRequest projectsRequest() {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port() + GDC_PROJECTS_URL)).build();
+    }
+
+    private HttpResponse<String> performGet() throws Exception {
+        return client.send(projectsRequest(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gate blocking requests only while authentication is in progress.
+ * <p>
+ * Requests passing the gate perform a single volatile read when no authentication is running, so they don't
+ * contend with each other. Each completed authentication increments the generation, requests remember
+ * the generation they were sent in and can tell whether the authentication has already been performed since.
+ * Authentication does not wait for the requests in flight, so it can't be starved by them.
+ * <p>
+ * Authentication is single-flight: requests challenged while other thread authenticates wait for it and
+ * share its result instead of authenticating again.
+ */
+class AuthGate {
+
+    //guards that only one thread enters the authentication (obtaining TT/SST) section, fair to not starve the background refresh
+    private final ReentrantLock authLock = new ReentrantLock(true);
+
+    private volatile CountDownLatch closed;
+
+    private volatile long generation;
+
+    private volatile GoodDataAuthException failure;
+
+    /**
+     * Wait until running authentication (if any) finishes.
+     * @param listener notified about the time spent waiting, only when the gate was closed
+     * @return current generation
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    long enter(final GoodDataAuthListener listener) throws InterruptedIOException {
+        final CountDownLatch latch = closed;
+        if (latch != null) {
+            final long start = System.nanoTime();
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for authentication");
+            }
+            listener.gateWait(System.nanoTime() - start);
+        }
+        return generation;
+    }
+
+    /**
+     * Current generation, i.e. number of completed authentications.
+     * @return generation
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Failure of the last authentication, shared by all requests waiting for it.
+     * @return failure or <code>null</code> when the last authentication succeeded
+     */
+    GoodDataAuthException failure() {
+        return failure;
+    }
+
+    /**
+     * Close the gate unless the authentication has been performed since the given generation.
+     * Waits while other thread is authenticating.
+     * @param generation generation the failed request was sent in
+     * @return <code>true</code> the gate has been closed by this thread and must be {@link #open(GoodDataAuthException)}ed,
+     * <code>false</code> the authentication has already been performed
+     */
+    boolean close(final long generation) {
+        authLock.lock();
+        if (this.generation != generation) {
+            authLock.unlock();
+            return false;
+        }
+        closed = new CountDownLatch(1);
+        return true;
+    }
+
+    /**
+     * Enter the authentication section without closing the gate unless the authentication has been performed since
+     * the given generation, requests keep flowing meanwhile. Used when the current credentials are still valid,
+     * concurrent callers share single authentication. Waits while other thread is authenticating.
+     * @param generation generation observed before the authentication was found necessary
+     * @return <code>true</code> the section has been entered and must be left by {@link #unlock(boolean)},
+     * <code>false</code> the authentication has already been performed
+     */
+    boolean lock(final long generation) {
+        authLock.lock();
+        if (this.generation != generation) {
+            authLock.unlock();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Leave the authentication section entered by {@link #lock(long)}. When the authentication succeeded, generation
+     * is advanced, so requests challenged meanwhile are replayed without authenticating again.
+     * @param authenticated <code>true</code> when the authentication succeeded
+     */
+    void unlock(final boolean authenticated) {
+        if (authenticated) {
+            failure = null;
+            generation++;
+        }
+        authLock.unlock();
+    }
+
+    /**
+     * Open the gate closed by this thread, release waiting requests and advance generation.
+     * Must be called even when authentication failed.
+     * @param failure authentication failure or <code>null</code> when authentication succeeded
+     */
+    void open(final GoodDataAuthException failure) {
+        final CountDownLatch latch = closed;
+        this.failure = failure;
+        generation++;
+        closed = null;
+        latch.countDown();
+        authLock.unlock();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Executes batches of independent requests with bounded parallelism.</p>
+ *
+ * <p>When used with {@link GoodDataHttpClient} all requests of the batch share its authentication, so TT challenge
+ * hitting the batch results in single re-authentication. The wrapped HTTP client must be able to execute
+ * requests concurrently, i.e. use pooling connection manager with enough connections per route.</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * BatchExecutor batchExecutor = new BatchExecutor(goodDataHttpClient, 16);
+ * BatchResults&lt;String&gt; results = batchExecutor.execute(httpHost, requests, new BasicResponseHandler());
+ * while (results.hasNext()) {
+ *     BatchResult&lt;String&gt; result = results.next();
+ *     ...
+ * }
+ * batchExecutor.shutdown();
+ * </pre>
+ */
+public class BatchExecutor {
+
+    private static final Log log = LogFactory.getLog(BatchExecutor.class);
+
+    private final HttpClient httpClient;
+
+    private final int concurrency;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    /**
+     * Construct object.
+     * @param httpClient HTTP client executing the requests
+     * @param concurrency maximum number of requests of a batch executed at once
+     * @param executor executor running the requests, managed by the caller
+     */
+    public BatchExecutor(final HttpClient httpClient, final int concurrency, final ExecutorService executor) {
+        this(httpClient, concurrency, executor, false);
+    }
+
+    /**
+     * Construct object. Requests are executed in virtual threads when running on Java 21 or newer, in a fixed thread
+     * pool otherwise. The executor is released by {@link #shutdown()}.
+     * @param httpClient HTTP client executing the requests
+     * @param concurrency maximum number of requests of a batch executed at once
+     */
+    public BatchExecutor(final HttpClient httpClient, final int concurrency) {
+        this(httpClient, concurrency, createExecutor(concurrency), true);
+    }
+
+    private BatchExecutor(final HttpClient httpClient, final int concurrency, final ExecutorService executor,
+                          final boolean ownExecutor) {
+        notNull(httpClient, "HTTP client cannot be null");
+        notNull(executor, "Executor cannot be null");
+        isTrue(concurrency > 0, "Concurrency must be positive");
+        this.httpClient = httpClient;
+        this.concurrency = concurrency;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * Create executor running each task in new virtual thread when available (Java 21+),
+     * fixed thread pool of daemon threads otherwise.
+     * @param threads number of threads of the fixed thread pool
+     * @return executor
+     */
+    static ExecutorService createExecutor(final int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            log.debug("Virtual threads not available, using thread pool");
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            log.debug("Unable to create virtual thread executor, using thread pool", e);
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "gooddata-batch-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Execute the requests. Responses are handled by the response handler in the executing thread and their entities
+     * are consumed afterwards.
+     * @param target HTTP host
+     * @param requests requests to execute
+     * @param responseHandler handler converting the responses into results
+     * @param <T> type of the result
+     * @return results in order of completion
+     */
+    public <T> BatchResults<T> execute(final HttpHost target, final Iterable<? extends HttpRequest> requests,
+                                       final ResponseHandler<? extends T> responseHandler) {
+        notNull(target, "Target cannot be null");
+        notNull(requests, "Requests cannot be null");
+        notNull(responseHandler, "Response handler cannot be null");
+        return new BatchResults<T>(httpClient, executor, concurrency, target, requests, responseHandler);
+    }
+
+    /**
+     * Shut down the executor created by this object. Executor passed by the caller is left untouched.
+     */
+    public void shutdown() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+}
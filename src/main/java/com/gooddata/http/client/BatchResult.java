@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpRequest;
+
+/**
+ * Result of single request executed by {@link BatchExecutor}.
+ * @param <T> type of the result produced by the response handler
+ */
+public class BatchResult<T> {
+
+    private final HttpRequest request;
+
+    private final T result;
+
+    private final Exception failure;
+
+    private BatchResult(final HttpRequest request, final T result, final Exception failure) {
+        this.request = request;
+        this.result = result;
+        this.failure = failure;
+    }
+
+    static <T> BatchResult<T> success(final HttpRequest request, final T result) {
+        return new BatchResult<T>(request, result, null);
+    }
+
+    static <T> BatchResult<T> failure(final HttpRequest request, final Exception failure) {
+        return new BatchResult<T>(request, null, failure);
+    }
+
+    /**
+     * @return executed request
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return result produced by the response handler, <code>null</code> when the request failed
+     */
+    public T getResult() {
+        return result;
+    }
+
+    /**
+     * @return exception thrown while executing the request or handling the response, <code>null</code> on success
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return <code>true</code> when the request has been executed and its response handled successfully
+     */
+    public boolean isSuccess() {
+        return failure == null;
+    }
+}
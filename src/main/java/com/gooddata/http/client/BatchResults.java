@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Results of the batch executed by {@link BatchExecutor}, returned in order of completion.
+ * <p>
+ * At most the given number of requests is executed at once, next request is submitted whenever a result
+ * is taken, so slow consumer slows the batch down instead of piling up responses.
+ * Not thread safe, results are expected to be consumed by a single thread.
+ * @param <T> type of the result produced by the response handler
+ */
+public class BatchResults<T> implements Iterator<BatchResult<T>> {
+
+    private final HttpClient httpClient;
+
+    private final HttpHost target;
+
+    private final ResponseHandler<? extends T> responseHandler;
+
+    private final Iterator<? extends HttpRequest> pending;
+
+    private final CompletionService<BatchResult<T>> completionService;
+
+    private final List<Future<BatchResult<T>>> running = new ArrayList<Future<BatchResult<T>>>();
+
+    private boolean cancelled;
+
+    BatchResults(final HttpClient httpClient, final Executor executor, final int concurrency, final HttpHost target,
+                 final Iterable<? extends HttpRequest> requests, final ResponseHandler<? extends T> responseHandler) {
+        this.httpClient = httpClient;
+        this.target = target;
+        this.responseHandler = responseHandler;
+        this.pending = requests.iterator();
+        this.completionService = new ExecutorCompletionService<BatchResult<T>>(executor);
+        for (int i = 0; i < concurrency && pending.hasNext(); i++) {
+            submit(pending.next());
+        }
+    }
+
+    private void submit(final HttpRequest request) {
+        running.add(completionService.submit(new Callable<BatchResult<T>>() {
+            @Override
+            public BatchResult<T> call() {
+                try {
+                    final HttpResponse response = httpClient.execute(target, request);
+                    try {
+                        return BatchResult.<T>success(request, responseHandler.handleResponse(response));
+                    } finally {
+                        EntityUtils.consume(response.getEntity());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    return BatchResult.failure(request, e);
+                }
+            }
+        }));
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !running.isEmpty();
+    }
+
+    /**
+     * Wait for next completed request.
+     * @return result of the next completed request
+     * @throws NoSuchElementException all results have been taken
+     * @throws IllegalStateException interrupted while waiting
+     */
+    @Override
+    public BatchResult<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more batch results");
+        }
+        final Future<BatchResult<T>> completed;
+        try {
+            completed = completionService.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batch result", e);
+        }
+        running.remove(completed);
+        if (!cancelled && pending.hasNext()) {
+            submit(pending.next());
+        }
+        try {
+            return completed.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Unable to get batch result", e);
+        }
+    }
+
+    /**
+     * Stop submitting remaining requests and interrupt the running ones.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (final Future<BatchResult<T>> future : running) {
+            future.cancel(true);
+        }
+        running.clear();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Batch results cannot be removed");
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Execution context writing to the caller context, reading the shared authentication context for attributes
+ * the caller doesn't have. The cookie store is always read from the shared context, so caller's cookie store
+ * can't shadow the tokens.
+ */
+final class CallerHttpContext implements HttpContext {
+
+    private final HttpContext callerContext;
+
+    private final HttpContext sharedContext;
+
+    CallerHttpContext(final HttpContext callerContext, final HttpContext sharedContext) {
+        this.callerContext = callerContext;
+        this.sharedContext = sharedContext;
+    }
+
+    @Override
+    public Object getAttribute(final String id) {
+        if (ClientContext.COOKIE_STORE.equals(id)) {
+            return sharedContext.getAttribute(id);
+        }
+        final Object value = callerContext.getAttribute(id);
+        return value != null ? value : sharedContext.getAttribute(id);
+    }
+
+    @Override
+    public void setAttribute(final String id, final Object obj) {
+        callerContext.setAttribute(id, obj);
+    }
+
+    @Override
+    public Object removeAttribute(final String id) {
+        return callerContext.removeAttribute(id);
+    }
+}
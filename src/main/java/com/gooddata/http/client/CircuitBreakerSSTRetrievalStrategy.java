@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Decorates SST retrieval strategy with circuit breaker, protecting the login endpoint and the calling threads
+ * when SST retrieval keeps failing.</p>
+ *
+ * <p>After the given number of consecutive failures the circuit opens and all calls fail immediately with the last
+ * failure. The circuit stays open for exponentially growing, jittered period. Then single probe call is let through
+ * (other calls keep failing fast), the circuit closes when it succeeds and opens again with doubled period when
+ * it fails.</p>
+ */
+public class CircuitBreakerSSTRetrievalStrategy implements SSTRetrievalStrategy {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final SSTRetrievalStrategy sstStrategy;
+
+    private final int failureThreshold;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private final Random random = new Random();
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private int opens;
+
+    private long openUntil;
+
+    private GoodDataAuthException lastFailure;
+
+    /**
+     * Construct object.
+     * @param sstStrategy decorated strategy
+     * @param failureThreshold number of consecutive failures opening the circuit
+     * @param initialBackoff period the circuit stays open for the first time
+     * @param maxBackoff maximum period the circuit stays open
+     * @param unit time unit of the periods
+     */
+    public CircuitBreakerSSTRetrievalStrategy(final SSTRetrievalStrategy sstStrategy, final int failureThreshold,
+                                              final long initialBackoff, final long maxBackoff, final TimeUnit unit) {
+        notNull(sstStrategy, "SST strategy cannot be null");
+        notNull(unit, "Time unit cannot be null");
+        isTrue(failureThreshold > 0, "Failure threshold must be positive");
+        isTrue(initialBackoff > 0, "Initial backoff must be positive");
+        isTrue(maxBackoff >= initialBackoff, "Max backoff cannot be lower than initial backoff");
+        this.sstStrategy = sstStrategy;
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffMillis = unit.toMillis(initialBackoff);
+        this.maxBackoffMillis = unit.toMillis(maxBackoff);
+    }
+
+    /**
+     * Construct object opening the circuit after 3 consecutive failures for 1 second up to 5 minutes.
+     * @param sstStrategy decorated strategy
+     */
+    public CircuitBreakerSSTRetrievalStrategy(final SSTRetrievalStrategy sstStrategy) {
+        this(sstStrategy, DEFAULT_FAILURE_THRESHOLD, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String obtainSst() {
+        synchronized (this) {
+            if (state == State.OPEN && currentTimeMillis() >= openUntil) {
+                log.debug("Probing SST retrieval");
+                state = State.HALF_OPEN;
+            } else if (state != State.CLOSED) {
+                throw lastFailure;
+            }
+        }
+        final String sst;
+        try {
+            sst = sstStrategy.obtainSst();
+        } catch (GoodDataAuthException e) {
+            failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            final GoodDataAuthException failure = new GoodDataAuthException("Unable to obtain SST: " + e.getMessage(), e);
+            failed(failure);
+            throw failure;
+        }
+        succeeded();
+        return sst;
+    }
+
+    private synchronized void succeeded() {
+        if (state != State.CLOSED) {
+            log.info("SST retrieval recovered, closing circuit");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        opens = 0;
+        lastFailure = null;
+    }
+
+    private synchronized void failed(final GoodDataAuthException failure) {
+        lastFailure = failure;
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            final long backoff = backoff(opens++);
+            log.warn("SST retrieval failed " + failures + " times, failing fast for " + backoff + " ms");
+            state = State.OPEN;
+            openUntil = currentTimeMillis() + backoff;
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter, i.e. random period between half and full backoff.
+     */
+    private long backoff(final int attempt) {
+        final long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 30));
+        final long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
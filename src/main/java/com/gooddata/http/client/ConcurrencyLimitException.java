@@ -0,0 +1,18 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import java.io.IOException;
+
+/**
+ * Request rejected without being sent because the concurrency limit of the host has been reached,
+ * see {@link ConcurrencyLimiter}.
+ */
+public class ConcurrencyLimitException extends IOException {
+
+    public ConcurrencyLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Adaptive limit of concurrent requests per host, see {@link GoodDataHttpClient#setConcurrencyLimiter(ConcurrencyLimiter)}.
+ * Requests over the limit fail fast with {@link ConcurrencyLimitException} instead of queueing for a connection.</p>
+ *
+ * <p>The limit follows AIMD: it grows by one with each limit of requests completed in time while the limit is
+ * in use, and it is multiplied by 0.9 when the server signals overload by 429 or 503 response, a timeout, or latency
+ * (until the response headers) above the threshold. Overload of requests sent before the previous decrease
+ * is ignored, so a burst of failures decreases the limit once. Changes of the limit are reported to
+ * {@link GoodDataAuthListener#concurrencyLimit(HttpHost, int)}.</p>
+ *
+ * <p>Request is counted in flight until its response entity is consumed or closed, or its connection is released
+ * or aborted, so responses must be finished as with any pooled connection.</p>
+ */
+public class ConcurrencyLimiter {
+
+    private static final int DEFAULT_INITIAL_LIMIT = 20;
+    private static final int DEFAULT_MAX_LIMIT = 200;
+    private static final long DEFAULT_LATENCY_THRESHOLD_MILLIS = 2000;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int MIN_LIMIT = 1;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final ConcurrentMap<HttpHost, Limit> limits = new ConcurrentHashMap<HttpHost, Limit>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final int initialLimit;
+
+    private final int maxLimit;
+
+    private final long latencyThresholdNanos;
+
+    /**
+     * Construct object.
+     * @param initialLimit initial limit of concurrent requests of each host
+     * @param maxLimit maximum limit of concurrent requests of each host
+     * @param latencyThreshold latency considered overload
+     * @param unit time unit of the threshold
+     */
+    public ConcurrencyLimiter(final int initialLimit, final int maxLimit, final long latencyThreshold, final TimeUnit unit) {
+        notNull(unit, "Time unit cannot be null");
+        isTrue(initialLimit >= MIN_LIMIT, "Initial limit must be positive");
+        isTrue(maxLimit >= initialLimit, "Max limit cannot be lower than initial limit");
+        isTrue(latencyThreshold > 0, "Latency threshold must be positive");
+        this.initialLimit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+    }
+
+    /**
+     * Construct object limiting 20 concurrent requests at first, at most 200, considering 2 s latency overload.
+     */
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_LATENCY_THRESHOLD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param host host
+     * @return current limit of concurrent requests of the host
+     */
+    public int getLimit(final HttpHost host) {
+        notNull(host, "Host cannot be null");
+        final Limit limit = limits.get(host);
+        return limit == null ? initialLimit : limit.get();
+    }
+
+    /**
+     * @param host host
+     * @return number of requests of the host being executed
+     */
+    public int getInFlight(final HttpHost host) {
+        notNull(host, "Host cannot be null");
+        final Limit limit = limits.get(host);
+        return limit == null ? 0 : limit.inFlight.get();
+    }
+
+    /**
+     * @return number of requests rejected over the limit
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Admit request to the host.
+     * @param listener notified about changes of the limit caused by the request
+     * @return permit to be released when the response entity is consumed or the request fails
+     * @throws ConcurrencyLimitException the limit has been reached
+     */
+    Permit acquire(final HttpHost host, final GoodDataAuthListener listener) throws ConcurrencyLimitException {
+        Limit limit = limits.get(host);
+        if (limit == null) {
+            final Limit created = new Limit(host);
+            limit = limits.putIfAbsent(host, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        if (!limit.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new ConcurrencyLimitException("Concurrency limit " + limit.get() + " of " + host + " reached");
+        }
+        return new Permit(limit, listener, System.nanoTime());
+    }
+
+    /**
+     * Concurrency limit of single host.
+     */
+    private final class Limit {
+
+        private final HttpHost host;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        // guarded by this, read without lock
+        private volatile double limit = initialLimit;
+
+        private long decreasedAt = System.nanoTime();
+
+        private Limit(final HttpHost host) {
+            this.host = host;
+        }
+
+        int get() {
+            return (int) limit;
+        }
+
+        boolean tryAcquire() {
+            int current;
+            do {
+                current = inFlight.get();
+                if (current >= (int) limit) {
+                    return false;
+                }
+            } while (!inFlight.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void adjust(final long startNanos, final boolean overload, final GoodDataAuthListener listener) {
+            final long now = System.nanoTime();
+            final boolean slow = now - startNanos > latencyThresholdNanos;
+            final int previous;
+            final int current;
+            synchronized (this) {
+                previous = get();
+                if (overload || slow) {
+                    if (startNanos - decreasedAt >= 0) {
+                        limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+                        decreasedAt = now;
+                        if (log.isDebugEnabled()) {
+                            log.debug("Concurrency limit of " + host + " decreased to " + get() + (slow ? " after slow response" : ""));
+                        }
+                    }
+                } else if (inFlight.get() * 2 >= limit) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                current = get();
+            }
+            if (current != previous) {
+                listener.concurrencyLimit(host, current);
+            }
+        }
+    }
+
+    /**
+     * Admission of single request. The limit is adjusted when the response headers are received, the request
+     * stays in flight until the response entity is consumed or closed.
+     */
+    final class Permit implements EofSensorWatcher {
+
+        private final Limit limit;
+
+        private final GoodDataAuthListener listener;
+
+        private final long startNanos;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(final Limit limit, final GoodDataAuthListener listener, final long startNanos) {
+            this.limit = limit;
+            this.listener = listener;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Adjust the limit after the response headers are received. The permit is released when the entity
+         * of the response is consumed or closed, or when the connection of the request is released or aborted,
+         * immediately when the response has no entity.
+         * @param request executed request, its release trigger is replaced by one releasing the permit
+         * @param response received response, its entity is replaced by one releasing the permit
+         * @param connection release trigger of the connection set to the request, <code>null</code> for none
+         */
+        void completed(final HttpRequest request, final HttpResponse response, final ConnectionReleaseTrigger connection) {
+            final int status = response.getStatusLine().getStatusCode();
+            limit.adjust(startNanos, status == SC_TOO_MANY_REQUESTS || status == HttpStatus.SC_SERVICE_UNAVAILABLE, listener);
+            final HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                release();
+                return;
+            }
+            response.setEntity(new ReleasingEntity(entity, this));
+            if (request instanceof AbortableHttpRequest) {
+                try {
+                    ((AbortableHttpRequest) request).setReleaseTrigger(new ReleasingTrigger(connection, this));
+                } catch (IOException e) {
+                    // request already aborted
+                    release();
+                }
+            }
+        }
+
+        /**
+         * Release after the request failed, timeout is considered overload.
+         * @param e I/O error
+         */
+        void failed(final IOException e) {
+            limit.adjust(startNanos, e instanceof InterruptedIOException, listener);
+            release();
+        }
+
+        /**
+         * Release without adjusting the limit, subsequent calls have no effect.
+         */
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                limit.inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public boolean eofDetected(final InputStream wrapped) {
+            release();
+            return true;
+        }
+
+        @Override
+        public boolean streamClosed(final InputStream wrapped) {
+            release();
+            return true;
+        }
+
+        @Override
+        public boolean streamAbort(final InputStream wrapped) {
+            release();
+            return true;
+        }
+    }
+
+    /**
+     * Release trigger of the request releasing the permit together with the connection,
+     * i.e. on {@link org.apache.http.client.methods.HttpRequestBase#releaseConnection()} or abort.
+     */
+    private static final class ReleasingTrigger implements ConnectionReleaseTrigger {
+
+        private final ConnectionReleaseTrigger connection;
+
+        private final Permit permit;
+
+        private ReleasingTrigger(final ConnectionReleaseTrigger connection, final Permit permit) {
+            this.connection = connection;
+            this.permit = permit;
+        }
+
+        @Override
+        public void releaseConnection() throws IOException {
+            try {
+                if (connection != null) {
+                    connection.releaseConnection();
+                }
+            } finally {
+                permit.release();
+            }
+        }
+
+        @Override
+        public void abortConnection() throws IOException {
+            try {
+                if (connection != null) {
+                    connection.abortConnection();
+                }
+            } finally {
+                permit.release();
+            }
+        }
+    }
+
+    /**
+     * Entity releasing the permit when its content is consumed, closed or written out.
+     */
+    private static final class ReleasingEntity extends HttpEntityWrapper {
+
+        private final Permit permit;
+
+        private ReleasingEntity(final HttpEntity entity, final Permit permit) {
+            super(entity);
+            this.permit = permit;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new EofSensorInputStream(super.getContent(), permit);
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            try {
+                super.writeTo(out);
+            } finally {
+                permit.release();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void consumeContent() throws IOException {
+            try {
+                super.consumeContent();
+            } finally {
+                permit.release();
+            }
+        }
+    }
+}
@@ -18,10 +18,17 @@ public class CookieUtils {
 
     public static final String SST_COOKIE_NAME = "GDCAuthSST";
     public static final String SST_COOKIE_PATH = "/gdc/account";
+    public static final String TT_COOKIE_NAME = "GDCAuthTT";
 
     private CookieUtils() { }
 
-    private static void replaceSst(final String sst, final CookieStore cookieStore, final String domain) {
+    /**
+     * Add (or replace) super-secure cookie in cookie store.
+     * @param sst super-secure token
+     * @param cookieStore cookie store
+     * @param domain domain
+     */
+    static void replaceSstCookie(final String sst, final CookieStore cookieStore, final String domain) {
         final BasicClientCookie cookie = new BasicClientCookie(SST_COOKIE_NAME, sst);
         cookie.setSecure(true);
         cookie.setPath(SST_COOKIE_PATH);
@@ -39,7 +46,7 @@ public class CookieUtils {
     static void replaceSst(final String sst, final HttpContext context, final String domain) {
         notNull(context, "Context cannot be null.");
         final CookieStore cookieStore = (CookieStore) context.getAttribute(ClientContext.COOKIE_STORE);
-        replaceSst(sst, cookieStore, domain);
+        replaceSstCookie(sst, cookieStore, domain);
     }
 
 }
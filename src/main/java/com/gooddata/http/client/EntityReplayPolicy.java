@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+/**
+ * Defines how requests enclosing an entity are prepared so they can be replayed after GoodData authentication
+ * challenge.
+ * <p>
+ * Request with non-repeatable entity which has already been sent can't be replayed, such request fails with
+ * {@link org.apache.http.client.ClientProtocolException} caused by
+ * {@link org.apache.http.client.NonRepeatableRequestException} after the authentication.
+ */
+public enum EntityReplayPolicy {
+
+    /**
+     * Entity is sent as is. Repeatable entities are sent again when replayed.
+     */
+    NONE,
+
+    /**
+     * Request is sent with <code>Expect: 100-continue</code> header, the entity is streamed only after the server
+     * accepts the request headers, so the entity is not sent when the request is rejected by authentication challenge.
+     */
+    EXPECT_CONTINUE,
+
+    /**
+     * Temporary token is refreshed before the request is sent when it is unknown or expires within a minute, so
+     * the request is not rejected by TT challenge while the entity is streamed. The refresh costs one extra round-trip
+     * and is performed under the authentication lock of the host, concurrent requests share single refresh.
+     */
+    PREFLIGHT,
+
+    /**
+     * Non-repeatable entity is spooled to temporary file before the request is sent and replayed from the file
+     * when needed, without holding the content on heap.
+     */
+    SPOOL
+}
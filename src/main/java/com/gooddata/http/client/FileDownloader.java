@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Downloads resources (e.g. report exports) directly into files.</p>
+ *
+ * <p>Response body is streamed into {@link FileChannel} in bounded chunks of the buffer size, so memory use
+ * doesn't depend on the resource size.
+ * When the transfer breaks (connection drops, e.g. because the temporary token expired), the download is resumed
+ * by <code>Range</code> request guarded by <code>If-Range</code> validator. Resources without strong validator
+ * (ETag or Last-Modified) are downloaded again from the start and never split into segments, so different versions
+ * of the resource are never mixed in the file. When used with {@link GoodDataHttpClient} the resuming request is
+ * authenticated as any other one, i.e. TT challenge is handled by TT refresh and the request is replayed.</p>
+ *
+ * <p>Resources supporting <code>Range</code> requests can be downloaded in several segments fetched in parallel,
+ * each written directly to its offset in the file. The first segment (of minimum segment size) is fetched by the
+ * calling thread and tells the resource length, the rest of the resource is split among the other segments.
+ * Segments share the authentication of the wrapped client, so TT challenge hitting several segments results
+ * in single re-authentication. When a segment fails, requests of the other segments are aborted. The wrapped
+ * HTTP client must be able to execute requests concurrently, i.e. use pooling connection manager with enough
+ * connections per route.</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * FileDownloader downloader = new FileDownloader(goodDataHttpClient, 4);
+ * long size = downloader.download(httpHost, "/gdc/exporter/result/...", new File("report.csv"));
+ * downloader.shutdown();
+ * </pre>
+ */
+public class FileDownloader {
+
+    private static final int DEFAULT_MAX_RESUMES = 3;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final HttpClient httpClient;
+
+    private final int segments;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private volatile int maxResumes = DEFAULT_MAX_RESUMES;
+
+    private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private volatile long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+
+    // direct buffers reused by subsequent fetches, at most one per concurrent fetch
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * Construct object downloading in single stream.
+     * @param httpClient HTTP client executing the requests
+     */
+    public FileDownloader(final HttpClient httpClient) {
+        this(httpClient, 1, null, false);
+    }
+
+    /**
+     * Construct object downloading in parallel segments.
+     * @param httpClient HTTP client executing the requests
+     * @param segments maximum number of segments of single download
+     * @param executor executor fetching the segments, managed by the caller
+     */
+    public FileDownloader(final HttpClient httpClient, final int segments, final ExecutorService executor) {
+        this(httpClient, segments, executor, false);
+        notNull(executor, "Executor cannot be null");
+    }
+
+    /**
+     * Construct object downloading in parallel segments. Segments are fetched in virtual threads when running
+     * on Java 21 or newer, in a fixed thread pool otherwise. The executor is released by {@link #shutdown()}.
+     * @param httpClient HTTP client executing the requests
+     * @param segments maximum number of segments of single download
+     */
+    public FileDownloader(final HttpClient httpClient, final int segments) {
+        this(httpClient, segments, segments > 1 ? BatchExecutor.createExecutor(segments - 1) : null, true);
+    }
+
+    private FileDownloader(final HttpClient httpClient, final int segments, final ExecutorService executor,
+                           final boolean ownExecutor) {
+        notNull(httpClient, "HTTP client cannot be null");
+        isTrue(segments > 0, "Segments must be positive");
+        this.httpClient = httpClient;
+        this.segments = segments;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * Set maximum number of times the broken transfer (of each segment) is resumed. Default is 3.
+     * @param maxResumes maximum number of resumes
+     */
+    public void setMaxResumes(final int maxResumes) {
+        isTrue(maxResumes >= 0, "Max resumes cannot be negative");
+        this.maxResumes = maxResumes;
+    }
+
+    /**
+     * Set size of the buffer the body is transferred through. Default is 64 kB.
+     * @param bufferSize buffer size in bytes
+     */
+    public void setBufferSize(final int bufferSize) {
+        isTrue(bufferSize > 0, "Buffer size must be positive");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Set minimum size of a segment, smaller resources are downloaded in fewer segments. Default is 8 MB.
+     * @param minSegmentSize minimum segment size in bytes
+     */
+    public void setMinSegmentSize(final long minSegmentSize) {
+        isTrue(minSegmentSize > 0, "Min segment size must be positive");
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Download the resource into the file, the file is overwritten.
+     * @param target HTTP host
+     * @param uri URI of the resource
+     * @param file target file
+     * @return number of bytes downloaded
+     * @throws HttpResponseException server responded by other status than 200 or 206
+     * @throws ClientProtocolException resource changed during segmented download or its length doesn't match
+     * @throws IOException transfer failed even after the last resume
+     */
+    public long download(final HttpHost target, final String uri, final File file) throws IOException {
+        notNull(target, "Target cannot be null");
+        notNull(uri, "URI cannot be null");
+        notNull(file, "File cannot be null");
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final FileChannel channel = randomAccessFile.getChannel();
+            channel.truncate(0);
+            if (segments == 1) {
+                return fetch(target, uri, channel, 0, -1, null, null, null, null);
+            }
+            final long firstSegmentSize = minSegmentSize;
+            final Cancellation cancellation = new Cancellation();
+            final HttpGet probe = new HttpGet(uri);
+            probe.setHeader("Range", "bytes=0-" + (firstSegmentSize - 1));
+            cancellation.register(probe);
+            final HttpResponse response = httpClient.execute(target, probe);
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && isEmpty(response)) {
+                EntityUtils.consume(response.getEntity());
+                return 0;
+            }
+            if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+                log.debug("Range requests not supported by " + uri + ", downloading in single stream");
+                return fetch(target, uri, channel, 0, -1, null, probe, response, null);
+            }
+            final long[] range = contentRange(response);
+            final long length = range[2];
+            if (range[0] != 0 || length < 0) {
+                probe.abort();
+                throw new ClientProtocolException("Unexpected content range " + range[0] + "-" + range[1] + "/"
+                        + (length < 0 ? "*" : length) + " of the first segment");
+            }
+            final String validator = validator(response);
+            if (validator == null) {
+                // segments can't be guarded by If-Range, they could be of different versions of the resource
+                probe.abort();
+                log.debug("Resource " + uri + " has no strong validator, downloading in single stream");
+                return fetch(target, uri, channel, 0, -1, null, null, null, null);
+            }
+            final List<Future<Long>> others = submitSegments(target, uri, channel, range[1] + 1, length, validator,
+                    cancellation);
+            try {
+                fetch(target, uri, channel, 0, range[1], validator, probe, response, cancellation);
+            } catch (IOException e) {
+                cancellation.cancel(e);
+            }
+            // wait even for the cancelled segments, so none of them writes to the file after it is closed
+            for (final Future<Long> segment : others) {
+                try {
+                    segment.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    final InterruptedIOException interrupted = new InterruptedIOException(
+                            "Interrupted while waiting for segments of " + uri);
+                    cancellation.cancel(interrupted);
+                    throw interrupted;
+                } catch (ExecutionException e) {
+                    cancellation.cancel(e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException("Segment download failed: " + e.getCause().getMessage(), e.getCause()));
+                }
+            }
+            if (cancellation.failure() != null) {
+                throw cancellation.failure();
+            }
+            if (channel.size() != length) {
+                throw new ClientProtocolException("Downloaded " + channel.size() + " bytes, expected " + length);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Split the rest of the resource into segments and submit their fetching.
+     * @param from first byte of the rest
+     * @param length length of the resource
+     * @param cancellation cancelled when any segment fails
+     * @return futures of the segments
+     */
+    private List<Future<Long>> submitSegments(final HttpHost target, final String uri, final FileChannel channel,
+                                              final long from, final long length, final String validator,
+                                              final Cancellation cancellation) {
+        final long rest = length - from;
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        if (rest <= 0) {
+            return futures;
+        }
+        final long count = Math.max(1, Math.min(segments - 1, rest / minSegmentSize));
+        final long segmentSize = (rest + count - 1) / count;
+        for (long first = from; first < length; first += segmentSize) {
+            final long segmentFirst = first;
+            final long segmentLast = Math.min(first + segmentSize, length) - 1;
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    try {
+                        return fetch(target, uri, channel, segmentFirst, segmentLast, validator, null, null, cancellation);
+                    } catch (IOException e) {
+                        cancellation.cancel(e);
+                        throw e;
+                    }
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Fetch the range of the resource into the channel, resume broken transfer.
+     * @param from first byte
+     * @param to last byte or -1 to fetch whole resource without knowing its length
+     * @param validator If-Range validator, <code>null</code> for none
+     * @param request already executed request or <code>null</code>
+     * @param response response of the already executed request or <code>null</code>
+     * @param cancellation cancellation of the segmented download, <code>null</code> for single stream
+     * @return position after the last fetched byte
+     */
+    private long fetch(final HttpHost target, final String uri, final FileChannel channel, final long from,
+                       final long to, String validator, HttpGet request, HttpResponse response,
+                       final Cancellation cancellation) throws IOException {
+        final ByteBuffer buffer = acquireBuffer();
+        final boolean whole = to < 0;
+        long position = from;
+        long end = whole ? -1 : to + 1;
+        int resumes = 0;
+        try {
+            while (true) {
+                if (response == null) {
+                    request = new HttpGet(uri);
+                    // without validator the resource may have changed, so the whole one is downloaded again
+                    if (!whole || (position > 0 && validator != null)) {
+                        request.setHeader("Range", "bytes=" + position + "-" + (whole ? "" : to));
+                        if (validator != null) {
+                            request.setHeader("If-Range", validator);
+                        }
+                    }
+                    if (cancellation != null) {
+                        cancellation.register(request);
+                    }
+                    response = httpClient.execute(target, request);
+                }
+                final int status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_OK && whole) {
+                    if (position > 0) {
+                        log.debug("Resource changed, range not supported or resource without validator, downloading "
+                                + uri + " from start");
+                        position = 0;
+                        channel.truncate(0);
+                    }
+                    validator = validator(response);
+                    end = contentLength(response);
+                } else if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+                    final long[] range = contentRange(response);
+                    if (range[0] != position || (!whole && range[1] != to)) {
+                        request.abort();
+                        throw new ClientProtocolException("Unexpected content range " + range[0] + "-" + range[1]
+                                + ", requested " + position + "-" + (whole ? "" : to));
+                    }
+                    if (whole && range[2] >= 0) {
+                        end = range[2];
+                    }
+                    final long entityLength = contentLength(response);
+                    if (entityLength >= 0 && entityLength != range[1] - range[0] + 1) {
+                        request.abort();
+                        throw new ClientProtocolException("Content-Length " + entityLength
+                                + " doesn't match content range " + range[0] + "-" + range[1]);
+                    }
+                } else if (status == HttpStatus.SC_OK) {
+                    request.abort();
+                    throw new ClientProtocolException("Resource " + uri + " changed during segmented download");
+                } else {
+                    EntityUtils.consume(response.getEntity());
+                    throw new HttpResponseException(status, "Unable to download " + uri + ": "
+                            + response.getStatusLine().getReasonPhrase());
+                }
+                try {
+                    position = transfer(response.getEntity(), channel, position, buffer, request);
+                    if (end < 0 || position == end) {
+                        return position;
+                    }
+                    if (position > end) {
+                        throw new ClientProtocolException("Downloaded " + position + " bytes, expected " + end);
+                    }
+                    if (resumes >= maxResumes) {
+                        throw new ClientProtocolException("Transfer of " + uri + " incomplete after " + resumes
+                                + " resumes, downloaded up to " + position + " of " + end + " bytes");
+                    }
+                } catch (TransferException e) {
+                    request.abort();
+                    position = e.getPosition();
+                    if (resumes >= maxResumes) {
+                        throw e.getCause();
+                    }
+                    log.debug("Transfer of " + uri + " broken at " + position + " bytes, resuming", e.getCause());
+                }
+                resumes++;
+                response = null;
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Take a transfer buffer of the current size from the pool, buffers are returned after each fetch.
+     */
+    private ByteBuffer acquireBuffer() {
+        final int size = bufferSize;
+        ByteBuffer buffer;
+        while ((buffer = buffers.poll()) != null) {
+            if (buffer.capacity() == size) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Release the executor created by this downloader.
+     */
+    public void shutdown() {
+        if (ownExecutor && executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Write the entity into the channel starting at the position.
+     * @param request request of the entity, aborted when writing fails
+     * @return position after the last written byte
+     * @throws TransferException reading the entity failed
+     * @throws IOException writing to the channel failed
+     */
+    static long transfer(final HttpEntity entity, final FileChannel channel, final long position,
+                         final ByteBuffer buffer, final HttpGet request) throws IOException {
+        if (entity == null) {
+            return position;
+        }
+        long written = position;
+        final InputStream content;
+        try {
+            content = entity.getContent();
+        } catch (IOException e) {
+            throw new TransferException(written, e);
+        }
+        try (final ReadableByteChannel source = Channels.newChannel(content)) {
+            buffer.clear();
+            while (read(source, buffer, written) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    try {
+                        written += channel.write(buffer, written);
+                    } catch (IOException e) {
+                        // closing the content would read the rest of the body first
+                        request.abort();
+                        throw e;
+                    }
+                }
+                buffer.clear();
+            }
+        }
+        return written;
+    }
+
+    private static int read(final ReadableByteChannel source, final ByteBuffer buffer, final long position)
+            throws TransferException {
+        try {
+            return source.read(buffer);
+        } catch (IOException e) {
+            throw new TransferException(position, e);
+        }
+    }
+
+    /**
+     * Reading of the response body failed, the bytes written so far are kept.
+     */
+    static class TransferException extends IOException {
+
+        private final long position;
+
+        TransferException(final long position, final IOException cause) {
+            super("Transfer broken at " + position + " bytes: " + cause.getMessage(), cause);
+            this.position = position;
+        }
+
+        /**
+         * @return position of the first missing byte
+         */
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Requests of the segments of single download, aborted all at once when any segment fails.
+     */
+    private static final class Cancellation {
+
+        private final Set<HttpGet> requests = Collections.newSetFromMap(new ConcurrentHashMap<HttpGet, Boolean>());
+
+        private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+        /**
+         * Register the request before it is executed.
+         * @throws InterruptedIOException the download has already been cancelled
+         */
+        void register(final HttpGet request) throws InterruptedIOException {
+            requests.add(request);
+            if (failure.get() != null) {
+                request.abort();
+                throw new InterruptedIOException("Download cancelled");
+            }
+        }
+
+        /**
+         * Abort requests of all segments, only the first failure is kept.
+         * @param cause failure of the segment
+         */
+        void cancel(final IOException cause) {
+            if (failure.compareAndSet(null, cause)) {
+                for (final HttpGet request : requests) {
+                    request.abort();
+                }
+            }
+        }
+
+        /**
+         * @return failure cancelling the download or <code>null</code>
+         */
+        IOException failure() {
+            return failure.get();
+        }
+    }
+
+    /**
+     * Tell whether the response rejecting range request is of an empty resource,
+     * i.e. has <code>Content-Range: bytes *&#47;0</code> header.
+     */
+    static boolean isEmpty(final HttpResponse response) {
+        final Header header = response.getFirstHeader("Content-Range");
+        return header != null && "bytes */0".equals(header.getValue().trim());
+    }
+
+    /**
+     * Strong validator of the response suitable for <code>If-Range</code>.
+     * @return ETag, Last-Modified date or <code>null</code> when there is none
+     */
+    static String validator(final HttpResponse response) {
+        final Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+        final Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    private static long contentLength(final HttpResponse response) {
+        return response.getEntity() != null ? response.getEntity().getContentLength() : 0;
+    }
+
+    /**
+     * Parse <code>Content-Range: bytes first-last/length</code> header.
+     * @return first byte, last byte, complete length (-1 when unknown)
+     * @throws ClientProtocolException the header is missing or invalid
+     */
+    static long[] contentRange(final HttpResponse response) throws ClientProtocolException {
+        final Header header = response.getFirstHeader("Content-Range");
+        if (header == null) {
+            throw new ClientProtocolException("Partial content without Content-Range header");
+        }
+        final String value = header.getValue().trim();
+        try {
+            isTrue(value.startsWith("bytes "));
+            final int dash = value.indexOf('-');
+            final int slash = value.indexOf('/');
+            isTrue(dash > 0 && slash > dash);
+            final String length = value.substring(slash + 1);
+            return new long[]{
+                    Long.parseLong(value.substring(6, dash).trim()),
+                    Long.parseLong(value.substring(dash + 1, slash).trim()),
+                    "*".equals(length) ? -1 : Long.parseLong(length)
+            };
+        } catch (IllegalArgumentException e) {
+            throw new ClientProtocolException("Invalid Content-Range header: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Listener of GoodData authentication events, e.g. for collecting metrics.
+ * <p>
+ * Methods are called synchronously by the threads executing requests, so implementations must be thread safe
+ * and fast. Durations are in nanoseconds. Extend {@link GoodDataAuthListenerAdapter} to listen to selected events only.
+ */
+public interface GoodDataAuthListener {
+
+    /**
+     * Request has been rejected by GoodData authentication challenge.
+     * @param challenge type of the challenge
+     */
+    void challenge(GoodDataChallengeType challenge);
+
+    /**
+     * Request is going to be replayed after authentication challenge.
+     */
+    void replay();
+
+    /**
+     * Temporary token refresh finished.
+     * @param nanos duration
+     * @param success <code>true</code> when new TT has been obtained
+     */
+    void ttRefresh(long nanos, boolean success);
+
+    /**
+     * Super-secure token retrieval using {@link SSTRetrievalStrategy} finished.
+     * @param nanos duration
+     * @param success <code>true</code> when SST has been obtained
+     */
+    void sstRetrieval(long nanos, boolean success);
+
+    /**
+     * Login performed by {@link LoginSSTRetrievalStrategy} finished.
+     * @param nanos duration
+     * @param success <code>true</code> when login succeeded
+     */
+    void login(long nanos, boolean success);
+
+    /**
+     * Request waited for running authentication before it was sent.
+     * @param nanos duration of the wait
+     */
+    void gateWait(long nanos);
+
+    /**
+     * Challenged request waited to enter authentication, i.e. for authentication performed by other thread.
+     * @param nanos duration of the wait
+     */
+    void authWait(long nanos);
+
+    /**
+     * Concurrency limit of the host has been changed by {@link ConcurrencyLimiter}.
+     * @param host host
+     * @param limit new limit of concurrent requests
+     */
+    void concurrencyLimit(HttpHost host, int limit);
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Listener ignoring all events. Used by default, extend it to listen to selected events only.
+ */
+public class GoodDataAuthListenerAdapter implements GoodDataAuthListener {
+
+    @Override
+    public void challenge(final GoodDataChallengeType challenge) {
+    }
+
+    @Override
+    public void replay() {
+    }
+
+    @Override
+    public void ttRefresh(final long nanos, final boolean success) {
+    }
+
+    @Override
+    public void sstRetrieval(final long nanos, final boolean success) {
+    }
+
+    @Override
+    public void login(final long nanos, final boolean success) {
+    }
+
+    @Override
+    public void gateWait(final long nanos) {
+    }
+
+    @Override
+    public void authWait(final long nanos) {
+    }
+
+    @Override
+    public void concurrencyLimit(final HttpHost host, final int limit) {
+    }
+}
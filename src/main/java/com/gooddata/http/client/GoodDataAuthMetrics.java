@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * Authentication listener collecting counters and latency histograms. Lock-free, so it can be shared by clients
+ * used from many threads. Values are cumulative since creation, read them periodically to export to your
+ * monitoring system.
+ */
+public class GoodDataAuthMetrics implements GoodDataAuthListener {
+
+    private final AtomicLongArray challenges = new AtomicLongArray(GoodDataChallengeType.values().length);
+
+    private final AtomicLong replays = new AtomicLong();
+
+    private final AtomicLong ttRefreshFailures = new AtomicLong();
+
+    private final AtomicLong sstRetrievalFailures = new AtomicLong();
+
+    private final AtomicLong loginFailures = new AtomicLong();
+
+    private final LatencyHistogram ttRefresh = new LatencyHistogram();
+
+    private final LatencyHistogram sstRetrieval = new LatencyHistogram();
+
+    private final LatencyHistogram login = new LatencyHistogram();
+
+    private final LatencyHistogram gateWait = new LatencyHistogram();
+
+    private final LatencyHistogram authWait = new LatencyHistogram();
+
+    private final ConcurrentMap<HttpHost, Integer> concurrencyLimits = new ConcurrentHashMap<HttpHost, Integer>();
+
+    @Override
+    public void challenge(final GoodDataChallengeType challenge) {
+        challenges.incrementAndGet(challenge.ordinal());
+    }
+
+    @Override
+    public void replay() {
+        replays.incrementAndGet();
+    }
+
+    @Override
+    public void ttRefresh(final long nanos, final boolean success) {
+        ttRefresh.record(nanos);
+        if (!success) {
+            ttRefreshFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void sstRetrieval(final long nanos, final boolean success) {
+        sstRetrieval.record(nanos);
+        if (!success) {
+            sstRetrievalFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void login(final long nanos, final boolean success) {
+        login.record(nanos);
+        if (!success) {
+            loginFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void gateWait(final long nanos) {
+        gateWait.record(nanos);
+    }
+
+    @Override
+    public void authWait(final long nanos) {
+        authWait.record(nanos);
+    }
+
+    @Override
+    public void concurrencyLimit(final HttpHost host, final int limit) {
+        concurrencyLimits.put(host, limit);
+    }
+
+    /**
+     * @param challenge challenge type
+     * @return number of requests rejected by the challenge
+     */
+    public long getChallengeCount(final GoodDataChallengeType challenge) {
+        notNull(challenge, "Challenge cannot be null");
+        return challenges.get(challenge.ordinal());
+    }
+
+    public long getReplayCount() {
+        return replays.get();
+    }
+
+    /**
+     * @return number of TT refreshes not returning new TT, i.e. expired SST or error
+     */
+    public long getTtRefreshFailureCount() {
+        return ttRefreshFailures.get();
+    }
+
+    public long getSstRetrievalFailureCount() {
+        return sstRetrievalFailures.get();
+    }
+
+    public long getLoginFailureCount() {
+        return loginFailures.get();
+    }
+
+    public LatencyHistogram getTtRefreshLatency() {
+        return ttRefresh;
+    }
+
+    public LatencyHistogram getSstRetrievalLatency() {
+        return sstRetrieval;
+    }
+
+    public LatencyHistogram getLoginLatency() {
+        return login;
+    }
+
+    /**
+     * @return time requests spent waiting for running authentication before being sent
+     */
+    public LatencyHistogram getGateWaitLatency() {
+        return gateWait;
+    }
+
+    /**
+     * @return time challenged requests spent waiting to enter authentication
+     */
+    public LatencyHistogram getAuthWaitLatency() {
+        return authWait;
+    }
+
+    /**
+     * @return last reported concurrency limit of each host, only hosts whose limit has changed are included
+     */
+    public Map<HttpHost, Integer> getConcurrencyLimits() {
+        return Collections.unmodifiableMap(concurrencyLimits);
+    }
+}
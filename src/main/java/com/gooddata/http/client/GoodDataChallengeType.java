@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.AUTH;
+
+import static com.gooddata.http.client.GoodDataHttpClient.COOKIE_GDC_AUTH_SST;
+import static com.gooddata.http.client.GoodDataHttpClient.COOKIE_GDC_AUTH_TT;
+
+/**
+ * Type of GoodData authentication challenge.
+ */
+public enum GoodDataChallengeType {
+    SST, TT, UNKNOWN;
+
+    /**
+     * Identify GoodData authentication challenge of the response.
+     * @param response HTTP response
+     * @return challenge type, {@link #UNKNOWN} when the response is not GoodData authentication challenge
+     */
+    static GoodDataChallengeType identify(final HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+            final Header[] headers = response.getHeaders(AUTH.WWW_AUTH);
+            if (headers != null) {
+                for (final Header header : headers) {
+                    final String challenge = header.getValue();
+                    if (challenge.contains(COOKIE_GDC_AUTH_SST)) {
+                        return SST;
+                    } else if (challenge.contains(COOKIE_GDC_AUTH_TT)) {
+                        return TT;
+                    }
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Asynchronous HTTP client with ability to handle GoodData authentication.</p>
+ *
+ * <p>Asynchronous counterpart of {@link GoodDataHttpClient} wrapping {@link HttpAsyncClient}. Requests rejected
+ * by GoodData authentication challenge are queued until the single re-authentication of their host completes
+ * and replayed then. I/O dispatcher threads are never blocked, SST is obtained using the given executor as
+ * {@link SSTRetrievalStrategy} may block. Cancelling the returned future cancels the request in flight.</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * // create and start HTTP async client with your settings
+ * HttpAsyncClient httpClient = new DefaultHttpAsyncClient();
+ * httpClient.start();
+ *
+ * // wrap your HTTP client into GoodData HTTP async client
+ * GoodDataHttpAsyncClient client = new GoodDataHttpAsyncClient(httpClient, sstStrategy);
+ *
+ * // use GoodData HTTP async client
+ * HttpGet getProject = new HttpGet("/gdc/projects");
+ * getProject.addHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
+ * Future&lt;HttpResponse&gt; getProjectResponse = client.execute(httpHost, getProject, callback);
+ * </pre>
+ */
+public class GoodDataHttpAsyncClient {
+
+    private static final int DEFAULT_MAX_REPLAYS = 2;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final HttpAsyncClient httpClient;
+
+    private final SSTRetrievalStrategy sstStrategy;
+
+    private final Executor sstExecutor;
+
+    private final HttpContext context;
+
+    private final ConcurrentMap<HttpHost, HostAuth> hostAuths = new ConcurrentHashMap<HttpHost, HostAuth>();
+
+    private volatile int maxReplays = DEFAULT_MAX_REPLAYS;
+
+    /**
+     * Construct object.
+     * @param httpClient started HTTP async client
+     * @param sstStrategy super-secure token (SST) obtaining strategy
+     * @param sstExecutor executor used to obtain SST
+     */
+    public GoodDataHttpAsyncClient(final HttpAsyncClient httpClient, final SSTRetrievalStrategy sstStrategy,
+                                   final Executor sstExecutor) {
+        notNull(httpClient, "HTTP client cannot be null");
+        notNull(sstStrategy, "SST strategy cannot be null");
+        notNull(sstExecutor, "SST executor cannot be null");
+        this.httpClient = httpClient;
+        this.sstStrategy = sstStrategy;
+        this.sstExecutor = sstExecutor;
+        context = new BasicHttpContext();
+        final CookieStore cookieStore = new TokenCookieStore();
+        context.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
+    }
+
+    /**
+     * Construct object. SST is obtained in daemon threads created on demand.
+     * @param httpClient started HTTP async client
+     * @param sstStrategy super-secure token (SST) obtaining strategy
+     */
+    public GoodDataHttpAsyncClient(final HttpAsyncClient httpClient, final SSTRetrievalStrategy sstStrategy) {
+        this(httpClient, sstStrategy, createSstExecutor());
+    }
+
+    private static ExecutorService createSstExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "gooddata-sst");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set maximum number of times a request is replayed after it has been rejected by GoodData authentication challenge.
+     * When the request is rejected after the last replay, the future fails with {@link GoodDataAuthException}.
+     * Default is 2.
+     * At least one replay is required, the request rejected by the first challenge is replayed after authentication.
+     * @param maxReplays maximum number of replays
+     */
+    public void setMaxReplays(final int maxReplays) {
+        isTrue(maxReplays >= 1, "Max replays must be positive");
+        this.maxReplays = maxReplays;
+    }
+
+    /**
+     * Get wrapped HTTP async client.
+     * @return HTTP async client
+     */
+    public HttpAsyncClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Execute the request, authenticate and replay it when rejected by GoodData authentication challenge.
+     * @param target target host
+     * @param request HTTP request
+     * @param context context of the execution, its cookie store is ignored as authentication cookies are kept
+     *                by this client, <code>null</code> for none
+     * @param callback callback notified about the result, may be <code>null</code>
+     * @return future response, fails with {@link GoodDataAuthException} when authentication failed,
+     * cancelling it cancels the request in flight
+     */
+    public Future<HttpResponse> execute(final HttpHost target, final HttpRequest request, final HttpContext context,
+                                        final FutureCallback<HttpResponse> callback) {
+        final Exchange exchange = new Exchange(target, request, executionContext(context), callback);
+        exchange.send();
+        return exchange.future;
+    }
+
+    /**
+     * Execute the request, authenticate and replay it when rejected by GoodData authentication challenge.
+     * @param target target host
+     * @param request HTTP request
+     * @param callback callback notified about the result, may be <code>null</code>
+     * @return future response, fails with {@link GoodDataAuthException} when authentication failed
+     */
+    public Future<HttpResponse> execute(final HttpHost target, final HttpRequest request,
+                                        final FutureCallback<HttpResponse> callback) {
+        return execute(target, request, null, callback);
+    }
+
+    /**
+     * Execute the request, authenticate and replay it when rejected by GoodData authentication challenge.
+     * @param request HTTP request with absolute URI
+     * @param context context of the execution, its cookie store is ignored as authentication cookies are kept
+     *                by this client, <code>null</code> for none
+     * @param callback callback notified about the result, may be <code>null</code>
+     * @return future response, fails with {@link GoodDataAuthException} when authentication failed
+     */
+    public Future<HttpResponse> execute(final HttpUriRequest request, final HttpContext context,
+                                        final FutureCallback<HttpResponse> callback) {
+        final URI uri = request.getURI();
+        final HttpHost httpHost = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        return execute(httpHost, request, context, callback);
+    }
+
+    /**
+     * Execute the request, authenticate and replay it when rejected by GoodData authentication challenge.
+     * @param request HTTP request with absolute URI
+     * @param callback callback notified about the result, may be <code>null</code>
+     * @return future response, fails with {@link GoodDataAuthException} when authentication failed
+     */
+    public Future<HttpResponse> execute(final HttpUriRequest request, final FutureCallback<HttpResponse> callback) {
+        return execute(request, null, callback);
+    }
+
+    /**
+     * Create context of single exchange, so attributes the wrapped client writes don't race in the shared context.
+     * @param callerContext context given by the caller or <code>null</code>
+     * @return exchange context
+     */
+    private HttpContext executionContext(final HttpContext callerContext) {
+        return callerContext == null ? new BasicHttpContext(context) : new CallerHttpContext(callerContext, context);
+    }
+
+    private HostAuth hostAuth(final HttpHost httpHost) {
+        HostAuth hostAuth = hostAuths.get(httpHost);
+        if (hostAuth == null) {
+            final HostAuth created = new HostAuth();
+            hostAuth = hostAuths.putIfAbsent(httpHost, created);
+            if (hostAuth == null) {
+                hostAuth = created;
+            }
+        }
+        return hostAuth;
+    }
+
+    /**
+     * Handle challenged exchange. Starts the authentication of its host unless it is already running or has been
+     * performed since the exchange was sent.
+     */
+    private void challenged(final Exchange exchange, final GoodDataChallengeType challenge) {
+        final HostAuth hostAuth = exchange.hostAuth;
+        final boolean authenticate;
+        final GoodDataAuthException lastFailure;
+        synchronized (hostAuth) {
+            if (exchange.generation != hostAuth.generation) {
+                // authenticated since the exchange was sent
+                authenticate = false;
+                lastFailure = hostAuth.failure;
+            } else if (hostAuth.authenticating) {
+                hostAuth.waiting.add(exchange);
+                return;
+            } else {
+                hostAuth.waiting.add(exchange);
+                hostAuth.authenticating = true;
+                authenticate = true;
+                lastFailure = null;
+            }
+        }
+        if (authenticate) {
+            authenticate(exchange.target, hostAuth, challenge);
+        } else {
+            exchange.resume(lastFailure);
+        }
+    }
+
+    private void authenticate(final HttpHost httpHost, final HostAuth hostAuth, final GoodDataChallengeType challenge) {
+        if (challenge == GoodDataChallengeType.TT) {
+            refreshTt(httpHost, hostAuth, new TtCallback() {
+                @Override
+                public void refreshed(final boolean success) {
+                    if (success) {
+                        authenticated(hostAuth, null);
+                    } else {
+                        obtainSst(httpHost, hostAuth);
+                    }
+                }
+            });
+        } else {
+            obtainSst(httpHost, hostAuth);
+        }
+    }
+
+    private void obtainSst(final HttpHost httpHost, final HostAuth hostAuth) {
+        sstExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final String sst = sstStrategy.obtainSst();
+                    CookieUtils.replaceSst(sst, context, httpHost.getHostName());
+                } catch (GoodDataAuthException e) {
+                    authenticated(hostAuth, e);
+                    return;
+                } catch (RuntimeException e) {
+                    authenticated(hostAuth, new GoodDataAuthException("Unable to obtain SST: " + e.getMessage(), e));
+                    return;
+                }
+                refreshTt(httpHost, hostAuth, new TtCallback() {
+                    @Override
+                    public void refreshed(final boolean success) {
+                        authenticated(hostAuth, success ? null : new GoodDataAuthException("Unable to obtain TT after successfully obtained SST"));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Refresh temporary token.
+     * @param httpHost HTTP host
+     * @param hostAuth authentication state of the host, finished when the refresh fails
+     * @param callback receives <code>true</code> when TT refresh was successful, <code>false</code> when SST expired
+     */
+    private void refreshTt(final HttpHost httpHost, final HostAuth hostAuth, final TtCallback callback) {
+        log.debug("Obtaining TT");
+        httpClient.execute(httpHost, new HttpGet(GoodDataHttpClient.TOKEN_URL), executionContext(null), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(final HttpResponse response) {
+                final int status = response.getStatusLine().getStatusCode();
+                try {
+                    EntityUtils.consume(response.getEntity());
+                } catch (IOException e) {
+                    log.debug("Unable to consume TT response", e);
+                }
+                switch (status) {
+                    case HttpStatus.SC_OK:
+                        callback.refreshed(true);
+                        break;
+                    case HttpStatus.SC_UNAUTHORIZED:
+                        callback.refreshed(false);
+                        break;
+                    default:
+                        authenticated(hostAuth, new GoodDataAuthException("Unable to obtain TT, HTTP status: " + status));
+                }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                authenticated(hostAuth, new GoodDataAuthException("Error during temporary token refresh: " + e.getMessage(), e));
+            }
+
+            @Override
+            public void cancelled() {
+                authenticated(hostAuth, new GoodDataAuthException("Temporary token refresh cancelled"));
+            }
+        });
+    }
+
+    /**
+     * Finish the authentication of the host and resume all its waiting exchanges.
+     * @param hostAuth authentication state of the host
+     * @param failure authentication failure or <code>null</code> when authentication succeeded
+     */
+    private void authenticated(final HostAuth hostAuth, final GoodDataAuthException failure) {
+        final List<Exchange> resumed;
+        synchronized (hostAuth) {
+            hostAuth.generation++;
+            hostAuth.failure = failure;
+            hostAuth.authenticating = false;
+            resumed = hostAuth.waiting;
+            hostAuth.waiting = new ArrayList<Exchange>();
+        }
+        for (final Exchange exchange : resumed) {
+            exchange.resume(failure);
+        }
+    }
+
+    private interface TtCallback {
+        void refreshed(boolean success);
+    }
+
+    /**
+     * Authentication state of single host, guarded by itself.
+     */
+    private static final class HostAuth {
+
+        private long generation;
+
+        private boolean authenticating;
+
+        private GoodDataAuthException failure;
+
+        //exchanges waiting for the running authentication
+        private List<Exchange> waiting = new ArrayList<Exchange>();
+    }
+
+    /**
+     * Single request execution including its replays.
+     */
+    private class Exchange implements FutureCallback<HttpResponse> {
+
+        private final HttpHost target;
+
+        private final HttpRequest request;
+
+        private final HttpContext context;
+
+        private final HostAuth hostAuth;
+
+        private final BasicFuture<HttpResponse> future;
+
+        //execution of the wrapped client in flight
+        private volatile Future<HttpResponse> inFlight;
+
+        private int replays;
+
+        private boolean challenged;
+
+        private long generation;
+
+        private Exchange(final HttpHost target, final HttpRequest request, final HttpContext context,
+                         final FutureCallback<HttpResponse> callback) {
+            this.target = target;
+            this.request = request;
+            this.context = context;
+            this.hostAuth = hostAuth(target);
+            this.future = new BasicFuture<HttpResponse>(callback) {
+                @Override
+                public boolean cancel(final boolean mayInterruptIfRunning) {
+                    if (!super.cancel(mayInterruptIfRunning)) {
+                        return false;
+                    }
+                    cancelInFlight();
+                    return true;
+                }
+            };
+        }
+
+        private void send() {
+            if (future.isDone()) {
+                return;
+            }
+            synchronized (hostAuth) {
+                if (hostAuth.authenticating) {
+                    hostAuth.waiting.add(this);
+                    return;
+                }
+                generation = hostAuth.generation;
+            }
+            inFlight = httpClient.execute(target, request, context, this);
+            if (future.isCancelled()) {
+                // cancelled while being sent
+                cancelInFlight();
+            }
+        }
+
+        private void cancelInFlight() {
+            final Future<HttpResponse> execution = inFlight;
+            if (execution != null) {
+                execution.cancel(true);
+            }
+        }
+
+        private void resume(final GoodDataAuthException failure) {
+            if (future.isDone()) {
+                return;
+            }
+            if (challenged && failure != null) {
+                future.failed(failure);
+            } else {
+                challenged = false;
+                send();
+            }
+        }
+
+        @Override
+        public void completed(final HttpResponse response) {
+            final GoodDataChallengeType challenge = GoodDataChallengeType.identify(response);
+            if (challenge == GoodDataChallengeType.UNKNOWN) {
+                if (!future.completed(response)) {
+                    // cancelled meanwhile, nobody reads the response
+                    EntityUtils.consumeQuietly(response.getEntity());
+                }
+                return;
+            }
+            try {
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException e) {
+                future.failed(e);
+                return;
+            }
+            if (replays >= maxReplays) {
+                future.failed(new GoodDataAuthException("Request rejected by " + challenge + " challenge after " + replays + " replays"));
+                return;
+            }
+            replays++;
+            challenged = true;
+            challenged(this, challenge);
+        }
+
+        @Override
+        public void failed(final Exception e) {
+            future.failed(e);
+        }
+
+        @Override
+        public void cancelled() {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClient;
+import org.apache.http.impl.client.cache.FileResourceFactory;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+import org.apache.http.impl.client.cache.ManagedHttpCacheStorage;
+
+import java.io.File;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>HTTP response cache shared by GoodData sessions, requires optional <code>httpclient-cache</code> dependency.</p>
+ *
+ * <p>Cache entries are kept per identity in single bounded LRU storage, response bodies are kept in memory or
+ * in files of the given directory. Responses are cached according to ETag, Last-Modified and Cache-Control headers
+ * and revalidated by conditional requests. The cache wraps {@link GoodDataHttpClient}, so the authentication
+ * challenge received during revalidation is handled by TT refresh and the cached entry is kept.</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * GoodDataHttpCache cache = new GoodDataHttpCache(10000, 1024 * 1024);
+ * HttpClient client = cache.wrap(new GoodDataHttpClient(httpClient, sstStrategy), "user@domain.com");
+ * </pre>
+ */
+public class GoodDataHttpCache {
+
+    private final CacheConfig config;
+
+    private final ResourceFactory resourceFactory;
+
+    private final ManagedHttpCacheStorage storage;
+
+    /**
+     * Construct in-memory cache.
+     * @param maxEntries maximum number of cached responses of all identities
+     * @param maxObjectSize maximum size of cached response body in bytes
+     */
+    public GoodDataHttpCache(final int maxEntries, final long maxObjectSize) {
+        this(maxEntries, maxObjectSize, null);
+    }
+
+    /**
+     * Construct cache keeping response bodies in files.
+     * @param maxEntries maximum number of cached responses of all identities
+     * @param maxObjectSize maximum size of cached response body in bytes
+     * @param directory directory of the response bodies, <code>null</code> to keep them in memory
+     */
+    public GoodDataHttpCache(final int maxEntries, final long maxObjectSize, final File directory) {
+        isTrue(maxEntries > 0, "Max entries must be positive");
+        isTrue(maxObjectSize > 0, "Max object size must be positive");
+        config = new CacheConfig();
+        config.setMaxCacheEntries(maxEntries);
+        config.setMaxObjectSize(maxObjectSize);
+        // responses are private to the identity
+        config.setSharedCache(false);
+        resourceFactory = directory != null ? new FileResourceFactory(directory) : new HeapResourceFactory();
+        storage = new ManagedHttpCacheStorage(config);
+    }
+
+    /**
+     * Wrap client of the identity into caching client.
+     * @param client client authenticated as the identity
+     * @param identity identity, e.g. user login
+     * @return caching HTTP client
+     */
+    public HttpClient wrap(final HttpClient client, final String identity) {
+        notNull(client, "Client cannot be null");
+        notNull(identity, "Identity cannot be null");
+        return new CachingHttpClient(client, resourceFactory, new IdentityCacheStorage(storage, identity), config);
+    }
+
+    /**
+     * Release resources (files) of the entries evicted from the cache. Called also on every cache update.
+     */
+    public void cleanResources() {
+        storage.cleanResources();
+    }
+
+    /**
+     * Release resources of all entries, the cache must not be used afterwards.
+     */
+    public void shutdown() {
+        storage.shutdown();
+    }
+}
@@ -6,33 +6,46 @@ package com.gooddata.http.client;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.auth.AUTH;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.NonRepeatableRequestException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.protocol.ResponseContentEncoding;
 import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
 
 /**
  * <p>Http client with ability to handle GoodData authentication.</p>
@@ -77,15 +90,28 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class GoodDataHttpClient implements HttpClient {
 
-    private static final String TOKEN_URL = "/gdc/account/token";
+    static final String TOKEN_URL = "/gdc/account/token";
     public static final String COOKIE_GDC_AUTH_TT = "cookie=GDCAuthTT";
     public static final String COOKIE_GDC_AUTH_SST = "cookie=GDCAuthSST";
+    /**
+     * @deprecated the lock is no longer stored in the HTTP context
+     */
+    @Deprecated
     public static final String LOCK_RW = "gooddata.lock.rw";
+    /**
+     * @deprecated the lock is no longer stored in the HTTP context
+     */
+    @Deprecated
     public static final String LOCK_AUTH = "gooddata.lock.auth";
 
-    private enum GoodDataChallengeType {
-        SST, TT, UNKNOWN;
-    }
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final String ACCEPTED_ENCODINGS = "gzip,deflate";
+
+    private static final ResponseContentEncoding RESPONSE_CONTENT_ENCODING = new ResponseContentEncoding();
+    private static final long DEFAULT_TT_REFRESH_MARGIN_SECONDS = 30;
+    private static final int DEFAULT_MAX_REPLAYS = 2;
+    private static final long PREFLIGHT_MARGIN_MILLIS = 60 * 1000;
 
     private final Log log = LogFactory.getLog(getClass());
 
@@ -93,8 +119,42 @@ public class GoodDataHttpClient implements HttpClient {
 
     private final SSTRetrievalStrategy sstStrategy;
 
+    //shared authentication context holding the cookie store, read-only after construction
     private final HttpContext context;
 
+    //authentication state is kept per host, so authentication against one host never blocks the others
+    private final ConcurrentMap<HttpHost, HostAuth> hostAuths = new ConcurrentHashMap<HttpHost, HostAuth>();
+
+    private final TtRefreshScheduler.Refresh ttRefresh = new TtRefreshScheduler.Refresh() {
+        @Override
+        public void refresh(final HttpHost httpHost) {
+            log.debug("Refreshing TT before expiry");
+            refreshAuthentication(httpHost);
+        }
+    };
+
+    private volatile ScheduledExecutorService ttRefreshExecutor;
+
+    private volatile long ttRefreshMarginMillis;
+
+    private volatile int maxReplays = DEFAULT_MAX_REPLAYS;
+
+    private volatile EntityReplayPolicy entityReplayPolicy = EntityReplayPolicy.NONE;
+
+    private volatile boolean responseCompression;
+
+    private volatile boolean requestCompression;
+
+    private volatile RetryPolicy retryPolicy;
+
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    private volatile RateLimiter rateLimiter;
+
+    private volatile TokenSnapshotStore tokenSnapshotStore;
+
+    private volatile GoodDataAuthListener authListener = new GoodDataAuthListenerAdapter();
+
     /**
      * Construct object.
      * @param httpClient Http client
@@ -104,14 +164,8 @@ public class GoodDataHttpClient implements HttpClient {
         this.httpClient = httpClient;
         this.sstStrategy = sstStrategy;
         context = new BasicHttpContext();
-        final CookieStore cookieStore = new BasicCookieStore();
+        final CookieStore cookieStore = new TokenCookieStore();
         context.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
-
-        //this lock is used to ensure that no threads will try to send requests while authentication is performed
-        context.setAttribute(LOCK_RW, new ReentrantReadWriteLock());
-
-        //this lock guards that only one thread enters the authentication (obtaining TT/SST) section
-        context.setAttribute(LOCK_AUTH, new ReentrantLock());
     }
 
     /**
@@ -119,71 +173,332 @@ public class GoodDataHttpClient implements HttpClient {
      * @param sstStrategy super-secure token (SST) obtaining strategy
      */
     public GoodDataHttpClient(final SSTRetrievalStrategy sstStrategy) {
-        this(new DefaultHttpClient(), sstStrategy);
-    }
-
-    private GoodDataChallengeType identifyGoodDataChallenge(final HttpResponse response) {
-        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
-            final Header[] headers = response.getHeaders(AUTH.WWW_AUTH);
-            if (headers != null) {
-                for (final Header header : headers) {
-                    final String challenge = header.getValue();
-                    if (challenge.contains(COOKIE_GDC_AUTH_SST)) {
-                        return GoodDataChallengeType.SST;
-                    } else if (challenge.contains(COOKIE_GDC_AUTH_TT)) {
-                        return GoodDataChallengeType.TT;
-                    }
-                }
+        this(createHttpClient(), sstStrategy);
+    }
+
+    private static HttpClient createHttpClient() {
+        final DefaultHttpClient httpClient = new DefaultHttpClient();
+        RequestAddTokenCookies.install(httpClient);
+        return httpClient;
+    }
+
+    private HostAuth hostAuth(final HttpHost httpHost) {
+        HostAuth hostAuth = hostAuths.get(httpHost);
+        if (hostAuth == null) {
+            final HostAuth created = new HostAuth();
+            hostAuth = hostAuths.putIfAbsent(httpHost, created);
+            if (hostAuth == null) {
+                hostAuth = created;
             }
         }
-        return GoodDataChallengeType.UNKNOWN;
+        return hostAuth;
     }
 
-    private HttpResponse handleResponse(final HttpHost httpHost, final HttpRequest request, final HttpResponse originalResponse, final HttpContext context) throws IOException {
-        final GoodDataChallengeType challenge = identifyGoodDataChallenge(originalResponse);
-        if (challenge == GoodDataChallengeType.UNKNOWN) {
-            return originalResponse;
+    /**
+     * Perform authentication required by the challenge. Only one thread authenticates the host, others challenged
+     * meanwhile wait for it and fail with the same exception when it fails.
+     * @param hostAuth authentication state of the host
+     * @param httpHost HTTP host
+     * @param challenge challenge received from the server
+     * @param generation auth gate generation the challenged request was sent in
+     * @throws GoodDataAuthException error
+     */
+    private void handleChallenge(final HostAuth hostAuth, final HttpHost httpHost, final GoodDataChallengeType challenge,
+                                 final long generation) {
+        final TtRefreshScheduler scheduler = hostAuth.ttRefreshScheduler;
+        if (scheduler != null && challenge == GoodDataChallengeType.TT) {
+            scheduler.ttExpired();
         }
-        EntityUtils.consume(originalResponse.getEntity());
+        final AuthGate authGate = hostAuth.gate;
 
-        final Lock authLock = (Lock) context.getAttribute(LOCK_AUTH);
-        final boolean entered = authLock != null ? authLock.tryLock() : true;
+        // skip authentication when some other thread has authenticated since the request was sent
+        final long start = System.nanoTime();
+        final boolean closed = authGate.close(generation);
+        authListener.authWait(System.nanoTime() - start);
+        if (closed) {
+            GoodDataAuthException failure = null;
+            try {
+                authenticate(httpHost, challenge);
+            } catch (GoodDataAuthException e) {
+                failure = e;
+                throw e;
+            } finally {
+                authGate.open(failure);
+            }
+        } else {
+            final GoodDataAuthException failure = authGate.failure();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
 
-        if (entered) {
+    /**
+     * Obtain new TT (and SST if needed). Caller must be in the authentication section of the auth gate.
+     * @param httpHost HTTP host
+     * @param challenge challenge received from the server
+     * @throws GoodDataAuthException error
+     */
+    private void authenticate(final HttpHost httpHost, final GoodDataChallengeType challenge) {
+        if (challenge == GoodDataChallengeType.TT && refreshTt(httpHost)) {
+            return;
+        }
+        final String sst = obtainSst();
+        CookieUtils.replaceSstCookie(sst, cookieStore(), httpHost.getHostName());
+        if (!refreshTt(httpHost)) {
+            throw new GoodDataAuthException("Unable to obtain TT after successfully obtained SST");
+        }
+    }
+
+    private String obtainSst() {
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final String sst = sstStrategy.obtainSst();
+            success = true;
+            return sst;
+        } finally {
+            authListener.sstRetrieval(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Refresh TT while the current TT is still valid, so requests are not blocked meanwhile. Performs TT request
+     * under the authentication lock of the host, callers arriving meanwhile wait and share its result.
+     * @param httpHost HTTP host
+     * @throws GoodDataAuthException error
+     */
+    private void refreshAuthentication(final HttpHost httpHost) {
+        final AuthGate authGate = hostAuth(httpHost).gate;
+        if (!authGate.lock(authGate.generation())) {
+            return;
+        }
+        boolean authenticated = false;
+        try {
+            authenticate(httpHost, GoodDataChallengeType.TT);
+            authenticated = true;
+        } finally {
+            authGate.unlock(authenticated);
+        }
+    }
+
+    /**
+     * Set maximum number of times a request is replayed after it has been rejected by GoodData authentication challenge.
+     * When the request is rejected after the last replay, {@link GoodDataAuthException} is thrown. Default is 2.
+     * At least one replay is required, the request rejected by the first challenge is replayed after authentication.
+     * @param maxReplays maximum number of replays
+     */
+    public void setMaxReplays(final int maxReplays) {
+        isTrue(maxReplays >= 1, "Max replays must be positive");
+        this.maxReplays = maxReplays;
+    }
+
+    /**
+     * Set listener of the authentication events, e.g. {@link GoodDataAuthMetrics}.
+     * By default the events are ignored.
+     * @param authListener authentication listener
+     */
+    public void setAuthListener(final GoodDataAuthListener authListener) {
+        notNull(authListener, "Auth listener cannot be null");
+        this.authListener = authListener;
+    }
+
+    /**
+     * Set store of the authentication cookies snapshot. Authentication cookies are restored from the snapshot
+     * immediately and saved whenever new TT is obtained, so restarted process does not need to log in again
+     * unless the restored cookies are rejected by the server.
+     * @param tokenSnapshotStore snapshot store or <code>null</code> to stop saving snapshots
+     */
+    public void setTokenSnapshotStore(final TokenSnapshotStore tokenSnapshotStore) {
+        this.tokenSnapshotStore = tokenSnapshotStore;
+        if (tokenSnapshotStore != null) {
+            tokenSnapshotStore.restore(cookieStore());
+        }
+    }
+
+    private void saveTokenSnapshot() {
+        final TokenSnapshotStore store = tokenSnapshotStore;
+        if (store != null) {
             try {
-                //only one thread requiring authentication will get here.
-                final ReadWriteLock rwLock = (ReadWriteLock) context.getAttribute(LOCK_RW);
-                Lock writeLock = null;
-                if (rwLock != null) {
-                    writeLock = rwLock.writeLock();
-                    writeLock.lock();
-                }
-                boolean doSST = true;
-                try {
-                    if (challenge == GoodDataChallengeType.TT) {
-                        if (this.refreshTt(httpHost)) {
-                            doSST = false;
-                        }
-                    }
-                    if (doSST) {
-                        final String sst = sstStrategy.obtainSst();
-                        CookieUtils.replaceSst(sst, context, httpHost.getHostName());
-                        if (!refreshTt(httpHost)) {
-                            throw new GoodDataAuthException("Unable to obtain TT after successfully obtained SST");
-                        }
-                    }
-                } finally {
-                    if (writeLock != null) {
-                        writeLock.unlock();
-                    }
+                store.save(cookieStore());
+            } catch (IOException e) {
+                log.warn("Unable to save authentication snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * Create context of single execution. Attributes the wrapped client writes during the execution stay in it,
+     * the shared authentication context holding the cookie store is only read, so concurrent executions don't race.
+     * @param callerContext context given by the caller, its attributes take precedence over the shared ones
+     *                      except the cookie store, which is always the authentication one
+     * @return execution context
+     */
+    private HttpContext executionContext(final HttpContext callerContext) {
+        return callerContext == null ? new BasicHttpContext(context) : new CallerHttpContext(callerContext, context);
+    }
+
+    private CookieStore cookieStore() {
+        return (CookieStore) context.getAttribute(ClientContext.COOKIE_STORE);
+    }
+
+    /**
+     * Set how requests enclosing an entity are prepared for replay after GoodData authentication challenge.
+     * Default is {@link EntityReplayPolicy#NONE}.
+     * @param entityReplayPolicy entity replay policy
+     */
+    public void setEntityReplayPolicy(final EntityReplayPolicy entityReplayPolicy) {
+        notNull(entityReplayPolicy, "Entity replay policy cannot be null");
+        this.entityReplayPolicy = entityReplayPolicy;
+    }
+
+    /**
+     * Set whether compressed responses are requested. When enabled, requests without <code>Accept-Encoding</code>
+     * header accept gzip and deflate encoded responses, which are decompressed while their entity is read.
+     * Default is <code>false</code>.
+     * @param responseCompression <code>true</code> to request compressed responses
+     */
+    public void setResponseCompression(final boolean responseCompression) {
+        this.responseCompression = responseCompression;
+    }
+
+    /**
+     * Set whether request entities are gzip compressed. Entities without content encoding are compressed once before
+     * they are sent when they can be replayed, i.e. repeatable ones or with {@link EntityReplayPolicy#SPOOL}, so
+     * replays after authentication challenge don't compress them again. Compressed content up to 64 kB is kept
+     * on heap, larger is spooled to temporary file. Other non-repeatable entities are compressed while they are sent.
+     * Default is <code>false</code>.
+     * @param requestCompression <code>true</code> to compress request entities
+     */
+    public void setRequestCompression(final boolean requestCompression) {
+        this.requestCompression = requestCompression;
+    }
+
+    /**
+     * Set retry of idempotent requests failed by transient I/O error or 502, 503 and 504 response.
+     * Replays after authentication challenge are withdrawn from the same {@link RetryBudget}.
+     * No retries are performed by default.
+     * The policy applies only to requests executed by this client, the wrapped client (possibly shared) is left
+     * untouched. Configure it not to retry by itself, e.g. by
+     * <code>setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false))</code>, so the retries don't stack.
+     * @param retryPolicy retry policy, <code>null</code> to disable retries
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Set adaptive limit of concurrent requests per host. Each attempt (retry or replay) is admitted separately,
+     * requests over the limit fail with {@link ConcurrencyLimitException} before taking a connection.
+     * Request stays in flight until the entity of its response is consumed or closed, or the connection of the request
+     * is released or aborted. Limit changes are reported to the {@link #setAuthListener(GoodDataAuthListener)
+     * authentication listener}. No limit is applied by default.
+     * @param concurrencyLimiter concurrency limiter, may be shared by more clients, <code>null</code> for no limit
+     */
+    public void setConcurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Set client-side rate limit of requests per host and endpoint. Each attempt (retry or replay) takes a permit,
+     * requests not getting it within the maximum wait of the limiter fail with {@link RateLimitException}.
+     * No limit is applied by default.
+     * @param rateLimiter rate limiter, may be shared by more clients, <code>null</code> for no limit
+     */
+    public void setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Enable refreshing of the temporary token (TT) in background shortly before it expires, so requests
+     * don't have to wait for the TT challenge round-trip. TT lifetime is taken from the TT cookie expiry or learned
+     * from observed TT challenges. Refresh on challenge is still performed when the background refresh fails.
+     * @param scheduler executor running the refresh, managed by the caller
+     * @param margin how long before the expiry the TT is refreshed
+     * @param unit time unit of the margin
+     */
+    public void enableProactiveTtRefresh(final ScheduledExecutorService scheduler, final long margin, final TimeUnit unit) {
+        notNull(scheduler, "Executor cannot be null");
+        notNull(unit, "Time unit cannot be null");
+        isTrue(margin >= 0, "Margin cannot be negative");
+        disableProactiveTtRefresh();
+        ttRefreshMarginMillis = unit.toMillis(margin);
+        ttRefreshExecutor = scheduler;
+    }
+
+    /**
+     * Enable refreshing of the temporary token (TT) in background 30 seconds before it expires.
+     * @param scheduler executor running the refresh, managed by the caller
+     * @see #enableProactiveTtRefresh(ScheduledExecutorService, long, TimeUnit)
+     */
+    public void enableProactiveTtRefresh(final ScheduledExecutorService scheduler) {
+        enableProactiveTtRefresh(scheduler, DEFAULT_TT_REFRESH_MARGIN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Disable background refresh of the temporary token (TT) and cancel the scheduled refresh.
+     */
+    public void disableProactiveTtRefresh() {
+        ttRefreshExecutor = null;
+        for (final HostAuth hostAuth : hostAuths.values()) {
+            synchronized (hostAuth) {
+                if (hostAuth.ttRefreshScheduler != null) {
+                    hostAuth.ttRefreshScheduler.cancel();
+                    hostAuth.ttRefreshScheduler = null;
                 }
-            } finally {
-                if (authLock != null) {
-                    authLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * TT refresh scheduler of the host, created on demand while the proactive refresh is enabled.
+     * @return scheduler or <code>null</code> when the proactive refresh is disabled
+     */
+    private TtRefreshScheduler ttRefreshScheduler(final HttpHost httpHost) {
+        final HostAuth hostAuth = hostAuth(httpHost);
+        final TtRefreshScheduler scheduler = hostAuth.ttRefreshScheduler;
+        final ScheduledExecutorService executor = ttRefreshExecutor;
+        if (scheduler != null || executor == null) {
+            return scheduler;
+        }
+        synchronized (hostAuth) {
+            if (hostAuth.ttRefreshScheduler == null) {
+                hostAuth.ttRefreshScheduler = new TtRefreshScheduler(executor, ttRefreshMarginMillis, ttRefresh);
+            }
+            return hostAuth.ttRefreshScheduler;
+        }
+    }
+
+    /**
+     * Tell whether TT must be refreshed before the request entity is sent, i.e. TT of the host is unknown
+     * or expires within a minute. TT without expiry is considered valid for a minute after it has been obtained.
+     */
+    private boolean preflightNeeded(final HttpHost httpHost) {
+        final long now = System.currentTimeMillis();
+        final Date expiry = ttExpiry(httpHost);
+        if (expiry != null) {
+            return expiry.getTime() - now < PREFLIGHT_MARGIN_MILLIS;
+        }
+        return now - hostAuth(httpHost).ttObtainedAt >= PREFLIGHT_MARGIN_MILLIS;
+    }
+
+    /**
+     * @return expiry of the TT cookie of the host, <code>null</code> when unknown
+     */
+    private Date ttExpiry(final HttpHost httpHost) {
+        Date parentDomainExpiry = null;
+        for (final Cookie cookie : cookieStore().getCookies()) {
+            if (CookieUtils.TT_COOKIE_NAME.equals(cookie.getName()) && cookie.getDomain() != null) {
+                final String domain = cookie.getDomain().startsWith(".") ? cookie.getDomain().substring(1) : cookie.getDomain();
+                final String hostName = httpHost.getHostName();
+                if (hostName.equalsIgnoreCase(domain)) {
+                    return cookie.getExpiryDate();
+                } else if (hostName.toLowerCase(Locale.US).endsWith("." + domain.toLowerCase(Locale.US))) {
+                    parentDomainExpiry = cookie.getExpiryDate();
                 }
             }
         }
-        return this.execute(httpHost, request, context);
+        return parentDomainExpiry;
     }
 
     /**
@@ -198,13 +513,21 @@ public class GoodDataHttpClient implements HttpClient {
      */
     private boolean refreshTt(final HttpHost httpHost) {
         log.debug("Obtaining TT");
-        final boolean result;
         final HttpGet getTT = new HttpGet(TOKEN_URL);
+        final long start = System.nanoTime();
+        boolean success = false;
         try {
-            final HttpResponse response = httpClient.execute(httpHost, getTT, context);
+            final HttpResponse response = httpClient.execute(httpHost, getTT, executionContext(null));
             final int status = response.getStatusLine().getStatusCode();
             switch (status) {
                 case HttpStatus.SC_OK:
+                    hostAuth(httpHost).ttObtainedAt = System.currentTimeMillis();
+                    final TtRefreshScheduler scheduler = ttRefreshScheduler(httpHost);
+                    if (scheduler != null) {
+                        scheduler.ttRefreshed(httpHost, ttExpiry(httpHost));
+                    }
+                    saveTokenSnapshot();
+                    success = true;
                     return true;
                 case HttpStatus.SC_UNAUTHORIZED:
                     return false;
@@ -215,6 +538,7 @@ public class GoodDataHttpClient implements HttpClient {
             throw new GoodDataAuthException("Error during temporary token refresh: " + e.getMessage(), e);
         } finally {
             getTT.releaseConnection();
+            authListener.ttRefresh(System.nanoTime() - start, success);
         }
     }
 
@@ -230,18 +554,22 @@ public class GoodDataHttpClient implements HttpClient {
 
     @Override
     public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException, ClientProtocolException {
-        return execute(target, request, context);
+        return execute(target, request, (HttpContext) null);
     }
 
     @Override
     public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
-        return execute(target, request, responseHandler, context);
+        return execute(target, request, responseHandler, null);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>The context is used as in {@link #execute(HttpHost, HttpRequest, HttpContext)}, the cookie store
+     * ({@link ClientContext#COOKIE_STORE}) of the context is ignored.</p>
+     */
     @Override
     public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> responseHandler, HttpContext context) throws IOException {
-        HttpResponse resp = execute(target, request, context);
-        return responseHandler.handleResponse(resp);
+        return handle(execute(target, request, context), responseHandler);
     }
 
     @Override
@@ -249,6 +577,11 @@ public class GoodDataHttpClient implements HttpClient {
         return execute(request, (HttpContext) null);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>The context is used as in {@link #execute(HttpHost, HttpRequest, HttpContext)}, the cookie store
+     * ({@link ClientContext#COOKIE_STORE}) of the context is ignored.</p>
+     */
     @Override
     public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
         final URI uri = request.getURI();
@@ -259,36 +592,258 @@ public class GoodDataHttpClient implements HttpClient {
 
     @Override
     public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
-        return execute(request, responseHandler, context);
+        return execute(request, responseHandler, null);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>The context is used as in {@link #execute(HttpHost, HttpRequest, HttpContext)}, the cookie store
+     * ({@link ClientContext#COOKIE_STORE}) of the context is ignored.</p>
+     */
     @Override
     public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler, HttpContext context)
             throws IOException {
-        final HttpResponse resp = execute(request, context);
-        return responseHandler.handleResponse(resp);
+        return handle(execute(request, context), responseHandler);
     }
 
+    /**
+     * Handle the response and consume its entity, even when the handler ignores it.
+     */
+    private static <T> T handle(final HttpResponse response, final ResponseHandler<? extends T> responseHandler) throws IOException {
+        try {
+            return responseHandler.handleResponse(response);
+        } finally {
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Attributes the wrapped client writes during the execution are set to the given context. The cookie store
+     * ({@link ClientContext#COOKIE_STORE}) of the context is never used, requests are always executed with
+     * the cookie store holding GoodData tokens of this client, so cookies of the caller's store are neither
+     * sent nor updated.</p>
+     */
     @Override
     public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
-        if (context == null) {
-            context = this.context;
+        context = executionContext(context);
+        final boolean negotiateEncoding = responseCompression && !request.containsHeader(ACCEPT_ENCODING);
+        if (!negotiateEncoding) {
+            return executeEntityRequest(target, request, context);
+        }
+        request.addHeader(ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        try {
+            final HttpResponse response = executeEntityRequest(target, request, context);
+            decompress(response, context);
+            return response;
+        } finally {
+            request.removeHeaders(ACCEPT_ENCODING);
+        }
+    }
+
+    /**
+     * Replace entity of the compressed response by decompressing one.
+     */
+    private static void decompress(final HttpResponse response, final HttpContext context) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        try {
+            RESPONSE_CONTENT_ENCODING.process(response, context);
+        } catch (HttpException e) {
+            EntityUtils.consume(entity);
+            throw new ClientProtocolException(e);
+        }
+        if (response.getEntity() != entity) {
+            response.removeHeaders(HTTP.CONTENT_LEN);
+            response.removeHeaders(HTTP.CONTENT_ENCODING);
+            response.removeHeaders("Content-MD5");
         }
-        final ReadWriteLock rwLock = (ReadWriteLock) context.getAttribute(LOCK_RW);
-        Lock readLock = null;
-        if (rwLock != null) {
-            readLock = rwLock.readLock();
-            readLock.lock();
+    }
+
+    private HttpResponse executeEntityRequest(final HttpHost target, final HttpRequest request, final HttpContext context)
+            throws IOException {
+        final HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        if (entity == null) {
+            return executeWithReplays(target, request, context, null);
         }
 
-        final HttpResponse resp;
+        final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+        final Object expectContinue = request.getParams().getParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE);
+        final boolean compress = requestCompression && entity.getContentEncoding() == null;
+        SpooledEntity spooled = null;
         try {
-            resp = this.httpClient.execute(target, request, context);
+            switch (entityReplayPolicy) {
+                case EXPECT_CONTINUE:
+                    request.getParams().setBooleanParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE, true);
+                    break;
+                case PREFLIGHT:
+                    if (preflightNeeded(target)) {
+                        log.debug("Refreshing TT before sending request entity");
+                        refreshAuthentication(target);
+                    }
+                    break;
+                case SPOOL:
+                    if (!entity.isRepeatable() && !compress) {
+                        spooled = SpooledEntity.spool(entity);
+                        entityRequest.setEntity(spooled);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (compress) {
+                if (entity.isRepeatable() || entityReplayPolicy == EntityReplayPolicy.SPOOL) {
+                    // compressed once, replays resend the compressed content
+                    final HttpEntity compressed = GzipCompressor.compressOnce(entity);
+                    if (compressed instanceof SpooledEntity) {
+                        spooled = (SpooledEntity) compressed;
+                    }
+                    entityRequest.setEntity(compressed);
+                } else {
+                    entityRequest.setEntity(GzipCompressor.compress(entity));
+                }
+            }
+            SentTrackingEntity tracked = null;
+            if (!entityRequest.getEntity().isRepeatable()) {
+                tracked = new SentTrackingEntity(entityRequest.getEntity());
+                entityRequest.setEntity(tracked);
+            }
+            return executeWithReplays(target, request, context, tracked);
         } finally {
-            if (readLock != null) {
-                readLock.unlock();
+            entityRequest.setEntity(entity);
+            if (expectContinue == null) {
+                request.getParams().removeParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE);
+            } else {
+                request.getParams().setParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE, expectContinue);
+            }
+            if (spooled != null) {
+                spooled.release();
+            }
+        }
+    }
+
+    /**
+     * Execute the request and replay it after GoodData authentication challenge.
+     * @param tracked non-repeatable entity of the request, <code>null</code> when request has no such entity
+     */
+    private HttpResponse executeWithReplays(final HttpHost target, final HttpRequest request, final HttpContext context,
+                                            final SentTrackingEntity tracked) throws IOException {
+        final HostAuth hostAuth = hostAuth(target);
+        final RetryPolicy retryPolicy = this.retryPolicy;
+        final ConcurrencyLimiter concurrencyLimiter = this.concurrencyLimiter;
+        final RateLimiter rateLimiter = this.rateLimiter;
+        final String path = rateLimiter == null ? null : RateLimiter.path(request);
+        if (retryPolicy != null) {
+            retryPolicy.getBudget().deposit();
+        }
+        int retries = 0;
+        int replays = 0;
+        while (true) {
+            if (rateLimiter != null) {
+                rateLimiter.admit(target, path);
+            }
+            final GoodDataAuthListener listener = authListener;
+            final long generation = hostAuth.gate.enter(listener);
+            final ConcurrencyLimiter.Permit permit = concurrencyLimiter == null ? null : concurrencyLimiter.acquire(target, listener);
+            final HttpResponse response;
+            try {
+                response = this.httpClient.execute(target, request, context);
+            } catch (IOException e) {
+                if (permit != null) {
+                    permit.failed(e);
+                }
+                final long backoff = RetryPolicy.isTransient(e) ? retryBackoff(retryPolicy, request, tracked, retries, -1) : -1;
+                if (backoff < 0) {
+                    throw e;
+                }
+                log.debug("Retrying request after transient error", e);
+                sleep(backoff);
+                retries++;
+                continue;
+            } catch (RuntimeException e) {
+                if (permit != null) {
+                    permit.release();
+                }
+                throw e;
+            }
+            if (permit != null) {
+                final Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                permit.completed(request, response,
+                        connection instanceof ConnectionReleaseTrigger ? (ConnectionReleaseTrigger) connection : null);
+            }
+            if (rateLimiter != null) {
+                rateLimiter.update(target, path, response);
+            }
+            final GoodDataChallengeType challenge = GoodDataChallengeType.identify(response);
+            if (challenge == GoodDataChallengeType.UNKNOWN) {
+                final int status = response.getStatusLine().getStatusCode();
+                final long backoff = RetryPolicy.isTransient(status) ? retryBackoff(retryPolicy, request, tracked, retries,
+                        RetryPolicy.retryAfterMillis(response, System.currentTimeMillis())) : -1;
+                if (backoff >= 0) {
+                    log.debug("Retrying request after HTTP status " + status);
+                    // release the connection before waiting
+                    EntityUtils.consume(response.getEntity());
+                    sleep(backoff);
+                    retries++;
+                    continue;
+                }
+                return response;
             }
+            listener.challenge(challenge);
+            EntityUtils.consume(response.getEntity());
+            if (replays >= maxReplays) {
+                throw new GoodDataAuthException("Request rejected by " + challenge + " challenge after " + replays + " replays");
+            }
+            handleChallenge(hostAuth, target, challenge, generation);
+            if (tracked != null && tracked.isSent()) {
+                throw new ClientProtocolException(new NonRepeatableRequestException("Cannot replay request with "
+                        + "non-repeatable entity after " + challenge + " challenge, use " + EntityReplayPolicy.class.getSimpleName()));
+            }
+            if (retryPolicy != null) {
+                retryPolicy.getBudget().withdraw();
+            }
+            replays++;
+            listener.replay();
         }
-        return handleResponse(target, request, resp, context);
+    }
+
+    /**
+     * Delay of retry of the failed request, withdrawn from the budget when the retry is allowed.
+     * @param retryAfterMillis delay requested by the server, -1 for none
+     * @return delay in milliseconds, -1 when the request should not be retried
+     */
+    private static long retryBackoff(final RetryPolicy retryPolicy, final HttpRequest request, final SentTrackingEntity tracked,
+                                     final int retries, final long retryAfterMillis) {
+        if (retryPolicy == null || !retryPolicy.isRetryable(request, retries) || (tracked != null && tracked.isSent())) {
+            return -1;
+        }
+        final long backoff = retryPolicy.backoffMillis(retries, retryAfterMillis);
+        if (backoff < 0 || !retryPolicy.getBudget().tryWithdraw()) {
+            return -1;
+        }
+        return backoff;
+    }
+
+    private static void sleep(final long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for retry");
+        }
+    }
+
+    /**
+     * Authentication state of single host.
+     */
+    private static final class HostAuth {
+
+        //requests to the host wait on this gate only while the host authentication is performed
+        private final AuthGate gate = new AuthGate();
+
+        private volatile TtRefreshScheduler ttRefreshScheduler;
+
+        //time the last TT has been obtained, 0 when none
+        private volatile long ttObtainedAt;
     }
 }
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Registry of GoodData sessions of many users sharing single HTTP client and its connection pool.</p>
+ *
+ * <p>Each registered identity gets its own lightweight session ({@link GoodDataHttpClient} with own cookies and
+ * authentication state) created on demand. Least recently used sessions are evicted when there are too many of them
+ * or when they are idle for too long, evicted session is recreated (and re-authenticated) on next use.
+ * Sessions are looked up without locking, idle sessions are swept at most once per the maximum idle time
+ * and overflowing sessions are evicted only when a session is created.</p>
+ *
+ * <p>Registry itself implements {@link HttpClient}, the identity of each request is selected by
+ * {@link #IDENTITY} attribute of the HTTP context. The context is passed to the session, see
+ * {@link GoodDataHttpClient#execute(HttpHost, HttpRequest, HttpContext)}.</p>
+ *
+ * <p>Sessions may share {@link GoodDataHttpCache}, see {@link #setHttpCache(GoodDataHttpCache)}.</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * GoodDataSessionRegistry registry = new GoodDataSessionRegistry(1000, 30, TimeUnit.MINUTES);
+ * registry.register("user@domain.com", new LoginSSTRetrievalStrategy(...));
+ *
+ * HttpContext context = new BasicHttpContext();
+ * context.setAttribute(GoodDataSessionRegistry.IDENTITY, "user@domain.com");
+ * HttpResponse response = registry.execute(httpHost, new HttpGet("/gdc/projects"), context);
+ * </pre>
+ */
+public class GoodDataSessionRegistry implements HttpClient {
+
+    /**
+     * HTTP context attribute holding the identity the request is executed as.
+     */
+    public static final String IDENTITY = "gooddata.session.identity";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final HttpClient httpClient;
+
+    private final int maxSessions;
+
+    private final long maxIdleNanos;
+
+    private final Map<String, SSTRetrievalStrategy> strategies = new ConcurrentHashMap<String, SSTRetrievalStrategy>();
+
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+    //time of the next sweep of idle sessions in nanoseconds
+    private final AtomicLong nextIdleSweep = new AtomicLong(System.nanoTime());
+
+    //guards that single thread evicts the overflowing sessions
+    private final Object overflowMonitor = new Object();
+
+    private volatile GoodDataHttpCache httpCache;
+
+    /**
+     * Construct object.
+     * @param httpClient HTTP client shared by all sessions, it should use pooling connection manager
+     * @param maxSessions maximum number of sessions kept
+     * @param maxIdle maximum time the session is kept unused
+     * @param unit time unit of the maximum idle time
+     */
+    public GoodDataSessionRegistry(final HttpClient httpClient, final int maxSessions, final long maxIdle, final TimeUnit unit) {
+        notNull(httpClient, "HTTP client cannot be null");
+        notNull(unit, "Time unit cannot be null");
+        isTrue(maxSessions > 0, "Max sessions must be positive");
+        isTrue(maxIdle > 0, "Max idle time must be positive");
+        this.httpClient = httpClient;
+        this.maxSessions = maxSessions;
+        this.maxIdleNanos = unit.toNanos(maxIdle);
+    }
+
+    /**
+     * Construct object with new HTTP client using pooling connection manager and {@link RequestAddTokenCookies}.
+     * @param maxSessions maximum number of sessions kept
+     * @param maxConnections maximum number of connections, both in total and per host
+     * @param maxIdle maximum time the session is kept unused
+     * @param unit time unit of the maximum idle time
+     */
+    public GoodDataSessionRegistry(final int maxSessions, final int maxConnections, final long maxIdle, final TimeUnit unit) {
+        this(createHttpClient(maxConnections), maxSessions, maxIdle, unit);
+    }
+
+    /**
+     * Construct object with new HTTP client using pooling connection manager and {@link RequestAddTokenCookies}.
+     * The pool holds a connection per session, at most 100.
+     * @param maxSessions maximum number of sessions kept
+     * @param maxIdle maximum time the session is kept unused
+     * @param unit time unit of the maximum idle time
+     */
+    public GoodDataSessionRegistry(final int maxSessions, final long maxIdle, final TimeUnit unit) {
+        this(maxSessions, Math.min(maxSessions, DEFAULT_MAX_CONNECTIONS), maxIdle, unit);
+    }
+
+    private static HttpClient createHttpClient(final int maxConnections) {
+        isTrue(maxConnections > 0, "Max connections must be positive");
+        final PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        final DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+        RequestAddTokenCookies.install(httpClient);
+        return httpClient;
+    }
+
+    /**
+     * Set HTTP response cache shared by sessions created afterwards, cached responses are kept per identity.
+     * No cache is used by default.
+     * @param httpCache HTTP response cache, <code>null</code> to create sessions without cache
+     */
+    public void setHttpCache(final GoodDataHttpCache httpCache) {
+        this.httpCache = httpCache;
+    }
+
+    /**
+     * Register identity.
+     * @param identity identity, e.g. user login
+     * @param sstStrategy super-secure token (SST) obtaining strategy of the identity
+     */
+    public void register(final String identity, final SSTRetrievalStrategy sstStrategy) {
+        notNull(identity, "Identity cannot be null");
+        notNull(sstStrategy, "SST strategy cannot be null");
+        if (strategies.put(identity, sstStrategy) != null) {
+            evict(identity);
+        }
+    }
+
+    /**
+     * Unregister identity and drop its session.
+     * @param identity identity
+     */
+    public void unregister(final String identity) {
+        notNull(identity, "Identity cannot be null");
+        strategies.remove(identity);
+        evict(identity);
+    }
+
+    /**
+     * Get session of the identity, create it when there is none.
+     * @param identity registered identity
+     * @return session
+     * @throws IllegalArgumentException identity is not registered
+     */
+    public GoodDataHttpClient getSession(final String identity) {
+        return session(identity).client;
+    }
+
+    private Session session(final String identity) {
+        notNull(identity, "Identity cannot be null");
+        final long now = System.nanoTime();
+        sweepIdle(now);
+        while (true) {
+            final SSTRetrievalStrategy sstStrategy = strategies.get(identity);
+            isTrue(sstStrategy != null, "Identity not registered: " + identity);
+            Session session = sessions.get(identity);
+            if (session != null && now - session.lastAccess > maxIdleNanos) {
+                evict(identity, session, "idle");
+                session = null;
+            } else if (session != null && session.sstStrategy != sstStrategy) {
+                evict(identity, session, "re-registered");
+                session = null;
+            }
+            if (session == null) {
+                final Session created = new Session(identity, sstStrategy, new GoodDataHttpClient(httpClient, sstStrategy), httpCache);
+                created.lastAccess = now;
+                session = sessions.putIfAbsent(identity, created);
+                if (session == null) {
+                    // identity re-registered or unregistered meanwhile, its eviction may have missed the session
+                    if (strategies.get(identity) != sstStrategy) {
+                        evict(identity, created, "stale");
+                        continue;
+                    }
+                    log.debug("Created session for " + identity);
+                    evictOverflow();
+                    return created;
+                }
+                continue;
+            }
+            session.lastAccess = now;
+            return session;
+        }
+    }
+
+    /**
+     * @return number of sessions kept
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    private void evict(final String identity) {
+        final Session session = sessions.remove(identity);
+        if (session != null) {
+            session.client.disableProactiveTtRefresh();
+        }
+    }
+
+    private void evict(final String identity, final Session session, final String reason) {
+        if (sessions.remove(identity, session)) {
+            log.debug("Evicting " + reason + " session of " + identity);
+            session.client.disableProactiveTtRefresh();
+        }
+    }
+
+    /**
+     * Evict idle sessions, at most once per the maximum idle time, so requests don't scan all the sessions.
+     */
+    private void sweepIdle(final long now) {
+        final long next = nextIdleSweep.get();
+        if (now - next < 0 || !nextIdleSweep.compareAndSet(next, now + maxIdleNanos)) {
+            return;
+        }
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (now - entry.getValue().lastAccess > maxIdleNanos) {
+                evict(entry.getKey(), entry.getValue(), "idle");
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used sessions over the maximum. Runs only when a session is created.
+     */
+    private void evictOverflow() {
+        synchronized (overflowMonitor) {
+            while (sessions.size() > maxSessions) {
+                Map.Entry<String, Session> lru = null;
+                for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                    if (lru == null || entry.getValue().lastAccess - lru.getValue().lastAccess < 0) {
+                        lru = entry;
+                    }
+                }
+                if (lru == null) {
+                    return;
+                }
+                evict(lru.getKey(), lru.getValue(), "least recently used");
+            }
+        }
+    }
+
+    private HttpClient sessionClient(final HttpContext context) {
+        notNull(context, "Context with identity attribute required");
+        final Object identity = context.getAttribute(IDENTITY);
+        isTrue(identity instanceof String, "Context attribute " + IDENTITY + " must contain identity");
+        return session((String) identity).executor;
+    }
+
+    @Override
+    public HttpParams getParams() {
+        return httpClient.getParams();
+    }
+
+    @Override
+    public ClientConnectionManager getConnectionManager() {
+        return httpClient.getConnectionManager();
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return execute(request, (HttpContext) null);
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        final URI uri = request.getURI();
+        final HttpHost httpHost = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        return execute(httpHost, request, context);
+    }
+
+    @Override
+    public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+        return execute(target, request, (HttpContext) null);
+    }
+
+    @Override
+    public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
+        return sessionClient(context).execute(target, request, context);
+    }
+
+    @Override
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
+        return execute(request, responseHandler, null);
+    }
+
+    @Override
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler, HttpContext context) throws IOException {
+        final HttpResponse resp = execute(request, context);
+        return responseHandler.handleResponse(resp);
+    }
+
+    @Override
+    public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
+        return execute(target, request, responseHandler, null);
+    }
+
+    @Override
+    public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> responseHandler, HttpContext context) throws IOException {
+        final HttpResponse resp = execute(target, request, context);
+        return responseHandler.handleResponse(resp);
+    }
+
+    private static class Session {
+
+        private final SSTRetrievalStrategy sstStrategy;
+
+        private final GoodDataHttpClient client;
+
+        //client the requests are executed by, caching client wrapping the session client when cache is used
+        private final HttpClient executor;
+
+        //nanoTime of the last access
+        private volatile long lastAccess;
+
+        private Session(final String identity, final SSTRetrievalStrategy sstStrategy, final GoodDataHttpClient client,
+                        final GoodDataHttpCache httpCache) {
+            this.sstStrategy = sstStrategy;
+            this.client = client;
+            this.executor = httpCache != null ? httpCache.wrap(client, identity) : client;
+        }
+    }
+}
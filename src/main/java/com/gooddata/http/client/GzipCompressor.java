@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request entities to gzip format.
+ * <p>
+ * Entities which may be replayed are {@link #compressOnce(HttpEntity) compressed once}, replays after authentication
+ * challenge resend the compressed content. Other entities are {@link #compress(HttpEntity) compressed while written},
+ * so they are never held on heap. Compressors (native deflater state and output buffer) are pooled, so compressing
+ * many small entities doesn't allocate native memory for each of them.
+ */
+final class GzipCompressor {
+
+    static final String GZIP = "gzip";
+
+    private static final int MAX_POOLED = 16;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int MAX_HEAP_LENGTH = 64 * 1024;
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final Queue<GzipCompressor> POOL = new ConcurrentLinkedQueue<GzipCompressor>();
+
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] output = new byte[BUFFER_SIZE];
+
+    private final byte[] single = new byte[1];
+
+    private GzipCompressor() { }
+
+    /**
+     * Wrap the entity to be gzip compressed while written.
+     * @param entity entity to compress
+     * @return gzip encoded entity
+     */
+    static HttpEntity compress(final HttpEntity entity) {
+        return new CompressingEntity(entity);
+    }
+
+    /**
+     * Compress the entity now, its content is read once. Entities of known length up to 64 kB are compressed
+     * on heap, others are spooled to temporary file.
+     * @param entity entity to compress
+     * @return repeatable gzip encoded entity, {@link SpooledEntity} must be released
+     * @throws IOException reading the entity or writing the spool failed
+     */
+    static HttpEntity compressOnce(final HttpEntity entity) throws IOException {
+        final CompressingEntity compressing = new CompressingEntity(entity);
+        final long length = entity.getContentLength();
+        if (length < 0 || length > MAX_HEAP_LENGTH) {
+            return SpooledEntity.spoolWritten(compressing);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) length + HEADER.length + 8);
+        compressing.writeTo(out);
+        final ByteArrayEntity compressed = new ByteArrayEntity(out.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding(compressing.getContentEncoding());
+        return compressed;
+    }
+
+    private static GzipCompressor acquire() {
+        final GzipCompressor compressor = POOL.poll();
+        if (compressor == null) {
+            return new GzipCompressor();
+        }
+        POOLED.decrementAndGet();
+        return compressor;
+    }
+
+    private void gzip(final HttpEntity entity, final OutputStream out) throws IOException {
+        out.write(HEADER);
+        final long[] total = new long[1];
+        entity.writeTo(new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                single[0] = (byte) b;
+                write(single, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                if (len == 0) {
+                    return;
+                }
+                crc.update(b, off, len);
+                total[0] += len;
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    out.write(output, 0, deflater.deflate(output));
+                }
+            }
+        });
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(output, 0, deflater.deflate(output));
+        }
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, (int) total[0]);
+    }
+
+    private static void writeInt(final OutputStream out, final int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+
+    /**
+     * Return the compressor into the pool, or release its native resources when the pool is full.
+     */
+    private void release() {
+        deflater.reset();
+        crc.reset();
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(this);
+        } else {
+            POOLED.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Entity compressed while written, its content can't be read as stream.
+     */
+    private static final class CompressingEntity extends HttpEntityWrapper {
+
+        CompressingEntity(final HttpEntity wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader(HTTP.CONTENT_ENCODING, GZIP);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Compressed entity can only be written");
+        }
+
+        @Override
+        public void writeTo(final OutputStream outstream) throws IOException {
+            final GzipCompressor compressor = acquire();
+            try {
+                compressor.gzip(wrappedEntity, outstream);
+            } finally {
+                compressor.release();
+            }
+        }
+    }
+}
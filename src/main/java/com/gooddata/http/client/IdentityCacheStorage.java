@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+
+import java.io.IOException;
+
+/**
+ * View of shared cache storage scoped to single identity, so responses of one user are never served to another.
+ */
+class IdentityCacheStorage implements HttpCacheStorage {
+
+    private final HttpCacheStorage storage;
+
+    private final String prefix;
+
+    IdentityCacheStorage(final HttpCacheStorage storage, final String identity) {
+        this.storage = storage;
+        // length prefix makes the keys unambiguous whatever the identity contains
+        this.prefix = identity.length() + ":" + identity + ":";
+    }
+
+    @Override
+    public void putEntry(final String key, final HttpCacheEntry entry) throws IOException {
+        storage.putEntry(prefix + key, entry);
+    }
+
+    @Override
+    public HttpCacheEntry getEntry(final String key) throws IOException {
+        return storage.getEntry(prefix + key);
+    }
+
+    @Override
+    public void removeEntry(final String key) throws IOException {
+        storage.removeEntry(prefix + key);
+    }
+
+    @Override
+    public void updateEntry(final String key, final HttpCacheUpdateCallback callback)
+            throws IOException, HttpCacheUpdateException {
+        storage.updateEntry(prefix + key, callback);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.apache.commons.lang.Validate.isTrue;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets. Bucket <code>i</code> counts values in range
+ * <code>[2^(i-1), 2^i)</code> nanoseconds, so percentiles are accurate within factor of 2.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record value.
+     * @param nanos latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current;
+        while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of recorded values in nanoseconds
+     */
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    /**
+     * @return maximum recorded value in nanoseconds
+     */
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of recorded values in nanoseconds, 0 when nothing has been recorded
+     */
+    public long getMeanNanos() {
+        final long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Estimate percentile as the upper bound of the bucket containing it.
+     * @param percentile percentile in range (0, 100]
+     * @return estimated percentile in nanoseconds, 0 when nothing has been recorded
+     */
+    public long getPercentileNanos(final double percentile) {
+        isTrue(percentile > 0 && percentile <= 100, "Percentile must be in range (0, 100]");
+        long remaining = (long) Math.ceil(count.get() * percentile / 100);
+        if (remaining == 0) {
+            return 0;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            remaining -= buckets.get(i);
+            if (remaining <= 0) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static long upperBound(final int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -45,6 +45,10 @@ public class LoginSSTRetrievalStrategy implements SSTRetrievalStrategy {
 
     private final HttpClient httpClient;
 
+    private volatile GoodDataAuthListener authListener = new GoodDataAuthListenerAdapter();
+
+    private volatile RateLimiter rateLimiter;
+
     /**
      * Construct object.
      * @param httpClient HTTP client
@@ -63,15 +67,42 @@ public class LoginSSTRetrievalStrategy implements SSTRetrievalStrategy {
         this.httpClient = httpClient;
     }
 
+    /**
+     * Set listener notified about logins. By default the events are ignored.
+     * @param authListener authentication listener
+     */
+    public void setAuthListener(final GoodDataAuthListener authListener) {
+        notNull(authListener, "Auth listener cannot be null");
+        this.authListener = authListener;
+    }
+
+    /**
+     * Set client-side rate limit of logins, e.g. shared with {@link GoodDataHttpClient#setRateLimiter(RateLimiter)}.
+     * Login not getting permit within the maximum wait of the limiter fails. No limit is applied by default.
+     * @param rateLimiter rate limiter, <code>null</code> for no limit
+     */
+    public void setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
     @Override
     public String obtainSst() {
         log.debug("Obtaining STT");
         final HttpPost postLogin = new HttpPost(LOGIN_URL);
+        final long start = System.nanoTime();
+        boolean success = false;
         try {
             final HttpEntity requestEntity = new StringEntity(createLoginJson(login, password), ContentType.APPLICATION_JSON);
             postLogin.setEntity(requestEntity);
             postLogin.setHeader("Accept", ContentType.APPLICATION_JSON.toString());
+            final RateLimiter rateLimiter = this.rateLimiter;
+            if (rateLimiter != null) {
+                rateLimiter.admit(httpHost, LOGIN_URL);
+            }
             final HttpResponse response = httpClient.execute(httpHost, postLogin);
+            if (rateLimiter != null) {
+                rateLimiter.update(httpHost, LOGIN_URL, response);
+            }
             int status = response.getStatusLine().getStatusCode();
             if (status != HttpStatus.SC_OK) {
                 throw new GoodDataAuthException("Unable to login: " + status);
@@ -80,6 +111,7 @@ public class LoginSSTRetrievalStrategy implements SSTRetrievalStrategy {
             if (sst == null) {
                 throw new GoodDataAuthException("Unable to login. Missing SST Set-Cookie header.");
             }
+            success = true;
             return sst;
         } catch (IOException e) {
             throw new GoodDataAuthException("Unable to login: " + e.getMessage(), e);
@@ -87,6 +119,7 @@ public class LoginSSTRetrievalStrategy implements SSTRetrievalStrategy {
             throw new GoodDataAuthException("Unable to login. Malformed Set-Cookie header.");
         } finally {
             postLogin.releaseConnection();
+            authListener.login(System.nanoTime() - start, success);
         }
     }
 
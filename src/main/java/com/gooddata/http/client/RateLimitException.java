@@ -0,0 +1,18 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import java.io.IOException;
+
+/**
+ * Request rejected without being sent because the rate limit of the host or endpoint has been reached
+ * and the permit would not be available within the maximum wait, see {@link RateLimiter}.
+ */
+public class RateLimitException extends IOException {
+
+    public RateLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Client-side rate limit of requests per host and per endpoint, see
+ * {@link GoodDataHttpClient#setRateLimiter(RateLimiter)} and {@link LoginSSTRetrievalStrategy#setRateLimiter(RateLimiter)}.
+ * Share single limiter by all clients of the service instance.</p>
+ *
+ * <p>Each host has lock-free token bucket with the given rate and burst. Endpoints matching a path pattern
+ * (e.g. login) have separate buckets, requests to them take a permit from both the endpoint and the host bucket.</p>
+ *
+ * <p>When the server throttles the client by 429 response, the bucket of the endpoint (or the host) is paused
+ * for <code>Retry-After</code> period (1 second when the header is missing). 503 response with
+ * <code>Retry-After</code> pauses the host bucket.</p>
+ */
+public class RateLimiter {
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final long DEFAULT_PAUSE_MILLIS = 1000;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Limit hostLimit;
+
+    private final List<Limit> endpointLimits = new CopyOnWriteArrayList<Limit>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private volatile long maxWaitNanos = -1;
+
+    /**
+     * Construct object.
+     * @param permitsPerSecond rate of requests per host
+     * @param burst number of requests per host allowed at once after a period of inactivity
+     */
+    public RateLimiter(final double permitsPerSecond, final int burst) {
+        this.hostLimit = new Limit(null, permitsPerSecond, burst);
+    }
+
+    /**
+     * Set separate limit of the endpoint, replacing the limit previously set for the same pattern.
+     * The first matching endpoint limit applies, patterns are matched in the order they were first set.
+     * @param pathPattern regular expression matching the whole request path, e.g. <code>/gdc/account/login</code>
+     * @param permitsPerSecond rate of requests to the endpoint per host
+     * @param burst number of requests to the endpoint allowed at once after a period of inactivity
+     */
+    public synchronized void setEndpointLimit(final String pathPattern, final double permitsPerSecond, final int burst) {
+        notNull(pathPattern, "Path pattern cannot be null");
+        final Limit limit = new Limit(Pattern.compile(pathPattern), permitsPerSecond, burst);
+        for (int i = 0; i < endpointLimits.size(); i++) {
+            if (endpointLimits.get(i).pattern.pattern().equals(pathPattern)) {
+                endpointLimits.set(i, limit);
+                return;
+            }
+        }
+        endpointLimits.add(limit);
+    }
+
+    /**
+     * Set maximum time requests of the clients wait for a permit, requests which would wait longer fail
+     * with {@link RateLimitException}. Zero rejects requests over the limit immediately.
+     * By default requests wait as long as needed.
+     * @param maxWait maximum wait, negative to wait as long as needed
+     * @param unit time unit of the wait
+     */
+    public void setMaxWait(final long maxWait, final TimeUnit unit) {
+        notNull(unit, "Time unit cannot be null");
+        this.maxWaitNanos = maxWait < 0 ? -1 : unit.toNanos(maxWait);
+    }
+
+    /**
+     * Take permit for a request, wait as long as needed.
+     * @param host host
+     * @param path request path
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    public void acquire(final HttpHost host, final String path) throws InterruptedIOException {
+        acquire(host, path, -1);
+    }
+
+    /**
+     * Take permit for a request when it is available immediately.
+     * @param host host
+     * @param path request path
+     * @return <code>true</code> the permit has been taken
+     */
+    public boolean tryAcquire(final HttpHost host, final String path) {
+        final long wait = reserve(host, path, 0);
+        if (wait < 0) {
+            rejected.incrementAndGet();
+        }
+        return wait >= 0;
+    }
+
+    /**
+     * Take permit for a request when it is available within the timeout, wait for it.
+     * @param host host
+     * @param path request path
+     * @param timeout maximum wait
+     * @param unit time unit of the timeout
+     * @return <code>true</code> the permit has been taken
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    public boolean tryAcquire(final HttpHost host, final String path, final long timeout, final TimeUnit unit)
+            throws InterruptedIOException {
+        notNull(unit, "Time unit cannot be null");
+        isTrue(timeout >= 0, "Timeout cannot be negative");
+        return acquire(host, path, unit.toNanos(timeout));
+    }
+
+    /**
+     * @return number of requests rejected because the permit was not available in time
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return number of 429 responses (and 503 with <code>Retry-After</code>) pausing the limiter
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Take permit for a request of the client waiting at most the maximum wait.
+     * @throws RateLimitException the permit is not available within the maximum wait
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    void admit(final HttpHost host, final String path) throws RateLimitException, InterruptedIOException {
+        if (!acquire(host, path, maxWaitNanos)) {
+            throw new RateLimitException("Rate limit of " + host + path + " reached");
+        }
+    }
+
+    /**
+     * Pause the limiter when the response signals throttling by the server.
+     */
+    void update(final HttpHost host, final String path, final HttpResponse response) {
+        final int status = response.getStatusLine().getStatusCode();
+        if (status != SC_TOO_MANY_REQUESTS && status != HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            return;
+        }
+        long pause = RetryPolicy.retryAfterMillis(response, System.currentTimeMillis());
+        if (status == HttpStatus.SC_SERVICE_UNAVAILABLE && pause < 0) {
+            return;
+        }
+        final Limit limit = status == SC_TOO_MANY_REQUESTS ? endpointLimit(path) : null;
+        if (pause < 0) {
+            pause = DEFAULT_PAUSE_MILLIS;
+        }
+        throttled.incrementAndGet();
+        log.debug("Rate limit of " + host + (limit == null ? "" : path) + " paused for " + pause + " ms after HTTP status " + status);
+        bucket(host, limit == null ? hostLimit : limit).pause(TimeUnit.MILLISECONDS.toNanos(pause));
+    }
+
+    /**
+     * @param request HTTP request
+     * @return path of the request
+     */
+    static String path(final HttpRequest request) {
+        final String uri = request.getRequestLine().getUri();
+        try {
+            final String path = new URI(uri).getRawPath();
+            return path == null ? uri : path;
+        } catch (URISyntaxException e) {
+            return uri;
+        }
+    }
+
+    private boolean acquire(final HttpHost host, final String path, final long maxWaitNanos) throws InterruptedIOException {
+        final long wait = reserve(host, path, maxWaitNanos);
+        if (wait < 0) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rate limit");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reserve permits of the endpoint and host buckets.
+     * @return wait for the permits in nanoseconds, -1 when it exceeds the maximum wait
+     */
+    private long reserve(final HttpHost host, final String path, final long maxWaitNanos) {
+        notNull(host, "Host cannot be null");
+        notNull(path, "Path cannot be null");
+        final Limit limit = endpointLimit(path);
+        final Bucket endpoint = limit == null ? null : bucket(host, limit);
+        final long endpointWait = endpoint == null ? 0 : endpoint.reserve(maxWaitNanos);
+        if (endpointWait < 0) {
+            return -1;
+        }
+        final long hostWait = bucket(host, hostLimit).reserve(maxWaitNanos);
+        if (hostWait < 0) {
+            if (endpoint != null) {
+                endpoint.cancel();
+            }
+            return -1;
+        }
+        return Math.max(endpointWait, hostWait);
+    }
+
+    private Limit endpointLimit(final String path) {
+        for (Limit limit : endpointLimits) {
+            if (limit.pattern.matcher(path).matches()) {
+                return limit;
+            }
+        }
+        return null;
+    }
+
+    private static Bucket bucket(final HttpHost host, final Limit limit) {
+        Bucket bucket = limit.buckets.get(host);
+        if (bucket == null) {
+            final Bucket created = new Bucket(limit);
+            bucket = limit.buckets.putIfAbsent(host, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Limit of the hosts or of an endpoint, with bucket of each host.
+     */
+    private static final class Limit {
+
+        private final Pattern pattern;
+
+        private final ConcurrentMap<HttpHost, Bucket> buckets = new ConcurrentHashMap<HttpHost, Bucket>();
+
+        private final long intervalNanos;
+
+        private final int burst;
+
+        Limit(final Pattern pattern, final double permitsPerSecond, final int burst) {
+            isTrue(permitsPerSecond > 0, "Permits per second must be positive");
+            isTrue(burst > 0, "Burst must be positive");
+            this.pattern = pattern;
+            this.intervalNanos = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+            this.burst = burst;
+        }
+    }
+
+    /**
+     * Lock-free token bucket kept as theoretical arrival time of the next request (GCRA), so taking a permit
+     * is single compare-and-set. The bucket is full when the time is not after now.
+     */
+    private static final class Bucket {
+
+        private final long intervalNanos;
+
+        private final long toleranceNanos;
+
+        private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+
+        private Bucket(final Limit limit) {
+            this.intervalNanos = limit.intervalNanos;
+            this.toleranceNanos = limit.intervalNanos * (limit.burst - 1);
+        }
+
+        /**
+         * @param maxWaitNanos maximum wait, negative for no maximum
+         * @return wait for the permit in nanoseconds, -1 when it exceeds the maximum wait and nothing was reserved
+         */
+        long reserve(final long maxWaitNanos) {
+            while (true) {
+                final long now = System.nanoTime();
+                final long current = arrival.get();
+                final long base = current - now > 0 ? current : now;
+                final long wait = Math.max(0, base - toleranceNanos - now);
+                if (maxWaitNanos >= 0 && wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (arrival.compareAndSet(current, base + intervalNanos)) {
+                    return wait;
+                }
+            }
+        }
+
+        /**
+         * Return reserved permit.
+         */
+        void cancel() {
+            arrival.addAndGet(-intervalNanos);
+        }
+
+        /**
+         * Let no permit be taken for the period, then continue with single request.
+         */
+        void pause(final long nanos) {
+            final long until = System.nanoTime() + nanos + toleranceNanos;
+            long current;
+            while ((current = arrival.get()) - until < 0 && !arrival.compareAndSet(current, until)) {
+                // retry
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.conn.HttpRoutedConnection;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.CookieSpecRegistry;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Replacement of {@link RequestAddCookies} adding the cached <code>Cookie</code> headers of
+ * {@link TokenCookieStore}, so cookies are not copied and formatted for every request. Other cookie stores
+ * and versioned cookie specs are handled by {@link RequestAddCookies}.</p>
+ *
+ * <p>Installed automatically into the HTTP client created by {@link GoodDataHttpClient}, install it into your own
+ * client using {@link #install(AbstractHttpClient)}.</p>
+ */
+public class RequestAddTokenCookies extends RequestAddCookies {
+
+    /**
+     * Replace {@link RequestAddCookies} interceptor of the client.
+     * @param httpClient HTTP client
+     */
+    public static void install(final AbstractHttpClient httpClient) {
+        notNull(httpClient, "HTTP client cannot be null");
+        for (int i = 0; i < httpClient.getRequestInterceptorCount(); i++) {
+            final HttpRequestInterceptor interceptor = httpClient.getRequestInterceptor(i);
+            if (interceptor.getClass() == RequestAddCookies.class) {
+                httpClient.removeRequestInterceptorByClass(RequestAddCookies.class);
+                httpClient.addRequestInterceptor(new RequestAddTokenCookies(), i);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void process(final HttpRequest request, final HttpContext context) throws HttpException, IOException {
+        final CookieStore cookieStore = (CookieStore) context.getAttribute(ClientContext.COOKIE_STORE);
+        final CookieSpecRegistry registry = (CookieSpecRegistry) context.getAttribute(ClientContext.COOKIESPEC_REGISTRY);
+        final HttpHost targetHost = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+        final HttpRoutedConnection connection = (HttpRoutedConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (!(cookieStore instanceof TokenCookieStore) || registry == null || targetHost == null || connection == null
+                || "CONNECT".equalsIgnoreCase(request.getRequestLine().getMethod())) {
+            super.process(request, context);
+            return;
+        }
+        final CookieSpec cookieSpec = registry.getCookieSpec(HttpClientParams.getCookiePolicy(request.getParams()),
+                request.getParams());
+        if (cookieSpec.getVersion() > 0) {
+            super.process(request, context);
+            return;
+        }
+
+        final CookieOrigin cookieOrigin = new CookieOrigin(targetHost.getHostName(), port(targetHost, connection),
+                path(request), connection.isSecure());
+        for (final Header header : ((TokenCookieStore) cookieStore).getCookieHeaders(cookieOrigin, cookieSpec)) {
+            request.addHeader(header);
+        }
+
+        // used by the response interceptor processing Set-Cookie
+        context.setAttribute(ClientContext.COOKIE_SPEC, cookieSpec);
+        context.setAttribute(ClientContext.COOKIE_ORIGIN, cookieOrigin);
+    }
+
+    private static String path(final HttpRequest request) throws ProtocolException {
+        if (request instanceof HttpUriRequest) {
+            return ((HttpUriRequest) request).getURI().getPath();
+        }
+        try {
+            return new URI(request.getRequestLine().getUri()).getPath();
+        } catch (URISyntaxException e) {
+            throw new ProtocolException("Invalid request URI: " + request.getRequestLine().getUri(), e);
+        }
+    }
+
+    private static int port(final HttpHost targetHost, final HttpRoutedConnection connection) {
+        if (targetHost.getPort() >= 0) {
+            return targetHost.getPort();
+        }
+        if (connection.getRoute().getHopCount() == 1) {
+            return connection.getRemotePort();
+        }
+        // target port is selected by the proxy
+        if ("http".equalsIgnoreCase(targetHost.getSchemeName())) {
+            return 80;
+        } else if ("https".equalsIgnoreCase(targetHost.getSchemeName())) {
+            return 443;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang.Validate.isTrue;
+
+/**
+ * <p>Token bucket capping retries at a percentage of the traffic, shared by all threads (and clients) using it.</p>
+ *
+ * <p>Each request deposits the given ratio of a token, each retry withdraws a whole token, so at most ratio
+ * of the requests is retried in the long run. The bucket holds at most the given number of tokens and starts
+ * full, so occasional failures of low traffic can be retried too. Lock-free, tokens are kept in thousandths.</p>
+ *
+ * <p>Replays after GoodData authentication challenge are withdrawn from the same budget, but never refused,
+ * so authentication storms leave less room for retries of transient failures.</p>
+ */
+public class RetryBudget {
+
+    private static final long SCALE = 1000;
+
+    private final long deposit;
+
+    private final long capacity;
+
+    private final AtomicLong balance;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * Construct object.
+     * @param ratio ratio of the requests allowed to be retried, e.g. 0.1 for 10 %
+     * @param maxTokens maximum number of retries the budget can accumulate
+     */
+    public RetryBudget(final double ratio, final int maxTokens) {
+        isTrue(ratio > 0 && ratio <= 1, "Ratio must be in (0, 1]");
+        isTrue(maxTokens > 0, "Max tokens must be positive");
+        this.deposit = Math.max(1, Math.round(ratio * SCALE));
+        this.capacity = maxTokens * SCALE;
+        this.balance = new AtomicLong(capacity);
+    }
+
+    /**
+     * Construct object allowing 10 % of the requests to be retried, accumulating at most 100 retries.
+     */
+    public RetryBudget() {
+        this(0.1, 100);
+    }
+
+    /**
+     * Deposit the ratio of a token for a request sent.
+     */
+    void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= capacity) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(capacity, current + deposit)));
+    }
+
+    /**
+     * Withdraw a token for a retry when there is one.
+     * @return <code>true</code> the retry is allowed
+     */
+    boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                refused.incrementAndGet();
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Withdraw a token for a replay which can't be refused, the balance doesn't go below zero.
+     */
+    void withdraw() {
+        long current;
+        do {
+            current = balance.get();
+        } while (!balance.compareAndSet(current, Math.max(0, current - SCALE)));
+        retries.incrementAndGet();
+    }
+
+    /**
+     * @return number of whole tokens (retries) available
+     */
+    public long getAvailable() {
+        return balance.get() / SCALE;
+    }
+
+    /**
+     * @return number of retries and replays withdrawn from the budget
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of retries refused because the budget was exhausted
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+}
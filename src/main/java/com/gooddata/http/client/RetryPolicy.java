@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Retry of idempotent requests failed by transient I/O error or 502, 503 and 504 response,
+ * see {@link GoodDataHttpClient#setRetryPolicy(RetryPolicy)}.</p>
+ *
+ * <p>Retries are delayed by exponential backoff with full jitter (random delay up to the exponential bound),
+ * <code>Retry-After</code> header of the response is honored when it is within the maximum backoff.
+ * Retries are capped by {@link RetryBudget} shared by all threads.</p>
+ */
+public class RetryPolicy {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(
+            Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    private final int maxRetries;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private final RetryBudget budget;
+
+    /**
+     * Construct object.
+     * @param maxRetries maximum number of retries of a request
+     * @param initialBackoff upper bound of the delay of the first retry, doubled with each retry
+     * @param maxBackoff maximum delay of a retry
+     * @param unit time unit of the backoff
+     * @param budget retry budget, may be shared by more policies
+     */
+    public RetryPolicy(final int maxRetries, final long initialBackoff, final long maxBackoff, final TimeUnit unit,
+                       final RetryBudget budget) {
+        notNull(unit, "Time unit cannot be null");
+        notNull(budget, "Retry budget cannot be null");
+        isTrue(maxRetries >= 0, "Max retries cannot be negative");
+        isTrue(initialBackoff > 0, "Initial backoff must be positive");
+        isTrue(maxBackoff >= initialBackoff, "Max backoff must not be lower than initial backoff");
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = unit.toMillis(initialBackoff);
+        this.maxBackoffMillis = unit.toMillis(maxBackoff);
+        this.budget = budget;
+    }
+
+    /**
+     * Construct object retrying at most 3 times with backoff from 100 ms up to 5 s.
+     * @param budget retry budget, may be shared by more policies
+     */
+    public RetryPolicy(final RetryBudget budget) {
+        this(3, 100, 5000, TimeUnit.MILLISECONDS, budget);
+    }
+
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param request HTTP request
+     * @param retries number of retries performed so far
+     * @return <code>true</code> when the request may be retried
+     */
+    boolean isRetryable(final HttpRequest request, final int retries) {
+        return retries < maxRetries
+                && IDEMPOTENT_METHODS.contains(request.getRequestLine().getMethod().toUpperCase(Locale.US));
+    }
+
+    /**
+     * @param e I/O error
+     * @return <code>true</code> when the error may be transient, protocol errors (e.g. non-repeatable request)
+     * fail the same way when retried
+     */
+    static boolean isTransient(final IOException e) {
+        return !(e instanceof UnknownHostException || e instanceof SSLException || e instanceof ClientProtocolException
+                || (e instanceof InterruptedIOException && Thread.currentThread().isInterrupted()));
+    }
+
+    /**
+     * @param status HTTP status code
+     * @return <code>true</code> when the status signals transient failure of the server or gateway
+     */
+    static boolean isTransient(final int status) {
+        return status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Delay requested by <code>Retry-After</code> header (delay in seconds or HTTP date).
+     * @param response HTTP response
+     * @param now current time in milliseconds
+     * @return delay in milliseconds, -1 when the header is missing or invalid
+     */
+    static long retryAfterMillis(final HttpResponse response, final long now) {
+        final Header header = response.getFirstHeader("Retry-After");
+        if (header == null) {
+            return -1;
+        }
+        final String value = header.getValue().trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, DateUtils.parseDate(value).getTime() - now);
+            } catch (DateParseException e1) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Delay of the retry.
+     * @param retries number of retries performed so far
+     * @param retryAfterMillis delay requested by the server, -1 for none
+     * @return delay in milliseconds, -1 when the requested delay exceeds the maximum backoff
+     */
+    long backoffMillis(final int retries, final long retryAfterMillis) {
+        if (retryAfterMillis >= 0) {
+            return retryAfterMillis <= maxBackoffMillis ? retryAfterMillis : -1;
+        }
+        long bound = initialBackoffMillis;
+        for (int i = 0; i < retries && bound < maxBackoffMillis; i++) {
+            bound <<= 1;
+        }
+        return ThreadLocalRandom.current().nextLong(Math.min(maxBackoffMillis, bound) + 1);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Entity wrapper recording whether the content of the wrapped entity has been read.
+ */
+class SentTrackingEntity extends HttpEntityWrapper {
+
+    private volatile boolean sent;
+
+    SentTrackingEntity(final HttpEntity wrapped) {
+        super(wrapped);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        sent = true;
+        return super.getContent();
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        sent = true;
+        super.writeTo(outstream);
+    }
+
+    /**
+     * @return <code>true</code> when the content has been (possibly partially) read
+     */
+    boolean isSent() {
+        return sent;
+    }
+}
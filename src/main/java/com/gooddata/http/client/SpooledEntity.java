@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Repeatable entity holding content of non-repeatable entity spooled to temporary file.
+ * The file is memory-mapped when the content is written, so the content is never copied on heap as a whole.
+ */
+class SpooledEntity extends AbstractHttpEntity {
+
+    private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final File file;
+
+    private final long length;
+
+    private SpooledEntity(final HttpEntity original, final File file, final long length) {
+        this.file = file;
+        this.length = length;
+        setContentType(original.getContentType());
+        setContentEncoding(original.getContentEncoding());
+        setChunked(original.isChunked());
+    }
+
+    /**
+     * Spool content of the entity to temporary file.
+     * @param entity entity to spool
+     * @return repeatable entity backed by the file, must be {@link #release()}d
+     * @throws IOException I/O error
+     */
+    static SpooledEntity spool(final HttpEntity entity) throws IOException {
+        final File file = File.createTempFile("gooddata-spool", ".tmp");
+        file.deleteOnExit();
+        try (InputStream content = entity.getContent();
+             RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            final ReadableByteChannel source = Channels.newChannel(content);
+            final FileChannel target = output.getChannel();
+            long position = 0;
+            long transferred;
+            while ((transferred = target.transferFrom(source, position, MAPPED_REGION_SIZE)) > 0) {
+                position += transferred;
+            }
+            return new SpooledEntity(entity, file, position);
+        } catch (IOException | RuntimeException e) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Spool content written by the entity to temporary file, for entities whose content can only be written.
+     * @param entity entity to spool
+     * @return repeatable entity backed by the file, must be {@link #release()}d
+     * @throws IOException I/O error
+     */
+    static SpooledEntity spoolWritten(final HttpEntity entity) throws IOException {
+        final File file = File.createTempFile("gooddata-spool", ".tmp");
+        file.deleteOnExit();
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            entity.writeTo(output);
+        } catch (IOException | RuntimeException e) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            throw e;
+        }
+        final SpooledEntity spooled = new SpooledEntity(entity, file, file.length());
+        spooled.setChunked(false);
+        return spooled;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        final WritableByteChannel target = Channels.newChannel(outstream);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final FileChannel source = input.getChannel();
+            for (long position = 0; position < length; position += MAPPED_REGION_SIZE) {
+                final MappedByteBuffer region = source.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAPPED_REGION_SIZE, length - position));
+                while (region.hasRemaining()) {
+                    target.write(region);
+                }
+            }
+        }
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Delete the temporary file.
+     */
+    void release() {
+        if (!file.delete()) {
+            log.debug("Unable to delete spool file " + file);
+            file.deleteOnExit();
+        }
+    }
+}
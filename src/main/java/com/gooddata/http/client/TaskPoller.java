@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Polls URIs of GoodData asynchronous tasks (exports, ETL, model updates) until they finish.</p>
+ *
+ * <p>Task is pending while its URI responds by <code>202 Accepted</code>. Pending tasks don't occupy any thread,
+ * each poll is scheduled on a small shared thread pool, so thousands of tasks can be polled at once. Interval between
+ * polls of a task grows from the initial to the maximum interval, <code>Retry-After</code> header of the pending
+ * response overrides it. When used with {@link GoodDataHttpClient} all polls share its authentication, so TT
+ * challenge hitting many polls results in single re-authentication.</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * TaskPoller poller = new TaskPoller(goodDataHttpClient, 2);
+ * Future&lt;String&gt; result = poller.poll(httpHost, "/gdc/md/project/tasks/task/status", new BasicResponseHandler());
+ * ...
+ * poller.shutdown();
+ * </pre>
+ */
+public class TaskPoller {
+
+    private static final long DEFAULT_INITIAL_INTERVAL_MILLIS = 1000;
+
+    private static final long DEFAULT_MAX_INTERVAL_MILLIS = 30000;
+
+    private static final double BACKOFF_MULTIPLIER = 1.5;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final HttpClient httpClient;
+
+    private final ScheduledExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile long initialIntervalMillis = DEFAULT_INITIAL_INTERVAL_MILLIS;
+
+    private volatile long maxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+
+    /**
+     * Construct object.
+     * @param httpClient HTTP client executing the polls
+     * @param executor executor scheduling the polls, managed by the caller
+     */
+    public TaskPoller(final HttpClient httpClient, final ScheduledExecutorService executor) {
+        this(httpClient, executor, false);
+    }
+
+    /**
+     * Construct object. The executor is released by {@link #shutdown()}.
+     * @param httpClient HTTP client executing the polls
+     * @param threads number of threads executing the polls
+     */
+    public TaskPoller(final HttpClient httpClient, final int threads) {
+        this(httpClient, createExecutor(threads), true);
+    }
+
+    private TaskPoller(final HttpClient httpClient, final ScheduledExecutorService executor, final boolean ownExecutor) {
+        notNull(httpClient, "HTTP client cannot be null");
+        notNull(executor, "Executor cannot be null");
+        this.httpClient = httpClient;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    private static ScheduledExecutorService createExecutor(final int threads) {
+        isTrue(threads > 0, "Threads must be positive");
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "gooddata-poller-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set interval before the first poll of a task. Default is 1 second.
+     * @param interval initial interval
+     * @param unit time unit of the interval
+     */
+    public void setInitialInterval(final long interval, final TimeUnit unit) {
+        notNull(unit, "Time unit cannot be null");
+        isTrue(interval >= 0, "Initial interval cannot be negative");
+        this.initialIntervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * Set maximum interval between polls of a task the interval grows to. Default is 30 seconds.
+     * @param interval maximum interval
+     * @param unit time unit of the interval
+     */
+    public void setMaxInterval(final long interval, final TimeUnit unit) {
+        notNull(unit, "Time unit cannot be null");
+        isTrue(interval > 0, "Max interval must be positive");
+        this.maxIntervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * @return number of tasks being polled
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Poll the task until it finishes.
+     * @param target HTTP host
+     * @param uri URI of the task
+     * @param responseHandler handler converting the final response into result, its entity is consumed afterwards
+     * @param <T> type of the result
+     * @return future result, cancelling it stops polling
+     */
+    public <T> Future<T> poll(final HttpHost target, final String uri, final ResponseHandler<? extends T> responseHandler) {
+        return poll(target, uri, responseHandler, null);
+    }
+
+    /**
+     * Poll the task until it finishes.
+     * @param target HTTP host
+     * @param uri URI of the task
+     * @param responseHandler handler converting the final response into result, its entity is consumed afterwards
+     * @param callback callback notified in polling thread about the result, <code>null</code> for none
+     * @param <T> type of the result
+     * @return future result, cancelling it stops polling
+     */
+    public <T> Future<T> poll(final HttpHost target, final String uri, final ResponseHandler<? extends T> responseHandler,
+                              final FutureCallback<T> callback) {
+        notNull(target, "Target cannot be null");
+        notNull(uri, "URI cannot be null");
+        notNull(responseHandler, "Response handler cannot be null");
+        final Task<T> task = new Task<T>(target, uri, responseHandler, new BasicFuture<T>(callback));
+        pending.incrementAndGet();
+        task.schedule(initialIntervalMillis);
+        return task.future;
+    }
+
+    /**
+     * Shut down the executor created by this object. Executor passed by the caller is left untouched.
+     */
+    public void shutdown() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Single polled task.
+     */
+    private class Task<T> implements Runnable {
+
+        private final HttpHost target;
+
+        private final String uri;
+
+        private final ResponseHandler<? extends T> responseHandler;
+
+        private final BasicFuture<T> future;
+
+        private long intervalMillis;
+
+        private Task(final HttpHost target, final String uri, final ResponseHandler<? extends T> responseHandler,
+                     final BasicFuture<T> future) {
+            this.target = target;
+            this.uri = uri;
+            this.responseHandler = responseHandler;
+            this.future = future;
+            this.intervalMillis = initialIntervalMillis;
+        }
+
+        private void schedule(final long delayMillis) {
+            try {
+                executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                finish();
+                future.failed(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (future.isCancelled()) {
+                finish();
+                return;
+            }
+            final HttpGet request = new HttpGet(uri);
+            final HttpResponse response;
+            try {
+                response = httpClient.execute(target, request);
+            } catch (IOException | RuntimeException e) {
+                finish();
+                future.failed(e);
+                return;
+            }
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_ACCEPTED) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                final long retryAfter = RetryPolicy.retryAfterMillis(response, System.currentTimeMillis());
+                final long delay = retryAfter >= 0 ? retryAfter : nextInterval();
+                log.debug("Task " + uri + " pending, next poll in " + delay + " ms");
+                schedule(delay);
+                return;
+            }
+            finish();
+            try {
+                final T result = responseHandler.handleResponse(response);
+                future.completed(result);
+            } catch (IOException | RuntimeException e) {
+                future.failed(e);
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+        }
+
+        private long nextInterval() {
+            intervalMillis = Math.min(maxIntervalMillis, Math.max(1, (long) (intervalMillis * BACKOFF_MULTIPLIER)));
+            return intervalMillis;
+        }
+
+        private void finish() {
+            pending.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.Header;
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieIdentityComparator;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Lock-free cookie store optimized for the few, rarely changing GoodData authentication cookies.</p>
+ *
+ * <p>Cookies are kept in immutable snapshot replaced on every update (copy-on-write), so reading the cookies
+ * needs neither a lock nor a copy. Expired cookies are purged on update and when the earliest expiry passes.
+ * Formatted <code>Cookie</code> headers are cached in the snapshot, see {@link RequestAddTokenCookies}.</p>
+ */
+public class TokenCookieStore implements CookieStore {
+
+    // header cache keys are bit masks of the matched cookies
+    private static final int MAX_CACHED_COOKIES = Long.SIZE;
+
+    private static final CookieIdentityComparator IDENTITY = new CookieIdentityComparator();
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(Collections.<Cookie>emptyList()));
+
+    @Override
+    public void addCookie(final Cookie cookie) {
+        if (cookie == null) {
+            return;
+        }
+        final Date now = new Date();
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            final List<Cookie> cookies = new ArrayList<Cookie>(current.cookies.size() + 1);
+            for (final Cookie existing : current.cookies) {
+                if (IDENTITY.compare(existing, cookie) != 0 && !existing.isExpired(now)) {
+                    cookies.add(existing);
+                }
+            }
+            if (!cookie.isExpired(now)) {
+                cookies.add(cookie);
+            }
+            updated = new Snapshot(cookies);
+        } while (!snapshot.compareAndSet(current, updated));
+    }
+
+    /**
+     * @return unmodifiable list of the cookies, not changed by later updates
+     */
+    @Override
+    public List<Cookie> getCookies() {
+        return current().cookies;
+    }
+
+    @Override
+    public boolean clearExpired(final Date date) {
+        if (date == null) {
+            return false;
+        }
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            final List<Cookie> cookies = new ArrayList<Cookie>(current.cookies.size());
+            for (final Cookie cookie : current.cookies) {
+                if (!cookie.isExpired(date)) {
+                    cookies.add(cookie);
+                }
+            }
+            if (cookies.size() == current.cookies.size()) {
+                return false;
+            }
+            updated = new Snapshot(cookies);
+        } while (!snapshot.compareAndSet(current, updated));
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        snapshot.set(new Snapshot(Collections.<Cookie>emptyList()));
+    }
+
+    /**
+     * Get <code>Cookie</code> headers for the origin. Headers are formatted once per set of matching cookies
+     * and cookie spec and cached until the cookies change.
+     * @param origin cookie origin
+     * @param cookieSpec cookie spec
+     * @return headers, empty when no cookie matches
+     */
+    List<Header> getCookieHeaders(final CookieOrigin origin, final CookieSpec cookieSpec) {
+        final Snapshot current = current();
+        final List<Cookie> cookies = current.cookies;
+        if (cookies.size() > MAX_CACHED_COOKIES) {
+            final List<Cookie> matched = new ArrayList<Cookie>();
+            for (final Cookie cookie : cookies) {
+                if (cookieSpec.match(cookie, origin)) {
+                    matched.add(cookie);
+                }
+            }
+            return matched.isEmpty() ? Collections.<Header>emptyList() : cookieSpec.formatCookies(matched);
+        }
+        long mask = 0;
+        for (int i = 0; i < cookies.size(); i++) {
+            if (cookieSpec.match(cookies.get(i), origin)) {
+                mask |= 1L << i;
+            }
+        }
+        return mask == 0 ? Collections.<Header>emptyList() : current.headers(mask, cookieSpec);
+    }
+
+    /**
+     * Current snapshot without expired cookies.
+     */
+    private Snapshot current() {
+        final Snapshot current = snapshot.get();
+        if (current.nextExpiry <= System.currentTimeMillis()) {
+            clearExpired(new Date());
+            return snapshot.get();
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot.get().cookies.toString();
+    }
+
+    /**
+     * Immutable list of cookies with cache of formatted headers.
+     */
+    private static final class Snapshot {
+
+        private final List<Cookie> cookies;
+
+        private final long nextExpiry;
+
+        private final ConcurrentMap<Long, CachedHeaders> headers = new ConcurrentHashMap<Long, CachedHeaders>();
+
+        private Snapshot(final List<Cookie> cookies) {
+            this.cookies = Collections.unmodifiableList(cookies);
+            long expiry = Long.MAX_VALUE;
+            for (final Cookie cookie : cookies) {
+                if (cookie.getExpiryDate() != null) {
+                    expiry = Math.min(expiry, cookie.getExpiryDate().getTime());
+                }
+            }
+            nextExpiry = expiry;
+        }
+
+        private List<Header> headers(final long mask, final CookieSpec cookieSpec) {
+            final CachedHeaders cached = headers.get(mask);
+            if (cached != null && cached.cookieSpec == cookieSpec.getClass()) {
+                return cached.headers;
+            }
+            final List<Cookie> matched = new ArrayList<Cookie>(Long.bitCount(mask));
+            for (int i = 0; i < cookies.size(); i++) {
+                if ((mask & (1L << i)) != 0) {
+                    matched.add(cookies.get(i));
+                }
+            }
+            final List<Header> formatted = Collections.unmodifiableList(cookieSpec.formatCookies(matched));
+            headers.put(mask, new CachedHeaders(cookieSpec.getClass(), formatted));
+            return formatted;
+        }
+    }
+
+    private static final class CachedHeaders {
+
+        private final Class<?> cookieSpec;
+
+        private final List<Header> headers;
+
+        private CachedHeaders(final Class<?> cookieSpec, final List<Header> headers) {
+            this.cookieSpec = cookieSpec;
+            this.headers = headers;
+        }
+    }
+}
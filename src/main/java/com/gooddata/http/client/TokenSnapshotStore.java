@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * <p>Stores snapshot of GoodData authentication cookies (SST and TT) in a file, so restarted process can use them
+ * instead of logging in again.</p>
+ *
+ * <p>The snapshot is encrypted (AES-CBC) and authenticated (HMAC-SHA256) using keys derived from the given secret.
+ * Snapshot which can't be authenticated, is of unknown version or older than the maximum age is rejected.
+ * Expired cookies are never restored.</p>
+ *
+ * <h3>Usage</h3>
+ * <pre>
+ * GoodDataHttpClient client = new GoodDataHttpClient(httpClient, sstStrategy);
+ * client.setTokenSnapshotStore(new TokenSnapshotStore(new File("/var/lib/app/gooddata.tokens"), secret));
+ * </pre>
+ */
+public class TokenSnapshotStore {
+
+    private static final int VERSION = 1;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String MAC = "HmacSHA256";
+    private static final long DEFAULT_MAX_AGE_HOURS = 24;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final File file;
+
+    private final SecretKeySpec encryptionKey;
+
+    private final SecretKeySpec macKey;
+
+    private final long maxAgeMillis;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Construct object.
+     * @param file snapshot file
+     * @param secret secret the keys are derived from, at least 16 bytes
+     * @param maxAge maximum age of the snapshot accepted
+     * @param unit time unit of the maximum age
+     */
+    public TokenSnapshotStore(final File file, final byte[] secret, final long maxAge, final TimeUnit unit) {
+        notNull(file, "File cannot be null");
+        notNull(secret, "Secret cannot be null");
+        notNull(unit, "Time unit cannot be null");
+        isTrue(secret.length >= 16, "Secret must have at least 16 bytes");
+        isTrue(maxAge > 0, "Max age must be positive");
+        this.file = file;
+        this.encryptionKey = new SecretKeySpec(Arrays.copyOf(deriveKey("encryption", secret), 16), "AES");
+        this.macKey = new SecretKeySpec(deriveKey("authentication", secret), MAC);
+        this.maxAgeMillis = unit.toMillis(maxAge);
+    }
+
+    /**
+     * Construct object accepting snapshots up to 24 hours old.
+     * @param file snapshot file
+     * @param secret secret the keys are derived from, at least 16 bytes
+     */
+    public TokenSnapshotStore(final File file, final byte[] secret) {
+        this(file, secret, DEFAULT_MAX_AGE_HOURS, TimeUnit.HOURS);
+    }
+
+    private static byte[] deriveKey(final String purpose, final byte[] secret) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(purpose.getBytes("UTF-8"));
+            digest.update(secret);
+            return digest.digest();
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Unable to derive key", e);
+        }
+    }
+
+    /**
+     * Save GoodData authentication cookies of the cookie store.
+     * @param cookieStore cookie store
+     * @throws IOException unable to write the snapshot
+     */
+    public void save(final CookieStore cookieStore) throws IOException {
+        notNull(cookieStore, "Cookie store cannot be null");
+        final List<Cookie> cookies = new ArrayList<Cookie>();
+        for (final Cookie cookie : cookieStore.getCookies()) {
+            if (isAuthCookie(cookie)) {
+                cookies.add(cookie);
+            }
+        }
+        final byte[] snapshot = seal(serialize(cookies, System.currentTimeMillis()));
+
+        final Path target = file.toPath().toAbsolutePath();
+        final Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                log.debug("Unable to restrict snapshot file permissions", e);
+            }
+            Files.write(temp, snapshot);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        log.debug("Saved " + cookies.size() + " authentication cookies to " + file);
+    }
+
+    /**
+     * Restore GoodData authentication cookies into the cookie store. Invalid snapshot is ignored.
+     * @param cookieStore cookie store
+     * @return <code>true</code> when valid snapshot has been restored
+     */
+    public boolean restore(final CookieStore cookieStore) {
+        notNull(cookieStore, "Cookie store cannot be null");
+        if (!file.exists()) {
+            return false;
+        }
+        final List<Cookie> cookies;
+        try {
+            cookies = deserialize(open(Files.readAllBytes(file.toPath())));
+        } catch (IOException | GeneralSecurityException e) {
+            log.warn("Rejecting authentication snapshot " + file + ": " + e.getMessage());
+            return false;
+        }
+        final Date now = new Date();
+        for (final Cookie cookie : cookies) {
+            if (!cookie.isExpired(now)) {
+                cookieStore.addCookie(cookie);
+            }
+        }
+        log.debug("Restored authentication cookies from " + file);
+        return true;
+    }
+
+    /**
+     * Delete the snapshot.
+     * @throws IOException unable to delete the snapshot
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static boolean isAuthCookie(final Cookie cookie) {
+        return CookieUtils.SST_COOKIE_NAME.equals(cookie.getName()) || CookieUtils.TT_COOKIE_NAME.equals(cookie.getName());
+    }
+
+    private byte[] serialize(final List<Cookie> cookies, final long created) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeLong(created);
+        output.writeInt(cookies.size());
+        for (final Cookie cookie : cookies) {
+            output.writeUTF(cookie.getName());
+            output.writeUTF(cookie.getValue() != null ? cookie.getValue() : "");
+            output.writeUTF(cookie.getDomain() != null ? cookie.getDomain() : "");
+            output.writeUTF(cookie.getPath() != null ? cookie.getPath() : "");
+            output.writeBoolean(cookie.isSecure());
+            output.writeLong(cookie.getExpiryDate() != null ? cookie.getExpiryDate().getTime() : -1);
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private List<Cookie> deserialize(final byte[] content) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(content));
+        final long created = input.readLong();
+        if (System.currentTimeMillis() - created > maxAgeMillis) {
+            throw new IOException("snapshot expired");
+        }
+        final int count = input.readInt();
+        final List<Cookie> cookies = new ArrayList<Cookie>(count);
+        for (int i = 0; i < count; i++) {
+            final BasicClientCookie cookie = new BasicClientCookie(input.readUTF(), input.readUTF());
+            cookie.setDomain(input.readUTF());
+            cookie.setPath(input.readUTF());
+            cookie.setSecure(input.readBoolean());
+            final long expiry = input.readLong();
+            if (expiry >= 0) {
+                cookie.setExpiryDate(new Date(expiry));
+            }
+            if (!isAuthCookie(cookie)) {
+                throw new IOException("unexpected cookie " + cookie.getName());
+            }
+            cookies.add(cookie);
+        }
+        return cookies;
+    }
+
+    /**
+     * Encrypt and authenticate: version | IV | ciphertext | MAC(version | IV | ciphertext)
+     */
+    private byte[] seal(final byte[] content) throws IOException {
+        try {
+            final byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            final ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            sealed.write(VERSION);
+            sealed.write(iv);
+            sealed.write(cipher.doFinal(content));
+            sealed.write(mac(sealed.toByteArray()));
+            return sealed.toByteArray();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt snapshot", e);
+        }
+    }
+
+    private byte[] open(final byte[] sealed) throws GeneralSecurityException, IOException {
+        if (sealed.length < 1 + IV_LENGTH + MAC_LENGTH || sealed[0] != VERSION) {
+            throw new IOException("unknown format");
+        }
+        final int macOffset = sealed.length - MAC_LENGTH;
+        final byte[] expectedMac = mac(Arrays.copyOf(sealed, macOffset));
+        if (!MessageDigest.isEqual(expectedMac, Arrays.copyOfRange(sealed, macOffset, sealed.length))) {
+            throw new IOException("authentication failed");
+        }
+        final Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(sealed, 1, IV_LENGTH));
+        return cipher.doFinal(sealed, 1 + IV_LENGTH, macOffset - 1 - IV_LENGTH);
+    }
+
+    private byte[] mac(final byte[] content) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(MAC);
+        mac.init(macKey);
+        return mac.doFinal(content);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang.Validate.isTrue;
+import static org.apache.commons.lang.Validate.notNull;
+
+/**
+ * Schedules temporary token (TT) refresh shortly before the TT expires.
+ * <p>
+ * TT lifetime is taken from the expiry of the TT cookie when the server sends one, otherwise it is learned
+ * from the time between a TT refresh and the next TT challenge.
+ */
+class TtRefreshScheduler {
+
+    /**
+     * Callback performing the refresh.
+     */
+    interface Refresh {
+        void refresh(HttpHost httpHost);
+    }
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final ScheduledExecutorService executor;
+
+    private final long marginMillis;
+
+    private final Refresh refresh;
+
+    private long learnedLifetimeMillis = -1;
+
+    private long lastRefreshMillis = -1;
+
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * Construct object.
+     * @param executor executor running the refresh
+     * @param marginMillis how long before the expiry the TT is refreshed
+     * @param refresh refresh callback
+     */
+    TtRefreshScheduler(final ScheduledExecutorService executor, final long marginMillis, final Refresh refresh) {
+        notNull(executor, "Executor cannot be null");
+        notNull(refresh, "Refresh cannot be null");
+        isTrue(marginMillis >= 0, "Margin cannot be negative");
+        this.executor = executor;
+        this.marginMillis = marginMillis;
+        this.refresh = refresh;
+    }
+
+    /**
+     * TT has been successfully refreshed.
+     * @param httpHost host the TT belongs to
+     * @param expiry expiry of the TT cookie, <code>null</code> for session cookie
+     */
+    synchronized void ttRefreshed(final HttpHost httpHost, final Date expiry) {
+        final long now = currentTimeMillis();
+        lastRefreshMillis = now;
+        final long lifetime = expiry != null ? expiry.getTime() - now : learnedLifetimeMillis;
+        cancel();
+        if (lifetime <= 0) {
+            log.debug("TT lifetime unknown, proactive refresh not scheduled");
+            return;
+        }
+        final long delay = delay(lifetime);
+        log.debug("Scheduling TT refresh in " + delay + " ms");
+        scheduled = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh.refresh(httpHost);
+                } catch (RuntimeException e) {
+                    log.warn("Proactive TT refresh failed, falling back to refresh on challenge", e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * TT challenge has been received, i.e. the TT has already expired.
+     */
+    synchronized void ttExpired() {
+        if (lastRefreshMillis < 0) {
+            return;
+        }
+        final long observed = currentTimeMillis() - lastRefreshMillis;
+        if (learnedLifetimeMillis < 0 || observed < learnedLifetimeMillis) {
+            log.debug("Learned TT lifetime " + observed + " ms");
+            learnedLifetimeMillis = observed;
+        }
+        lastRefreshMillis = -1;
+    }
+
+    /**
+     * Cancel scheduled refresh.
+     */
+    synchronized void cancel() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    synchronized long getLearnedLifetimeMillis() {
+        return learnedLifetimeMillis;
+    }
+
+    private long delay(final long lifetime) {
+        return lifetime > 2 * marginMillis ? lifetime - marginMillis : lifetime / 2;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
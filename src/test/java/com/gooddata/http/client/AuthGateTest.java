@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class AuthGateTest {
+
+    private AuthGate gate;
+
+    private GoodDataAuthListener listener;
+
+    @Before
+    public void setUp() {
+        gate = new AuthGate();
+        listener = mock(GoodDataAuthListener.class);
+    }
+
+    @Test
+    public void enter_open() throws InterruptedIOException {
+        assertEquals(0, gate.enter(listener));
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void close_currentGeneration() throws InterruptedIOException {
+        assertTrue(gate.close(gate.enter(listener)));
+        gate.open(null);
+        assertEquals(1, gate.enter(listener));
+    }
+
+    @Test
+    public void close_staleGeneration() throws InterruptedIOException {
+        final long generation = gate.enter(listener);
+        assertTrue(gate.close(generation));
+        gate.open(null);
+
+        assertFalse(gate.close(generation));
+        assertEquals(1, gate.generation());
+    }
+
+    @Test
+    public void unlock_authenticated() throws InterruptedIOException {
+        final long generation = gate.enter(listener);
+        assertTrue(gate.lock(generation));
+        gate.unlock(true);
+
+        assertFalse(gate.close(generation));
+        assertEquals(1, gate.generation());
+    }
+
+    @Test
+    public void unlock_failed() throws InterruptedIOException {
+        final long generation = gate.enter(listener);
+        assertTrue(gate.lock(generation));
+        gate.unlock(false);
+
+        assertTrue(gate.close(generation));
+        gate.open(null);
+    }
+
+    @Test
+    public void open_failure() throws InterruptedIOException {
+        final long generation = gate.enter(listener);
+        final GoodDataAuthException failure = new GoodDataAuthException("failed");
+        assertTrue(gate.close(generation));
+        gate.open(failure);
+
+        assertFalse(gate.close(generation));
+        assertSame(failure, gate.failure());
+
+        assertTrue(gate.close(gate.enter(listener)));
+        gate.open(null);
+        assertNull(gate.failure());
+    }
+
+    @Test
+    public void enter_waitsForAuthentication() throws Exception {
+        assertTrue(gate.close(gate.generation()));
+        final AtomicLong entered = new AtomicLong(-1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread request = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    entered.set(gate.enter(listener));
+                } catch (InterruptedIOException e) {
+                    throw new IllegalStateException(e);
+                }
+                done.countDown();
+            }
+        };
+        request.start();
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        gate.open(null);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(1, entered.get());
+        verify(listener).gateWait(anyLong());
+    }
+
+    @Test
+    public void lock_staleGeneration() throws InterruptedIOException {
+        final long generation = gate.enter(listener);
+        assertTrue(gate.lock(generation));
+        gate.unlock(true);
+
+        assertFalse(gate.lock(generation));
+        assertEquals(1, gate.generation());
+    }
+
+    @Test
+    public void lock_doesNotBlockRequests() throws InterruptedIOException {
+        assertTrue(gate.lock(gate.generation()));
+        try {
+            assertEquals(0, gate.enter(listener));
+        } finally {
+            gate.unlock(false);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+public class BatchExecutorTest {
+
+    private static final int CONCURRENCY = 3;
+
+    @Mock
+    public HttpClient httpClient;
+
+    private ExecutorService executor;
+
+    private BatchExecutor batchExecutor;
+
+    private HttpHost host;
+
+    private ResponseHandler<String> uriHandler;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        host = new HttpHost("server.com");
+        executor = Executors.newFixedThreadPool(10);
+        batchExecutor = new BatchExecutor(httpClient, CONCURRENCY, executor);
+        uriHandler = new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) {
+                return response.getFirstHeader("X-Uri").getValue();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private List<HttpGet> requests(final int count) {
+        final List<HttpGet> requests = new ArrayList<HttpGet>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new HttpGet("/gdc/md/project/obj/" + i));
+        }
+        return requests;
+    }
+
+    @Test
+    public void execute_allResults() throws IOException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                final int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                Thread.sleep(5);
+                running.decrementAndGet();
+                final HttpResponse response = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("https", 1, 1), HttpStatus.SC_OK, "OK"));
+                response.setHeader("X-Uri", ((HttpRequest) invocation.getArguments()[1]).getRequestLine().getUri());
+                return response;
+            }
+        });
+
+        final BatchResults<String> results = batchExecutor.execute(host, requests(20), uriHandler);
+        final Set<String> uris = new HashSet<String>();
+        while (results.hasNext()) {
+            final BatchResult<String> result = results.next();
+            assertTrue(result.isSuccess());
+            assertEquals(result.getRequest().getRequestLine().getUri(), result.getResult());
+            uris.add(result.getResult());
+        }
+
+        assertEquals(20, uris.size());
+        assertTrue(maxRunning.get() <= CONCURRENCY);
+    }
+
+    @Test
+    public void execute_failure() throws IOException {
+        final IOException failure = new IOException("Connection reset");
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenThrow(failure);
+
+        final BatchResults<String> results = batchExecutor.execute(host, requests(1), uriHandler);
+        final BatchResult<String> result = results.next();
+
+        assertFalse(result.isSuccess());
+        assertEquals(failure, result.getFailure());
+        assertFalse(results.hasNext());
+    }
+
+    @Test
+    public void execute_empty() {
+        assertFalse(batchExecutor.execute(host, new ArrayList<HttpGet>(), uriHandler).hasNext());
+    }
+
+    @Test
+    public void createExecutor() throws Exception {
+        final ExecutorService executor = BatchExecutor.createExecutor(2);
+        try {
+            assertEquals("done", executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return "done";
+                }
+            }).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_zeroConcurrency() {
+        new BatchExecutor(httpClient, 0, executor);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CircuitBreakerSSTRetrievalStrategyTest {
+
+    @Mock
+    public SSTRetrievalStrategy sstStrategy;
+
+    private CircuitBreakerSSTRetrievalStrategy circuitBreaker;
+
+    private long now;
+
+    private GoodDataAuthException failure;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        now = 1000000;
+        failure = new GoodDataAuthException("Unable to login: 401");
+        circuitBreaker = new CircuitBreakerSSTRetrievalStrategy(sstStrategy, 2, 1000, 4000, TimeUnit.MILLISECONDS) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void obtainSst() {
+        when(sstStrategy.obtainSst()).thenReturn("sst");
+
+        assertEquals("sst", circuitBreaker.obtainSst());
+        assertEquals(CircuitBreakerSSTRetrievalStrategy.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void obtainSst_opensAfterThreshold() {
+        when(sstStrategy.obtainSst()).thenThrow(failure);
+
+        assertFailure();
+        assertEquals(CircuitBreakerSSTRetrievalStrategy.State.CLOSED, circuitBreaker.getState());
+        assertFailure();
+        assertEquals(CircuitBreakerSSTRetrievalStrategy.State.OPEN, circuitBreaker.getState());
+
+        assertFailure();
+        verify(sstStrategy, times(2)).obtainSst();
+    }
+
+    @Test
+    public void obtainSst_halfOpenSuccess() {
+        when(sstStrategy.obtainSst()).thenThrow(failure).thenThrow(failure).thenReturn("sst");
+        assertFailure();
+        assertFailure();
+
+        now += 1000;
+        assertEquals("sst", circuitBreaker.obtainSst());
+        assertEquals(CircuitBreakerSSTRetrievalStrategy.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void obtainSst_halfOpenFailureDoublesBackoff() {
+        when(sstStrategy.obtainSst()).thenThrow(failure);
+        assertFailure();
+        assertFailure();
+
+        now += 1000;
+        assertFailure();
+        verify(sstStrategy, times(3)).obtainSst();
+        assertEquals(CircuitBreakerSSTRetrievalStrategy.State.OPEN, circuitBreaker.getState());
+
+        now += 999;
+        assertFailure();
+        verify(sstStrategy, times(3)).obtainSst();
+
+        now += 1001;
+        assertFailure();
+        verify(sstStrategy, times(4)).obtainSst();
+    }
+
+    @Test
+    public void obtainSst_wrapsRuntimeException() {
+        when(sstStrategy.obtainSst()).thenThrow(new IllegalStateException("broken"));
+
+        try {
+            circuitBreaker.obtainSst();
+            fail("Expected GoodDataAuthException");
+        } catch (GoodDataAuthException e) {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_invalidBackoff() {
+        new CircuitBreakerSSTRetrievalStrategy(sstStrategy, 1, 10, 1, TimeUnit.SECONDS);
+    }
+
+    private void assertFailure() {
+        try {
+            circuitBreaker.obtainSst();
+            fail("Expected GoodDataAuthException");
+        } catch (GoodDataAuthException e) {
+            assertSame(failure, e);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class ConcurrencyLimiterTest {
+
+    private final HttpHost host = new HttpHost("server.com");
+
+    private final HttpGet get = new HttpGet("/gdc");
+
+    @Mock
+    private GoodDataAuthListener listener;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    private static HttpResponse response(final int status) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+    }
+
+    @Test
+    public void rejectsOverLimit() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10, 1, TimeUnit.SECONDS);
+        final ConcurrencyLimiter.Permit permit = limiter.acquire(host, listener);
+        limiter.acquire(host, listener);
+        try {
+            limiter.acquire(host, listener);
+            fail("Expected ConcurrencyLimitException");
+        } catch (ConcurrencyLimitException expected) {
+            // ok
+        }
+        assertEquals(2, limiter.getInFlight(host));
+        assertEquals(1, limiter.getRejectedCount());
+
+        permit.release();
+        limiter.acquire(host, listener);
+        assertEquals(0, limiter.getInFlight(new HttpHost("other.com")));
+    }
+
+    @Test
+    public void increasesWhileInUse() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 3, 1, TimeUnit.SECONDS);
+        for (int i = 0; i < 20; i++) {
+            final ConcurrencyLimiter.Permit permit = limiter.acquire(host, listener);
+            while (limiter.getInFlight(host) < limiter.getLimit(host)) {
+                limiter.acquire(host, listener);
+            }
+            permit.completed(get, response(HttpStatus.SC_OK), null);
+        }
+        assertEquals(3, limiter.getLimit(host));
+    }
+
+    @Test
+    public void doesNotIncreaseWhenUnused() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 10, 1, TimeUnit.SECONDS);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(host, listener).completed(get, response(HttpStatus.SC_OK), null);
+        }
+        assertEquals(4, limiter.getLimit(host));
+    }
+
+    @Test
+    public void decreasesOnceOnOverloadBurst() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, 1, TimeUnit.SECONDS);
+        final ConcurrencyLimiter.Permit first = limiter.acquire(host, listener);
+        final ConcurrencyLimiter.Permit second = limiter.acquire(host, listener);
+        first.completed(get, response(HttpStatus.SC_SERVICE_UNAVAILABLE), null);
+        second.completed(get, response(HttpStatus.SC_SERVICE_UNAVAILABLE), null);
+        assertEquals(9, limiter.getLimit(host));
+
+        limiter.acquire(host, listener).completed(get, response(429), null);
+        assertEquals(8, limiter.getLimit(host));
+        assertEquals(0, limiter.getInFlight(host));
+        verify(listener).concurrencyLimit(host, 9);
+        verify(listener).concurrencyLimit(host, 8);
+    }
+
+    @Test
+    public void decreasesOnTimeout() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, 1, TimeUnit.SECONDS);
+        limiter.acquire(host, listener).failed(new IOException("Connection reset"));
+        assertEquals(10, limiter.getLimit(host));
+        limiter.acquire(host, listener).failed(new SocketTimeoutException());
+        assertEquals(9, limiter.getLimit(host));
+    }
+
+    @Test
+    public void decreasesOnSlowResponse() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, 1, TimeUnit.MILLISECONDS);
+        final ConcurrencyLimiter.Permit permit = limiter.acquire(host, listener);
+        Thread.sleep(5);
+        permit.completed(get, response(HttpStatus.SC_OK), null);
+        assertTrue(limiter.getLimit(host) < 10);
+    }
+
+    @Test
+    public void releasesWhenEntityConsumed() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, 1, TimeUnit.SECONDS);
+        final HttpResponse response = response(HttpStatus.SC_OK);
+        response.setEntity(new StringEntity("body"));
+        final ConcurrencyLimiter.Permit permit = limiter.acquire(host, listener);
+        permit.completed(get, response, null);
+        assertEquals(1, limiter.getInFlight(host));
+
+        assertEquals("body", EntityUtils.toString(response.getEntity()));
+        assertEquals(0, limiter.getInFlight(host));
+
+        permit.release();
+        assertEquals(0, limiter.getInFlight(host));
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void releasesWhenConnectionReleased() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, 1, TimeUnit.SECONDS);
+        final ConnectionReleaseTrigger connection = mock(ConnectionReleaseTrigger.class);
+        final HttpResponse response = response(HttpStatus.SC_OK);
+        response.setEntity(new StringEntity("body"));
+        limiter.acquire(host, listener).completed(get, response, connection);
+        assertEquals(1, limiter.getInFlight(host));
+
+        get.releaseConnection();
+        assertEquals(0, limiter.getInFlight(host));
+        verify(connection).abortConnection();
+
+        EntityUtils.consume(response.getEntity());
+        assertEquals(0, limiter.getInFlight(host));
+    }
+
+    @Test
+    public void releasesWhenAborted() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, 1, TimeUnit.SECONDS);
+        final HttpResponse response = response(HttpStatus.SC_OK);
+        response.setEntity(new StringEntity("body"));
+        limiter.acquire(host, listener).completed(get, response, null);
+        assertEquals(1, limiter.getInFlight(host));
+
+        get.abort();
+        assertEquals(0, limiter.getInFlight(host));
+    }
+}
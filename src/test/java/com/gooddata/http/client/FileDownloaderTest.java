@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+public class FileDownloaderTest {
+
+    private static final String CONTENT = "a,b,c\n1,2,3\n4,5,6\n7,8,9\n";
+
+    private static final String ETAG = "\"export1\"";
+
+    private static final String URI = "/gdc/exporter/result/1";
+
+    @Mock
+    public HttpClient httpClient;
+
+    @Mock
+    public SSTRetrievalStrategy sstStrategy;
+
+    private HttpHost host;
+
+    private File file;
+
+    private List<HttpRequest> requests;
+
+    @Before
+    public void setUp() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        host = new HttpHost("server.com");
+        file = File.createTempFile("download", ".csv");
+        requests = new ArrayList<HttpRequest>();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void respond(final HttpResponse... responses) throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            private int next;
+
+            @Override
+            public HttpResponse answer(final InvocationOnMock invocation) {
+                requests.add((HttpRequest) invocation.getArguments()[1]);
+                return responses[next++];
+            }
+        });
+        executeWithoutContext();
+    }
+
+    private void executeWithoutContext() throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(final InvocationOnMock invocation) throws IOException {
+                return httpClient.execute(host, (HttpRequest) invocation.getArguments()[1], (HttpContext) null);
+            }
+        });
+    }
+
+    private static HttpResponse response(final int status, final InputStream content, final long length) {
+        final HttpResponse response = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), status, "Status"));
+        final BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(content);
+        entity.setContentLength(length);
+        response.setEntity(entity);
+        response.setHeader("ETag", ETAG);
+        return response;
+    }
+
+    private static HttpResponse full() {
+        return response(HttpStatus.SC_OK, new ByteArrayInputStream(CONTENT.getBytes()), CONTENT.length());
+    }
+
+    /**
+     * Full response whose transfer breaks after given number of bytes.
+     */
+    private static HttpResponse broken(final int bytes) {
+        final InputStream content = new ByteArrayInputStream(CONTENT.getBytes(), 0, bytes);
+        return response(HttpStatus.SC_OK, new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final int read = content.read();
+                if (read < 0) {
+                    throw new IOException("Connection reset");
+                }
+                return read;
+            }
+        }, CONTENT.length());
+    }
+
+    private static HttpResponse partial(final int from) {
+        final HttpResponse response = response(HttpStatus.SC_PARTIAL_CONTENT,
+                new ByteArrayInputStream(CONTENT.substring(from).getBytes()), CONTENT.length() - from);
+        response.setHeader("Content-Range", "bytes " + from + "-" + (CONTENT.length() - 1) + "/" + CONTENT.length());
+        return response;
+    }
+
+    private String fileContent() throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void download() throws IOException {
+        respond(full());
+
+        assertEquals(CONTENT.length(), new FileDownloader(httpClient).download(host, URI, file));
+        assertEquals(CONTENT, fileContent());
+        assertFalse(requests.get(0).containsHeader("Range"));
+    }
+
+    @Test
+    public void download_resumesBrokenTransfer() throws IOException {
+        respond(broken(10), partial(10));
+        final FileDownloader downloader = new FileDownloader(httpClient);
+        downloader.setBufferSize(4);
+
+        assertEquals(CONTENT.length(), downloader.download(host, URI, file));
+        assertEquals(CONTENT, fileContent());
+        assertEquals("bytes=10-", requests.get(1).getFirstHeader("Range").getValue());
+        assertEquals(ETAG, requests.get(1).getFirstHeader("If-Range").getValue());
+    }
+
+    @Test
+    public void download_restartsWhenRangeIgnored() throws IOException {
+        respond(broken(10), full());
+
+        assertEquals(CONTENT.length(), new FileDownloader(httpClient).download(host, URI, file));
+        assertEquals(CONTENT, fileContent());
+    }
+
+    @Test
+    public void download_resumesAfterTtRefresh() throws IOException {
+        final HttpResponse ttChallenge = response(HttpStatus.SC_UNAUTHORIZED, new ByteArrayInputStream(new byte[0]), 0);
+        ttChallenge.setHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT");
+        final HttpResponse ttRefreshed = response(HttpStatus.SC_OK, new ByteArrayInputStream(new byte[0]), 0);
+        respond(broken(10), ttChallenge, ttRefreshed, partial(10));
+
+        final GoodDataHttpClient client = new GoodDataHttpClient(httpClient, sstStrategy);
+        assertEquals(CONTENT.length(), new FileDownloader(client).download(host, URI, file));
+        assertEquals(CONTENT, fileContent());
+        assertEquals(GoodDataHttpClient.TOKEN_URL, requests.get(2).getRequestLine().getUri());
+        assertEquals("bytes=10-", requests.get(3).getFirstHeader("Range").getValue());
+    }
+
+    @Test
+    public void download_maxResumesExceeded() throws IOException {
+        respond(broken(10), broken(10));
+        final FileDownloader downloader = new FileDownloader(httpClient);
+        downloader.setMaxResumes(0);
+
+        try {
+            downloader.download(host, URI, file);
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+    }
+
+    /**
+     * Serve ranges of the content, the first request of the given range is rejected by TT challenge.
+     */
+    private void serveRanges(final String challengedRange) throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            private boolean challenged;
+
+            @Override
+            public HttpResponse answer(final InvocationOnMock invocation) {
+                final HttpRequest request = (HttpRequest) invocation.getArguments()[1];
+                synchronized (requests) {
+                    requests.add(request);
+                }
+                if (GoodDataHttpClient.TOKEN_URL.equals(request.getRequestLine().getUri())) {
+                    return response(HttpStatus.SC_OK, new ByteArrayInputStream(new byte[0]), 0);
+                }
+                final String range = request.getFirstHeader("Range").getValue();
+                synchronized (this) {
+                    if (range.equals(challengedRange) && !challenged) {
+                        challenged = true;
+                        final HttpResponse response = response(HttpStatus.SC_UNAUTHORIZED, new ByteArrayInputStream(new byte[0]), 0);
+                        response.setHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT");
+                        return response;
+                    }
+                }
+                final int first = Integer.parseInt(range.substring(6, range.indexOf('-')));
+                final int last = Math.min(Integer.parseInt(range.substring(range.indexOf('-') + 1)), CONTENT.length() - 1);
+                final HttpResponse response = response(HttpStatus.SC_PARTIAL_CONTENT,
+                        new ByteArrayInputStream(CONTENT.substring(first, last + 1).getBytes()), last - first + 1);
+                response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + CONTENT.length());
+                return response;
+            }
+        });
+        executeWithoutContext();
+    }
+
+    private static List<String> ranges(final List<HttpRequest> requests) {
+        final List<String> ranges = new ArrayList<String>();
+        for (HttpRequest request : requests) {
+            if (request.containsHeader("Range")) {
+                ranges.add(request.getFirstHeader("Range").getValue());
+            }
+        }
+        Collections.sort(ranges);
+        return ranges;
+    }
+
+    @Test
+    public void download_segmented() throws IOException {
+        serveRanges(null);
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        downloader.setMinSegmentSize(6);
+        try {
+            assertEquals(CONTENT.length(), downloader.download(host, URI, file));
+        } finally {
+            downloader.shutdown();
+        }
+
+        assertEquals(CONTENT, fileContent());
+        assertEquals(Arrays.asList("bytes=0-5", "bytes=15-23", "bytes=6-14"), ranges(requests));
+        assertEquals(ETAG, requests.get(1).getFirstHeader("If-Range").getValue());
+    }
+
+    @Test
+    public void download_segmentedSmallResource() throws IOException {
+        serveRanges(null);
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        downloader.setMinSegmentSize(100);
+        try {
+            assertEquals(CONTENT.length(), downloader.download(host, URI, file));
+        } finally {
+            downloader.shutdown();
+        }
+
+        assertEquals(CONTENT, fileContent());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void download_segmentedRangeNotSupported() throws IOException {
+        respond(full());
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        try {
+            assertEquals(CONTENT.length(), downloader.download(host, URI, file));
+        } finally {
+            downloader.shutdown();
+        }
+
+        assertEquals(CONTENT, fileContent());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void download_segmentedTtChallenge() throws IOException {
+        serveRanges("bytes=15-23");
+        final FileDownloader downloader = new FileDownloader(new GoodDataHttpClient(httpClient, sstStrategy), 3);
+        downloader.setMinSegmentSize(6);
+        try {
+            assertEquals(CONTENT.length(), downloader.download(host, URI, file));
+        } finally {
+            downloader.shutdown();
+        }
+
+        assertEquals(CONTENT, fileContent());
+        assertEquals(Arrays.asList("bytes=0-5", "bytes=15-23", "bytes=15-23", "bytes=6-14"), ranges(requests));
+    }
+
+    @Test(expected = ClientProtocolException.class)
+    public void download_segmentedResourceChanged() throws IOException {
+        final HttpResponse first = partial(0);
+        first.setHeader("Content-Range", "bytes 0-5/" + CONTENT.length());
+        first.setEntity(new ByteArrayEntity(CONTENT.substring(0, 6).getBytes()));
+        respond(first, full(), full());
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        downloader.setMinSegmentSize(6);
+        try {
+            downloader.download(host, URI, file);
+        } finally {
+            downloader.shutdown();
+        }
+    }
+
+    @Test(expected = ClientProtocolException.class)
+    public void download_segmentContentLengthMismatch() throws IOException {
+        final HttpResponse first = partial(0);
+        first.setHeader("Content-Range", "bytes 0-5/" + CONTENT.length());
+        respond(first);
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        downloader.setMinSegmentSize(6);
+        try {
+            downloader.download(host, URI, file);
+        } finally {
+            downloader.shutdown();
+        }
+    }
+
+    @Test(expected = HttpResponseException.class)
+    public void download_notFound() throws IOException {
+        respond(response(HttpStatus.SC_NOT_FOUND, new ByteArrayInputStream(new byte[0]), 0));
+
+        new FileDownloader(httpClient).download(host, URI, file);
+    }
+
+    @Test
+    public void download_segmentedEmptyResource() throws IOException {
+        final HttpResponse response = response(416, new ByteArrayInputStream(new byte[0]), 0);
+        response.setHeader("Content-Range", "bytes */0");
+        respond(response);
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        try {
+            assertEquals(0, downloader.download(host, URI, file));
+        } finally {
+            downloader.shutdown();
+        }
+
+        assertEquals(0, file.length());
+        assertEquals(1, requests.size());
+    }
+
+    @Test(timeout = 5000)
+    public void download_segmentFailureAbortsOtherSegments() throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(final InvocationOnMock invocation) {
+                final HttpGet request = (HttpGet) invocation.getArguments()[1];
+                final String range = request.getFirstHeader("Range").getValue();
+                if (!range.startsWith("bytes=0-")) {
+                    return response(HttpStatus.SC_NOT_FOUND, new ByteArrayInputStream(new byte[0]), 0);
+                }
+                // first segment stalls until its request is aborted
+                final HttpResponse response = response(HttpStatus.SC_PARTIAL_CONTENT, new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        while (!request.isAborted()) {
+                            Thread.yield();
+                        }
+                        throw new IOException("Connection aborted");
+                    }
+                }, 6);
+                response.setHeader("Content-Range", "bytes 0-5/" + CONTENT.length());
+                return response;
+            }
+        });
+        executeWithoutContext();
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        downloader.setMinSegmentSize(6);
+        try {
+            downloader.download(host, URI, file);
+            fail("HttpResponseException expected");
+        } catch (HttpResponseException e) {
+            assertEquals(HttpStatus.SC_NOT_FOUND, e.getStatusCode());
+        } finally {
+            downloader.shutdown();
+        }
+    }
+
+    @Test
+    public void download_restartsWithoutValidator() throws IOException {
+        final HttpResponse broken = broken(10);
+        broken.removeHeaders("ETag");
+        respond(broken, full());
+
+        assertEquals(CONTENT.length(), new FileDownloader(httpClient).download(host, URI, file));
+        assertEquals(CONTENT, fileContent());
+        assertFalse(requests.get(1).containsHeader("Range"));
+    }
+
+    @Test
+    public void download_segmentedWithoutValidator() throws IOException {
+        final HttpResponse first = partial(0);
+        first.setHeader("Content-Range", "bytes 0-5/" + CONTENT.length());
+        first.setEntity(new ByteArrayEntity(CONTENT.substring(0, 6).getBytes()));
+        first.removeHeaders("ETag");
+        respond(first, full());
+        final FileDownloader downloader = new FileDownloader(httpClient, 3);
+        downloader.setMinSegmentSize(6);
+        try {
+            assertEquals(CONTENT.length(), downloader.download(host, URI, file));
+        } finally {
+            downloader.shutdown();
+        }
+
+        assertEquals(CONTENT, fileContent());
+        assertEquals(2, requests.size());
+        assertTrue(((HttpGet) requests.get(0)).isAborted());
+        assertFalse(requests.get(1).containsHeader("Range"));
+    }
+
+    @Test
+    public void transfer_writeFailureAbortsRequest() throws IOException {
+        final HttpGet request = new HttpGet(URI);
+        final RandomAccessFile closed = new RandomAccessFile(file, "rw");
+        closed.close();
+
+        try {
+            FileDownloader.transfer(full().getEntity(), closed.getChannel(), 0, ByteBuffer.allocate(4), request);
+            fail("IOException expected");
+        } catch (FileDownloader.TransferException e) {
+            fail("Write failure reported as transfer failure");
+        } catch (IOException e) {
+            assertTrue(request.isAborted());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static net.jadler.Jadler.closeJadler;
+import static net.jadler.Jadler.initJadler;
+import static net.jadler.Jadler.onRequest;
+import static net.jadler.Jadler.port;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GoodDataHttpAsyncClientIntegrationTest {
+
+    private static final String GDC_TOKEN_URL = "/gdc/account/token";
+    public static final String GDC_LOGIN_URL = "/gdc/account/login";
+    public static final String GDC_PROJECTS_URL = "/gdc/projects";
+
+    private HttpHost jadlerHost;
+
+    private HttpAsyncClient httpClient;
+
+    private GoodDataHttpAsyncClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        initJadler();
+        jadlerHost = new HttpHost("localhost", port(), "http");
+
+        httpClient = new DefaultHttpAsyncClient();
+        httpClient.start();
+        final SSTRetrievalStrategy sstStrategy = new LoginSSTRetrievalStrategy(new DefaultHttpClient(), jadlerHost,
+                "user@email.com", "top secret");
+        client = new GoodDataHttpAsyncClient(httpClient, sstStrategy);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        httpClient.shutdown();
+        closeJadler();
+    }
+
+    @Test
+    public void getProjectOkloginAndTtRefresh() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withBody("<html><head><title>401 Authorization Required</title></head><body></body></html>")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("text/html; charset=UTF-8")
+        .thenRespond()
+                .withStatus(200)
+                .withBody("{\"about\":{\"summary\":\"Project Resources\",\"category\":\"Projects\",\"links\":[]}}")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("application/json; charset=UTF-8");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withBody("{\"parameters\":[],\"component\":\"Account::Token\",\"message\":\"/gdc/account/login\"}")
+                .withContentType("application/json")
+        .thenRespond()
+                .withStatus(200)
+                .withBody("{}")
+                .withHeader("Set-Cookie", "GDCAuthTT=cookieTt; path=/gdc; secure; HttpOnly")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(200)
+                .withBody("{\"userLogin\":{\"profile\":\"/gdc/account/profile/asdfasdf45t4ar\",\"state\":\"/gdc/account/login/asdfasdf45t4ar\"}}")
+                .withContentType("application/json")
+                .withHeader("Set-Cookie", "GDCAuthSST=cookieSst; path=/gdc/account; secure; HttpOnly");
+
+        assertEquals(HttpStatus.SC_OK, performGet().getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void getProjectsBadLogin() throws Exception {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT")
+                .withContentType("text/html");
+
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_TOKEN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST")
+                .withContentType("application/json");
+
+        onRequest()
+                .havingMethodEqualTo("POST")
+                .havingURIEqualTo(GDC_LOGIN_URL)
+        .respond()
+                .withStatus(401)
+                .withHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\"")
+                .withBody("{\"parameters\":[],\"component\":\"Account::Login::AuthShare\",\"message\":\"Bad Login or Password!\"}")
+                .withContentType("application/json");
+
+        try {
+            performGet();
+            fail("Expected GoodDataAuthException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GoodDataAuthException);
+        }
+    }
+
+    private HttpResponse performGet() throws Exception {
+        final HttpGet getProject = new HttpGet(GDC_PROJECTS_URL);
+        getProject.addHeader("Accept", ContentType.APPLICATION_JSON.getMimeType());
+        final HttpResponse response = client.execute(jadlerHost, getProject, null).get(10, TimeUnit.SECONDS);
+        EntityUtils.consume(response.getEntity());
+        return response;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.only;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GoodDataHttpAsyncClientTest {
+
+    private GoodDataHttpAsyncClient goodDataHttpClient;
+
+    @Mock
+    public HttpAsyncClient httpClient;
+
+    @Mock
+    public SSTRetrievalStrategy sstStrategy;
+
+    private HttpResponse ttChallengeResponse;
+
+    private HttpResponse sstChallengeResponse;
+
+    private HttpResponse okResponse;
+
+    private HttpResponse ttRefreshedResponse;
+
+    private HttpResponse response401;
+
+    private HttpHost host;
+
+    private HttpGet get;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        host = new HttpHost("server.com");
+        get = new HttpGet("/url");
+        goodDataHttpClient = new GoodDataHttpAsyncClient(httpClient, sstStrategy, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        });
+
+        ttChallengeResponse = createResponse(HttpStatus.SC_UNAUTHORIZED, "Unauthorized");
+        ttChallengeResponse.setHeader(new BasicHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT"));
+
+        sstChallengeResponse = createResponse(HttpStatus.SC_UNAUTHORIZED, "Unauthorized");
+        sstChallengeResponse.setHeader(new BasicHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthSST"));
+
+        response401 = createResponse(HttpStatus.SC_UNAUTHORIZED, "Unauthorized");
+        okResponse = createResponse(HttpStatus.SC_OK, "OK");
+        ttRefreshedResponse = createResponse(HttpStatus.SC_OK, "OK");
+    }
+
+    private HttpResponse createResponse(int status, String reasonPhrase) {
+        HttpResponse response = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("https", 1, 1), status, reasonPhrase));
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream("<html><body></body></html>".getBytes()));
+        response.setEntity(entity);
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void respond(final HttpResponse... responses) {
+        final Iterator<HttpResponse> iterator = Arrays.asList(responses).iterator();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class), any(FutureCallback.class)))
+                .thenAnswer(new Answer<Future<HttpResponse>>() {
+                    @Override
+                    public Future<HttpResponse> answer(InvocationOnMock invocation) throws Throwable {
+                        ((FutureCallback<HttpResponse>) invocation.getArguments()[3]).completed(iterator.next());
+                        return null;
+                    }
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verifyRequests(final int originalRequests, final int allRequests) {
+        verify(httpClient, times(originalRequests)).execute(eq(host), eq(get), any(HttpContext.class), any(FutureCallback.class));
+        verify(httpClient, times(allRequests)).execute(eq(host), any(HttpRequest.class), any(HttpContext.class), any(FutureCallback.class));
+    }
+
+    @Test
+    public void execute_okResponse() throws Exception {
+        respond(okResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get, null).get());
+
+        verify(sstStrategy, never()).obtainSst();
+        verifyRequests(1, 1);
+    }
+
+    @Test
+    public void execute_nonChallenge401() throws Exception {
+        respond(response401);
+
+        assertEquals(response401, goodDataHttpClient.execute(host, get, null).get());
+
+        verify(sstStrategy, never()).obtainSst();
+    }
+
+    @Test
+    public void execute_ttRefreshOnly() throws Exception {
+        respond(ttChallengeResponse, ttRefreshedResponse, okResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get, null).get());
+
+        verify(sstStrategy, never()).obtainSst();
+        verifyRequests(2, 3);
+    }
+
+    @Test
+    public void execute_sstExpired() throws Exception {
+        respond(ttChallengeResponse, sstChallengeResponse, ttRefreshedResponse, okResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get, null).get());
+
+        verify(sstStrategy, only()).obtainSst();
+        verifyRequests(2, 4);
+    }
+
+    @Test
+    public void execute_unableObtainTTafterSuccessfullSstObtained() throws Exception {
+        respond(ttChallengeResponse, sstChallengeResponse, response401);
+
+        try {
+            goodDataHttpClient.execute(host, get, null).get();
+            fail("Expected GoodDataAuthException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GoodDataAuthException);
+        }
+    }
+
+    @Test
+    public void execute_unableObtainSst() throws Exception {
+        respond(sstChallengeResponse);
+        when(sstStrategy.obtainSst()).thenThrow(new GoodDataAuthException("Unable to login"));
+
+        try {
+            goodDataHttpClient.execute(host, get, null).get();
+            fail("Expected GoodDataAuthException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GoodDataAuthException);
+        }
+        verifyRequests(1, 1);
+    }
+
+    @Test
+    public void execute_maxReplaysExceeded() throws Exception {
+        goodDataHttpClient.setMaxReplays(1);
+        respond(ttChallengeResponse, ttRefreshedResponse, ttChallengeResponse);
+
+        try {
+            goodDataHttpClient.execute(host, get, null).get();
+            fail("Expected GoodDataAuthException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof GoodDataAuthException);
+        }
+        verifyRequests(2, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMaxReplays_zero() {
+        goodDataHttpClient.setMaxReplays(0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void execute_contextPerExchange() throws Exception {
+        respond(okResponse, okResponse);
+
+        goodDataHttpClient.execute(host, get, null).get();
+        goodDataHttpClient.execute(host, get, null).get();
+
+        final ArgumentCaptor<HttpContext> context = ArgumentCaptor.forClass(HttpContext.class);
+        verify(httpClient, times(2)).execute(eq(host), eq(get), context.capture(), any(FutureCallback.class));
+        final HttpContext first = context.getAllValues().get(0);
+        final HttpContext second = context.getAllValues().get(1);
+        first.setAttribute("exchange", "first");
+        assertNull(second.getAttribute("exchange"));
+        assertTrue(first.getAttribute(ClientContext.COOKIE_STORE) instanceof TokenCookieStore);
+        assertSame(first.getAttribute(ClientContext.COOKIE_STORE), second.getAttribute(ClientContext.COOKIE_STORE));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void execute_callerContext() throws Exception {
+        respond(ttChallengeResponse, ttRefreshedResponse, okResponse);
+        final HttpContext callerContext = new BasicHttpContext();
+        callerContext.setAttribute("caller", "value");
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get, callerContext, null).get());
+
+        final ArgumentCaptor<HttpContext> context = ArgumentCaptor.forClass(HttpContext.class);
+        verify(httpClient, times(2)).execute(eq(host), eq(get), context.capture(), any(FutureCallback.class));
+        assertTrue(context.getValue().getAttribute(ClientContext.COOKIE_STORE) instanceof TokenCookieStore);
+        assertEquals("value", context.getValue().getAttribute("caller"));
+        assertNull(callerContext.getAttribute(ClientContext.COOKIE_STORE));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void execute_cancelPropagatesToRequestInFlight() {
+        final Future<HttpResponse> inFlight = mock(Future.class);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class), any(FutureCallback.class)))
+                .thenReturn(inFlight);
+
+        final Future<HttpResponse> future = goodDataHttpClient.execute(host, get, null);
+
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        verify(inFlight).cancel(true);
+    }
+
+    @Test
+    public void execute_cancelWhileAuthenticating() {
+        final List<Runnable> sstTasks = new ArrayList<Runnable>();
+        goodDataHttpClient = new GoodDataHttpAsyncClient(httpClient, sstStrategy, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                sstTasks.add(command);
+            }
+        });
+        respond(sstChallengeResponse, ttRefreshedResponse);
+
+        final Future<HttpResponse> future = goodDataHttpClient.execute(host, get, null);
+        future.cancel(true);
+        sstTasks.get(0).run();
+
+        assertTrue(future.isCancelled());
+        verifyRequests(1, 2);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void execute_hostsAuthenticatedIndependently() throws Exception {
+        final List<Runnable> sstTasks = new ArrayList<Runnable>();
+        goodDataHttpClient = new GoodDataHttpAsyncClient(httpClient, sstStrategy, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                sstTasks.add(command);
+            }
+        });
+        respond(sstChallengeResponse, ttRefreshedResponse, okResponse);
+        final HttpHost otherHost = new HttpHost("other.com");
+        final HttpResponse otherResponse = createResponse(HttpStatus.SC_OK, "OK");
+        when(httpClient.execute(eq(otherHost), any(HttpRequest.class), any(HttpContext.class), any(FutureCallback.class)))
+                .thenAnswer(new Answer<Future<HttpResponse>>() {
+                    @Override
+                    public Future<HttpResponse> answer(InvocationOnMock invocation) throws Throwable {
+                        ((FutureCallback<HttpResponse>) invocation.getArguments()[3]).completed(otherResponse);
+                        return null;
+                    }
+                });
+
+        final Future<HttpResponse> future = goodDataHttpClient.execute(host, get, null);
+        final Future<HttpResponse> otherFuture = goodDataHttpClient.execute(otherHost, new HttpGet("/url"), null);
+
+        assertFalse(future.isDone());
+        assertTrue(otherFuture.isDone());
+        assertSame(otherResponse, otherFuture.get());
+
+        sstTasks.get(0).run();
+
+        assertSame(okResponse, future.get());
+        verifyRequests(2, 3);
+    }
+}
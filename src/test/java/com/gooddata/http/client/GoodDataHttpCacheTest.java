@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+public class GoodDataHttpCacheTest {
+
+    private static final String USER1 = "user1@domain.com";
+    private static final String USER2 = "user2@domain.com";
+    private static final String ETAG = "\"v1\"";
+
+    @Mock
+    public HttpClient httpClient;
+
+    @Mock
+    public SSTRetrievalStrategy sstStrategy;
+
+    private GoodDataHttpCache cache;
+
+    private HttpHost host;
+
+    private List<HttpRequest> requests;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        host = new HttpHost("server.com");
+        cache = new GoodDataHttpCache(100, 1024);
+        requests = new ArrayList<HttpRequest>();
+    }
+
+    @After
+    public void tearDown() {
+        cache.shutdown();
+    }
+
+    private void respond(final HttpResponse... responses) throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            private int next;
+
+            @Override
+            public HttpResponse answer(final InvocationOnMock invocation) {
+                requests.add((HttpRequest) invocation.getArguments()[1]);
+                return responses[next++];
+            }
+        });
+    }
+
+    private static HttpResponse response(final int status, final String body) {
+        final HttpResponse response = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), status, "Status"));
+        response.setHeader("Date", DateUtils.formatDate(new Date()));
+        if (body != null) {
+            final BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(new ByteArrayInputStream(body.getBytes()));
+            entity.setContentLength(body.length());
+            response.setEntity(entity);
+        }
+        return response;
+    }
+
+    private static HttpResponse projects() {
+        final HttpResponse response = response(HttpStatus.SC_OK, "projects");
+        response.setHeader("ETag", ETAG);
+        response.setHeader("Cache-Control", "private, max-age=0");
+        return response;
+    }
+
+    private static HttpResponse notModified() {
+        final HttpResponse response = response(HttpStatus.SC_NOT_MODIFIED, null);
+        response.setHeader("ETag", ETAG);
+        response.setHeader("Cache-Control", "private, max-age=0");
+        return response;
+    }
+
+    private static HttpResponse ttChallenge() {
+        final HttpResponse response = response(HttpStatus.SC_UNAUTHORIZED, "Unauthorized");
+        response.setHeader("WWW-Authenticate", "GoodData realm=\"GoodData API\" cookie=GDCAuthTT");
+        return response;
+    }
+
+    private String get(final HttpClient client) throws IOException {
+        final HttpResponse response = client.execute(host, new HttpGet("/gdc/projects"));
+        assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    @Test
+    public void execute_revalidatesAfterTtRefresh() throws IOException {
+        respond(projects(), ttChallenge(), response(HttpStatus.SC_OK, "TT"), notModified());
+        final HttpClient client = cache.wrap(new GoodDataHttpClient(httpClient, sstStrategy), USER1);
+
+        assertEquals("projects", get(client));
+        assertEquals("projects", get(client));
+
+        assertEquals(4, requests.size());
+        assertEquals(GoodDataHttpClient.TOKEN_URL, requests.get(2).getRequestLine().getUri());
+        assertEquals(ETAG, requests.get(3).getFirstHeader("If-None-Match").getValue());
+    }
+
+    @Test
+    public void execute_identitiesIsolated() throws IOException {
+        respond(projects(), projects());
+
+        assertEquals("projects", get(cache.wrap(new GoodDataHttpClient(httpClient, sstStrategy), USER1)));
+        assertEquals("projects", get(cache.wrap(new GoodDataHttpClient(httpClient, sstStrategy), USER2)));
+
+        assertEquals(2, requests.size());
+        assertFalse(requests.get(1).containsHeader("If-None-Match"));
+    }
+
+    @Test
+    public void execute_sessionRegistry() throws IOException {
+        respond(projects(), notModified());
+        final GoodDataSessionRegistry registry = new GoodDataSessionRegistry(httpClient, 10, 1, TimeUnit.HOURS);
+        registry.setHttpCache(cache);
+        registry.register(USER1, sstStrategy);
+        final HttpContext context = new BasicHttpContext();
+        context.setAttribute(GoodDataSessionRegistry.IDENTITY, USER1);
+
+        assertEquals("projects", EntityUtils.toString(registry.execute(host, new HttpGet("/gdc/projects"), context).getEntity()));
+        assertEquals("projects", EntityUtils.toString(registry.execute(host, new HttpGet("/gdc/projects"), context).getEntity()));
+
+        assertTrue(requests.get(1).containsHeader("If-None-Match"));
+    }
+}
@@ -12,6 +12,7 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -20,6 +21,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 
 import static net.jadler.Jadler.closeJadler;
 import static net.jadler.Jadler.initJadler;
@@ -168,6 +170,38 @@ public class GoodDataHttpClientIntegrationTest {
         performGet(client, jadlerHost, GDC_PROJECTS_URL, HttpStatus.SC_OK);
     }
 
+    @Test
+    public void concurrencyLimitReleasedWithConnection() throws IOException {
+        onRequest()
+                .havingMethodEqualTo("GET")
+                .havingURIEqualTo(GDC_PROJECTS_URL)
+        .respond()
+                .withStatus(200)
+                .withBody("{\"about\":{\"summary\":\"Project Resources\",\"category\":\"Projects\",\"links\":[]}}")
+                .withEncoding(Charset.forName("UTF-8"))
+                .withContentType("application/json; charset=UTF-8");
+        final DefaultHttpClient httpClient = new DefaultHttpClient(new PoolingClientConnectionManager());
+        final SSTRetrievalStrategy sstStrategy = new LoginSSTRetrievalStrategy(new DefaultHttpClient(), jadlerHost, jadlerLogin, jadlerPassword);
+        final GoodDataHttpClient client = new GoodDataHttpClient(httpClient, sstStrategy);
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 1, TimeUnit.MINUTES);
+        client.setConcurrencyLimiter(limiter);
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                final HttpGet get = new HttpGet(GDC_PROJECTS_URL);
+                assertEquals(HttpStatus.SC_OK, client.execute(jadlerHost, get).getStatusLine().getStatusCode());
+                if (i % 2 == 0) {
+                    get.releaseConnection();
+                } else {
+                    get.abort();
+                }
+            }
+            assertEquals(0, limiter.getInFlight(jadlerHost));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
         /**
          * For integration testing. Requires GoodData credentials.<br/>
          * Comment ignore annotation first and run
@@ -4,29 +4,79 @@
  */
 package com.gooddata.http.client;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.NonRepeatableRequestException;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.cookie.Cookie;
 import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.BasicClientCookie;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.*;
 
 public class GoodDataHttpClientTest {
@@ -96,6 +146,28 @@ public class GoodDataHttpClientTest {
         verify(httpClient, times(4)).execute(eq(host), any(HttpRequest.class), any(HttpContext.class));
     }
 
+    @Test
+    public void execute_sstExpiredMetrics() throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenReturn(sstChallengeResponse)
+                .thenReturn(ttRefreshedResponse)
+                .thenReturn(okResponse);
+        final GoodDataAuthMetrics metrics = new GoodDataAuthMetrics();
+        goodDataHttpClient.setAuthListener(metrics);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get));
+
+        assertEquals(1, metrics.getChallengeCount(GoodDataChallengeType.TT));
+        assertEquals(0, metrics.getChallengeCount(GoodDataChallengeType.SST));
+        assertEquals(1, metrics.getReplayCount());
+        assertEquals(2, metrics.getTtRefreshLatency().getCount());
+        assertEquals(1, metrics.getTtRefreshFailureCount());
+        assertEquals(1, metrics.getSstRetrievalLatency().getCount());
+        assertEquals(0, metrics.getSstRetrievalFailureCount());
+        assertEquals(1, metrics.getAuthWaitLatency().getCount());
+    }
+
     @Test(expected = GoodDataAuthException.class)
     public void execute_unableObtainSst() throws IOException {
         when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
@@ -160,4 +232,699 @@ public class GoodDataHttpClientTest {
         verify(httpClient, times(3)).execute(eq(host), any(HttpRequest.class), any(HttpContext.class));
     }
 
+    @Test
+    public void execute_proactiveTtRefresh() throws IOException {
+        final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        goodDataHttpClient.enableProactiveTtRefresh(scheduler, 10, TimeUnit.SECONDS);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenAnswer(respondWithTt(ttRefreshedResponse, ttCookie("tt", "server.com", 600000)))
+                .thenReturn(okResponse)
+                .thenReturn(ttRefreshedResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get));
+
+        final ArgumentCaptor<Runnable> refresh = ArgumentCaptor.forClass(Runnable.class);
+        final ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler).schedule(refresh.capture(), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        assertTrue(delay.getValue() > 500000 && delay.getValue() <= 590000);
+
+        refresh.getValue().run();
+
+        verify(sstStrategy, never()).obtainSst();
+        verify(httpClient, times(4)).execute(eq(host), any(HttpRequest.class), any(HttpContext.class));
+        verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void execute_challengedDuringProactiveTtRefresh() throws IOException {
+        final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        goodDataHttpClient.enableProactiveTtRefresh(scheduler, 10, TimeUnit.SECONDS);
+        final HttpResponse secondTtRefreshed = createResponse(HttpStatus.SC_OK, "", "OK");
+        final List<Runnable> refresh = new ArrayList<Runnable>();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenAnswer(respondWithTt(ttRefreshedResponse, ttCookie("tt", "server.com", 600000)))
+                .thenReturn(okResponse)
+                .thenAnswer(new Answer<HttpResponse>() {
+                    @Override
+                    public HttpResponse answer(InvocationOnMock invocation) {
+                        // TT expires in flight and the proactive refresh completes before the challenge is handled
+                        refresh.get(0).run();
+                        return ttChallengeResponse;
+                    }
+                })
+                .thenReturn(secondTtRefreshed)
+                .thenReturn(okResponse);
+        goodDataHttpClient.execute(host, get);
+        final ArgumentCaptor<Runnable> scheduled = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(scheduled.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+        refresh.add(scheduled.getValue());
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get));
+
+        verify(httpClient, times(6)).execute(eq(host), any(HttpRequest.class), any(HttpContext.class));
+        verify(sstStrategy, never()).obtainSst();
+    }
+
+    @Test
+    public void execute_proactiveTtRefreshUsesTtOfHost() throws IOException {
+        final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        goodDataHttpClient.enableProactiveTtRefresh(scheduler, 10, TimeUnit.SECONDS);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenAnswer(respondWithTt(ttRefreshedResponse,
+                        ttCookie("other", "other.com", 60000), ttCookie("tt", "server.com", 600000)))
+                .thenReturn(okResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get));
+
+        final ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler).schedule(any(Runnable.class), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        assertTrue(delay.getValue() > 500000 && delay.getValue() <= 590000);
+    }
+
+    @Test
+    public void execute_authenticationDoesNotBlockOtherHost() throws Exception {
+        final HttpHost otherHost = new HttpHost("other.com");
+        final CountDownLatch ttRequested = new CountDownLatch(1);
+        final CountDownLatch otherHostDone = new CountDownLatch(1);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenAnswer(new Answer<HttpResponse>() {
+                    @Override
+                    public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                        ttRequested.countDown();
+                        assertTrue(otherHostDone.await(5, TimeUnit.SECONDS));
+                        return ttRefreshedResponse;
+                    }
+                })
+                .thenReturn(okResponse);
+        when(httpClient.execute(eq(otherHost), any(HttpRequest.class), any(HttpContext.class))).thenReturn(okResponse);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<HttpResponse> response = executor.submit(new Callable<HttpResponse>() {
+                @Override
+                public HttpResponse call() throws Exception {
+                    return goodDataHttpClient.execute(host, get);
+                }
+            });
+            assertTrue(ttRequested.await(5, TimeUnit.SECONDS));
+
+            assertEquals(okResponse, goodDataHttpClient.execute(otherHost, new HttpGet("/url")));
+            otherHostDone.countDown();
+            assertEquals(okResponse, response.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void execute_callerContext() throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(sstChallengeResponse)
+                .thenReturn(ttRefreshedResponse)
+                .thenReturn(okResponse);
+        when(sstStrategy.obtainSst()).thenReturn("sst");
+        final HttpContext callerContext = new BasicHttpContext();
+        callerContext.setAttribute("caller", "value");
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get, callerContext));
+
+        final ArgumentCaptor<HttpContext> context = ArgumentCaptor.forClass(HttpContext.class);
+        verify(httpClient, times(2)).execute(eq(host), eq(get), context.capture());
+        final CookieStore cookieStore = (CookieStore) context.getValue().getAttribute(ClientContext.COOKIE_STORE);
+        assertEquals("sst", cookieStore.getCookies().get(0).getValue());
+        assertEquals("value", context.getValue().getAttribute("caller"));
+        assertNull(callerContext.getAttribute(ClientContext.COOKIE_STORE));
+    }
+
+    @Test
+    public void execute_callerCookieStoreDoesNotShadowTokens() throws IOException {
+        final List<CookieStore> cookieStores = new ArrayList<CookieStore>();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) {
+                cookieStores.add((CookieStore) ((HttpContext) invocation.getArguments()[2]).getAttribute(ClientContext.COOKIE_STORE));
+                switch (cookieStores.size()) {
+                    case 1:
+                        return ttChallengeResponse;
+                    case 2:
+                        return ttRefreshedResponse;
+                    default:
+                        return okResponse;
+                }
+            }
+        });
+        final BasicCookieStore callerCookieStore = new BasicCookieStore();
+        final HttpContext callerContext = new BasicHttpContext();
+        callerContext.setAttribute(ClientContext.COOKIE_STORE, callerCookieStore);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, get, callerContext));
+
+        assertEquals(3, cookieStores.size());
+        for (CookieStore cookieStore : cookieStores) {
+            assertTrue(cookieStore instanceof TokenCookieStore);
+        }
+        assertSame(callerCookieStore, callerContext.getAttribute(ClientContext.COOKIE_STORE));
+    }
+
+    @Test
+    public void execute_contextPerExecution() throws IOException {
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenReturn(okResponse);
+
+        goodDataHttpClient.execute(host, get);
+        goodDataHttpClient.execute(host, get);
+
+        final ArgumentCaptor<HttpContext> context = ArgumentCaptor.forClass(HttpContext.class);
+        verify(httpClient, times(2)).execute(eq(host), eq(get), context.capture());
+        final HttpContext first = context.getAllValues().get(0);
+        final HttpContext second = context.getAllValues().get(1);
+        first.setAttribute("execution", "first");
+        assertNull(second.getAttribute("execution"));
+        assertSame(first.getAttribute(ClientContext.COOKIE_STORE), second.getAttribute(ClientContext.COOKIE_STORE));
+    }
+
+    @Test
+    public void execute_maxReplaysExceeded() throws IOException {
+        goodDataHttpClient.setMaxReplays(1);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenReturn(ttRefreshedResponse)
+                .thenReturn(ttChallengeResponse);
+
+        try {
+            goodDataHttpClient.execute(host, get);
+            fail("Expected GoodDataAuthException");
+        } catch (GoodDataAuthException expected) {
+        }
+
+        verify(httpClient, times(2)).execute(eq(host), eq(get), any(HttpContext.class));
+        verify(httpClient, times(3)).execute(eq(host), any(HttpRequest.class), any(HttpContext.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMaxReplays_zero() {
+        goodDataHttpClient.setMaxReplays(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setMaxReplays_negative() {
+        goodDataHttpClient.setMaxReplays(-1);
+    }
+
+    @Test
+    public void execute_nonRepeatableEntitySent() throws IOException {
+        final HttpPost post = createUpload();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenAnswer(sendEntity(ttChallengeResponse))
+                .thenReturn(ttRefreshedResponse);
+
+        try {
+            goodDataHttpClient.execute(host, post);
+            fail("Expected ClientProtocolException");
+        } catch (ClientProtocolException e) {
+            assertTrue(e.getCause() instanceof NonRepeatableRequestException);
+        }
+    }
+
+    @Test
+    public void execute_nonRepeatableEntityNotSent() throws IOException {
+        final HttpPost post = createUpload();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenReturn(ttRefreshedResponse)
+                .thenReturn(okResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, post));
+    }
+
+    @Test
+    public void execute_spoolNonRepeatableEntity() throws IOException {
+        goodDataHttpClient.setEntityReplayPolicy(EntityReplayPolicy.SPOOL);
+        final HttpPost post = createUpload();
+        final HttpEntity original = post.getEntity();
+        final List<String> sent = new ArrayList<String>();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenAnswer(sendEntity(ttChallengeResponse, sent))
+                .thenReturn(ttRefreshedResponse)
+                .thenAnswer(sendEntity(okResponse, sent));
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, post));
+
+        assertEquals(Arrays.asList("upload content", "upload content"), sent);
+        assertSame(original, post.getEntity());
+    }
+
+    @Test
+    public void execute_requestCompression() throws IOException {
+        goodDataHttpClient.setRequestCompression(true);
+        goodDataHttpClient.setEntityReplayPolicy(EntityReplayPolicy.SPOOL);
+        final HttpPost post = createUpload();
+        final HttpEntity original = post.getEntity();
+        final List<String> sent = new ArrayList<String>();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenAnswer(sendCompressedEntity(ttChallengeResponse, sent))
+                .thenReturn(ttRefreshedResponse)
+                .thenAnswer(sendCompressedEntity(okResponse, sent));
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, post));
+
+        assertEquals(Arrays.asList("upload content", "upload content"), sent);
+        assertSame(original, post.getEntity());
+    }
+
+    @Test
+    public void execute_requestCompressedOnce() throws IOException {
+        goodDataHttpClient.setRequestCompression(true);
+        final HttpPost post = new HttpPost("/gdc/projects");
+        final AtomicInteger written = new AtomicInteger();
+        post.setEntity(new StringEntity("upload content", ContentType.TEXT_PLAIN) {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException {
+                written.incrementAndGet();
+                super.writeTo(out);
+            }
+        });
+        final List<String> sent = new ArrayList<String>();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenAnswer(sendCompressedEntity(ttChallengeResponse, sent))
+                .thenReturn(ttRefreshedResponse)
+                .thenAnswer(sendCompressedEntity(okResponse, sent));
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, post));
+
+        assertEquals(Arrays.asList("upload content", "upload content"), sent);
+        assertEquals(1, written.get());
+    }
+
+    private Answer<HttpResponse> sendCompressedEntity(final HttpResponse response, final List<String> sent) {
+        return new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                final HttpEntity entity = ((HttpEntityEnclosingRequest) invocation.getArguments()[1]).getEntity();
+                assertEquals("gzip", entity.getContentEncoding().getValue());
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                entity.writeTo(compressed);
+                sent.add(IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())), "UTF-8"));
+                return response;
+            }
+        };
+    }
+
+    @Test
+    public void execute_responseCompression() throws IOException {
+        goodDataHttpClient.setResponseCompression(true);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("{\"projects\":[]}".getBytes());
+        }
+        final HttpResponse compressedResponse = createResponse(HttpStatus.SC_OK, "", "OK");
+        compressedResponse.setEntity(new ByteArrayEntity(compressed.toByteArray()));
+        compressedResponse.setHeader("Content-Encoding", "gzip");
+        ((ByteArrayEntity) compressedResponse.getEntity()).setContentEncoding("gzip");
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) {
+                assertEquals("gzip,deflate", ((HttpRequest) invocation.getArguments()[1]).getFirstHeader("Accept-Encoding").getValue());
+                return compressedResponse;
+            }
+        });
+
+        final HttpResponse response = goodDataHttpClient.execute(host, get);
+
+        assertEquals("{\"projects\":[]}", EntityUtils.toString(response.getEntity()));
+        assertNull(response.getFirstHeader("Content-Encoding"));
+        assertNull(get.getFirstHeader("Accept-Encoding"));
+    }
+
+    @Test
+    public void execute_retryTransientStatus() throws IOException {
+        final RetryBudget budget = new RetryBudget();
+        goodDataHttpClient.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS, budget));
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(createResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "", "Service Unavailable"))
+                .thenReturn(createResponse(HttpStatus.SC_BAD_GATEWAY, "", "Bad Gateway"))
+                .thenReturn(okResponse);
+
+        assertSame(okResponse, goodDataHttpClient.execute(host, get));
+
+        verify(httpClient, times(3)).execute(eq(host), eq(get), any(HttpContext.class));
+        assertEquals(2, budget.getRetries());
+    }
+
+    @Test
+    public void execute_retryReleasesConnectionBeforeBackoff() throws IOException {
+        goodDataHttpClient.setRetryPolicy(new RetryPolicy(3, 1, 60, TimeUnit.SECONDS, new RetryBudget()));
+        final HttpResponse unavailable = createResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "", "Service Unavailable");
+        unavailable.setHeader("Retry-After", "30");
+        final CountDownLatch closed = new CountDownLatch(1);
+        final BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        });
+        unavailable.setEntity(entity);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenReturn(unavailable);
+
+        Thread.currentThread().interrupt();
+        try {
+            goodDataHttpClient.execute(host, get);
+            fail("Expected InterruptedIOException");
+        } catch (InterruptedIOException expected) {
+            // ok
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertEquals(0, closed.getCount());
+    }
+
+    @Test
+    public void setRetryPolicy_keepsRetryHandlerOfWrappedClient() {
+        final DefaultHttpClient defaultHttpClient = new DefaultHttpClient();
+        final HttpRequestRetryHandler retryHandler = defaultHttpClient.getHttpRequestRetryHandler();
+        new GoodDataHttpClient(defaultHttpClient, sstStrategy).setRetryPolicy(new RetryPolicy(new RetryBudget()));
+
+        assertSame(retryHandler, defaultHttpClient.getHttpRequestRetryHandler());
+    }
+
+    @Test
+    public void execute_retryIOException() throws IOException {
+        goodDataHttpClient.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS, new RetryBudget()));
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenThrow(new IOException("Connection reset"))
+                .thenReturn(okResponse);
+
+        assertSame(okResponse, goodDataHttpClient.execute(host, get));
+
+        verify(httpClient, times(2)).execute(eq(host), eq(get), any(HttpContext.class));
+    }
+
+    @Test
+    public void execute_noRetryOfProtocolError() throws IOException {
+        goodDataHttpClient.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS, new RetryBudget()));
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenThrow(new ClientProtocolException(new NonRepeatableRequestException("Cannot retry request")))
+                .thenReturn(okResponse);
+
+        try {
+            goodDataHttpClient.execute(host, get);
+            fail("Expected ClientProtocolException");
+        } catch (ClientProtocolException expected) {
+            // ok
+        }
+
+        verify(httpClient, times(1)).execute(eq(host), eq(get), any(HttpContext.class));
+    }
+
+    @Test
+    public void execute_noRetryOfNonIdempotentRequest() throws IOException {
+        goodDataHttpClient.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS, new RetryBudget()));
+        final HttpResponse unavailable = createResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "", "Service Unavailable");
+        final HttpPost post = new HttpPost("/url");
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenReturn(unavailable);
+
+        assertSame(unavailable, goodDataHttpClient.execute(host, post));
+
+        verify(httpClient, times(1)).execute(eq(host), eq(post), any(HttpContext.class));
+    }
+
+    @Test
+    public void execute_retryBudgetExhausted() throws IOException {
+        final RetryBudget budget = new RetryBudget(0.01, 1);
+        goodDataHttpClient.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS, budget));
+        final HttpResponse unavailable = createResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "", "Service Unavailable");
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(createResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, "", "Service Unavailable"))
+                .thenReturn(unavailable);
+
+        assertSame(unavailable, goodDataHttpClient.execute(host, get));
+
+        verify(httpClient, times(2)).execute(eq(host), eq(get), any(HttpContext.class));
+        assertEquals(1, budget.getRetries());
+        assertEquals(1, budget.getRefused());
+    }
+
+    @Test
+    public void execute_replayWithdrawsRetryBudget() throws IOException {
+        final RetryBudget budget = new RetryBudget(0.01, 1);
+        goodDataHttpClient.setRetryPolicy(new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS, budget));
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttChallengeResponse)
+                .thenReturn(ttRefreshedResponse)
+                .thenReturn(okResponse);
+
+        assertSame(okResponse, goodDataHttpClient.execute(host, get));
+
+        assertEquals(1, budget.getRetries());
+        assertEquals(0, budget.getAvailable());
+    }
+
+    @Test
+    public void execute_concurrencyLimit() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, TimeUnit.MINUTES);
+        goodDataHttpClient.setConcurrencyLimiter(limiter);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws IOException {
+                try {
+                    goodDataHttpClient.execute(host, new HttpGet("/other"));
+                    fail("Expected ConcurrencyLimitException");
+                } catch (ConcurrencyLimitException expected) {
+                    // ok
+                }
+                return okResponse;
+            }
+        });
+
+        final HttpResponse response = goodDataHttpClient.execute(host, get);
+        assertSame(okResponse, response);
+        assertEquals(1, limiter.getInFlight(host));
+
+        EntityUtils.consume(response.getEntity());
+        assertEquals(0, limiter.getInFlight(host));
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void execute_concurrencyLimitReleasedWithConnection() throws IOException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, TimeUnit.MINUTES);
+        goodDataHttpClient.setConcurrencyLimiter(limiter);
+        final ConnectionReleaseTrigger connection = mock(ConnectionReleaseTrigger.class);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) {
+                ((HttpContext) invocation.getArguments()[2]).setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+                return createResponse(HttpStatus.SC_OK, "<html><head><title>OK</title></head><body></body>", "OK");
+            }
+        });
+
+        goodDataHttpClient.execute(host, get);
+        get.releaseConnection();
+        assertEquals(0, limiter.getInFlight(host));
+        verify(connection).abortConnection();
+
+        final HttpGet aborted = new HttpGet("/other");
+        goodDataHttpClient.execute(host, aborted);
+        aborted.abort();
+        assertEquals(0, limiter.getInFlight(host));
+
+        goodDataHttpClient.execute(host, get, new ResponseHandler<Object>() {
+            @Override
+            public Object handleResponse(HttpResponse response) {
+                return null;
+            }
+        });
+        assertEquals(0, limiter.getInFlight(host));
+    }
+
+    @Test
+    public void execute_rateLimit() throws IOException {
+        final RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.setMaxWait(0, TimeUnit.SECONDS);
+        goodDataHttpClient.setRateLimiter(limiter);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenReturn(okResponse);
+
+        assertSame(okResponse, goodDataHttpClient.execute(host, get));
+        try {
+            goodDataHttpClient.execute(host, get);
+            fail("Expected RateLimitException");
+        } catch (RateLimitException expected) {
+            // ok
+        }
+
+        verify(httpClient, times(1)).execute(eq(host), eq(get), any(HttpContext.class));
+    }
+
+    @Test
+    public void execute_expectContinue() throws IOException {
+        goodDataHttpClient.setEntityReplayPolicy(EntityReplayPolicy.EXPECT_CONTINUE);
+        final HttpPost post = createUpload();
+        final List<Object> expectContinue = new ArrayList<Object>();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenAnswer(new Answer<HttpResponse>() {
+                    @Override
+                    public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                        expectContinue.add(((HttpRequest) invocation.getArguments()[1]).getParams()
+                                .getParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE));
+                        return okResponse;
+                    }
+                });
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, post));
+
+        assertEquals(Arrays.<Object>asList(true), expectContinue);
+        assertNull(post.getParams().getParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE));
+    }
+
+    @Test
+    public void execute_preflight() throws IOException {
+        goodDataHttpClient.setEntityReplayPolicy(EntityReplayPolicy.PREFLIGHT);
+        final HttpPost post = createUpload();
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttRefreshedResponse)
+                .thenReturn(okResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, post));
+
+        verify(httpClient).execute(eq(host), isA(HttpGet.class), any(HttpContext.class));
+        verify(httpClient).execute(eq(host), eq(post), any(HttpContext.class));
+    }
+
+    @Test
+    public void execute_preflightSkippedWhileTtFresh() throws IOException {
+        goodDataHttpClient.setEntityReplayPolicy(EntityReplayPolicy.PREFLIGHT);
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                .thenReturn(ttRefreshedResponse)
+                .thenReturn(okResponse);
+
+        assertEquals(okResponse, goodDataHttpClient.execute(host, createUpload()));
+        assertEquals(okResponse, goodDataHttpClient.execute(host, createUpload()));
+
+        verify(httpClient, times(1)).execute(eq(host), isA(HttpGet.class), any(HttpContext.class));
+        verify(httpClient, times(2)).execute(eq(host), isA(HttpPost.class), any(HttpContext.class));
+    }
+
+    @Test
+    public void execute_preflightSharedByConcurrentUploads() throws Exception {
+        goodDataHttpClient.setEntityReplayPolicy(EntityReplayPolicy.PREFLIGHT);
+        final CountDownLatch refreshing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(httpClient.execute(eq(host), isA(HttpGet.class), any(HttpContext.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws InterruptedException {
+                refreshing.countDown();
+                release.await();
+                return ttRefreshedResponse;
+            }
+        });
+        when(httpClient.execute(eq(host), isA(HttpPost.class), any(HttpContext.class))).thenReturn(okResponse);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Callable<HttpResponse> upload = new Callable<HttpResponse>() {
+                @Override
+                public HttpResponse call() throws IOException {
+                    return goodDataHttpClient.execute(host, createUpload());
+                }
+            };
+            final Future<HttpResponse> first = executor.submit(upload);
+            assertTrue(refreshing.await(1, TimeUnit.SECONDS));
+            final Future<HttpResponse> second = executor.submit(upload);
+            // let the second upload reach the authentication lock
+            Thread.sleep(100);
+            release.countDown();
+
+            assertEquals(okResponse, first.get(1, TimeUnit.SECONDS));
+            assertEquals(okResponse, second.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(httpClient, times(1)).execute(eq(host), isA(HttpGet.class), any(HttpContext.class));
+    }
+
+    private static BasicClientCookie ttCookie(final String value, final String domain, final long validMillis) {
+        final BasicClientCookie tt = new BasicClientCookie("GDCAuthTT", value);
+        tt.setDomain(domain);
+        tt.setExpiryDate(new Date(System.currentTimeMillis() + validMillis));
+        return tt;
+    }
+
+    /**
+     * Answer storing the TT cookies to the cookie store of the execution context, as TT refresh does.
+     */
+    private static Answer<HttpResponse> respondWithTt(final HttpResponse response, final Cookie... tts) {
+        return new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) {
+                final CookieStore cookieStore = (CookieStore) ((HttpContext) invocation.getArguments()[2])
+                        .getAttribute(ClientContext.COOKIE_STORE);
+                for (Cookie tt : tts) {
+                    cookieStore.addCookie(tt);
+                }
+                return response;
+            }
+        };
+    }
+
+    private HttpPost createUpload() {
+        final HttpPost post = new HttpPost("/gdc/uploads");
+        post.setEntity(new InputStreamEntity(new ByteArrayInputStream("upload content".getBytes()), -1));
+        return post;
+    }
+
+    private Answer<HttpResponse> sendEntity(final HttpResponse response) {
+        return sendEntity(response, new ArrayList<String>());
+    }
+
+    private Answer<HttpResponse> sendEntity(final HttpResponse response, final List<String> sent) {
+        return new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                ((HttpEntityEnclosingRequest) invocation.getArguments()[1]).getEntity().writeTo(content);
+                sent.add(content.toString());
+                return response;
+            }
+        };
+    }
+
+    @Test
+    public void execute_tokenSnapshot() throws IOException {
+        final File file = File.createTempFile("gooddata", ".tokens");
+        try {
+            final TokenSnapshotStore store = new TokenSnapshotStore(file, "0123456789abcdef".getBytes());
+            final CookieStore snapshot = new BasicCookieStore();
+            CookieUtils.replaceSstCookie("restored sst", snapshot, "server.com");
+            store.save(snapshot);
+
+            goodDataHttpClient.setTokenSnapshotStore(store);
+            final List<String> cookies = new ArrayList<String>();
+            when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class)))
+                    .thenReturn(ttChallengeResponse)
+                    .thenAnswer(new Answer<HttpResponse>() {
+                        @Override
+                        public HttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                            final HttpContext context = (HttpContext) invocation.getArguments()[2];
+                            for (Cookie cookie : ((CookieStore) context.getAttribute(ClientContext.COOKIE_STORE)).getCookies()) {
+                                cookies.add(cookie.getValue());
+                            }
+                            return ttRefreshedResponse;
+                        }
+                    })
+                    .thenReturn(okResponse);
+
+            assertEquals(okResponse, goodDataHttpClient.execute(host, get));
+
+            assertEquals(Arrays.asList("restored sst"), cookies);
+            verify(sstStrategy, never()).obtainSst();
+            assertTrue(file.lastModified() > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GoodDataSessionRegistryTest {
+
+    private static final String USER1 = "user1@domain.com";
+    private static final String USER2 = "user2@domain.com";
+    private static final String USER3 = "user3@domain.com";
+
+    @Mock
+    public HttpClient httpClient;
+
+    @Mock
+    public SSTRetrievalStrategy sstStrategy;
+
+    private GoodDataSessionRegistry registry;
+
+    private HttpHost host;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        host = new HttpHost("server.com");
+        registry = new GoodDataSessionRegistry(httpClient, 2, 1, TimeUnit.HOURS);
+        registry.register(USER1, sstStrategy);
+        registry.register(USER2, sstStrategy);
+        registry.register(USER3, sstStrategy);
+    }
+
+    @Test
+    public void getSession_sameIdentity() {
+        assertSame(registry.getSession(USER1), registry.getSession(USER1));
+        assertNotSame(registry.getSession(USER1), registry.getSession(USER2));
+    }
+
+    @Test
+    public void getSession_evictsLeastRecentlyUsed() {
+        final GoodDataHttpClient session1 = registry.getSession(USER1);
+        final GoodDataHttpClient session2 = registry.getSession(USER2);
+        registry.getSession(USER1);
+        registry.getSession(USER3);
+
+        assertEquals(2, registry.getSessionCount());
+        assertSame(session1, registry.getSession(USER1));
+        assertNotSame(session2, registry.getSession(USER2));
+    }
+
+    @Test
+    public void getSession_evictsIdle() throws InterruptedException {
+        registry = new GoodDataSessionRegistry(httpClient, 10, 1, TimeUnit.MILLISECONDS);
+        registry.register(USER1, sstStrategy);
+        final GoodDataHttpClient session = registry.getSession(USER1);
+        Thread.sleep(10);
+
+        assertNotSame(session, registry.getSession(USER1));
+        assertEquals(1, registry.getSessionCount());
+    }
+
+    @Test
+    public void getSession_sweepsIdleSessions() throws InterruptedException {
+        registry = new GoodDataSessionRegistry(httpClient, 10, 20, TimeUnit.MILLISECONDS);
+        registry.register(USER1, sstStrategy);
+        registry.register(USER2, sstStrategy);
+        registry.register(USER3, sstStrategy);
+        registry.getSession(USER1);
+        registry.getSession(USER2);
+        Thread.sleep(40);
+
+        registry.getSession(USER3);
+        assertEquals(1, registry.getSessionCount());
+    }
+
+    @Test
+    public void getSession_concurrent() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<GoodDataHttpClient>> sessions = new ArrayList<Future<GoodDataHttpClient>>();
+            for (int i = 0; i < 100; i++) {
+                sessions.add(executor.submit(new Callable<GoodDataHttpClient>() {
+                    @Override
+                    public GoodDataHttpClient call() {
+                        return registry.getSession(USER1);
+                    }
+                }));
+            }
+            final GoodDataHttpClient session = registry.getSession(USER1);
+            for (Future<GoodDataHttpClient> future : sessions) {
+                assertSame(session, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void register_replacesSession() {
+        final GoodDataHttpClient session = registry.getSession(USER1);
+        registry.register(USER1, mock(SSTRetrievalStrategy.class));
+
+        assertNotSame(session, registry.getSession(USER1));
+    }
+
+    @Test
+    public void getSession_reRegisteredWhileCreated() {
+        final SSTRetrievalStrategy replacement = mock(SSTRetrievalStrategy.class);
+        final GoodDataHttpCache httpCache = mock(GoodDataHttpCache.class);
+        when(httpCache.wrap(any(HttpClient.class), eq(USER1))).thenAnswer(new Answer<HttpClient>() {
+            private boolean registered;
+
+            @Override
+            public HttpClient answer(final InvocationOnMock invocation) {
+                if (!registered) {
+                    registered = true;
+                    registry.register(USER1, replacement);
+                }
+                return (HttpClient) invocation.getArguments()[0];
+            }
+        });
+        registry.setHttpCache(httpCache);
+
+        final GoodDataHttpClient session = registry.getSession(USER1);
+
+        verify(httpCache, times(2)).wrap(any(HttpClient.class), eq(USER1));
+        assertSame(session, registry.getSession(USER1));
+        assertEquals(1, registry.getSessionCount());
+    }
+
+    @Test
+    public void unregister() {
+        registry.getSession(USER1);
+        registry.unregister(USER1);
+
+        assertEquals(0, registry.getSessionCount());
+    }
+
+    @Test
+    public void connectionPoolSizedForSessions() {
+        final PoolingClientConnectionManager connectionManager =
+                (PoolingClientConnectionManager) new GoodDataSessionRegistry(50, 1, TimeUnit.HOURS).getConnectionManager();
+        try {
+            assertEquals(50, connectionManager.getMaxTotal());
+            assertEquals(50, connectionManager.getDefaultMaxPerRoute());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+    @Test
+    public void connectionPoolSizedExplicitly() {
+        final PoolingClientConnectionManager connectionManager =
+                (PoolingClientConnectionManager) new GoodDataSessionRegistry(1000, 8, 1, TimeUnit.HOURS).getConnectionManager();
+        try {
+            assertEquals(8, connectionManager.getMaxTotal());
+            assertEquals(8, connectionManager.getDefaultMaxPerRoute());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getSession_notRegistered() {
+        registry.getSession("unknown@domain.com");
+    }
+
+    @Test
+    public void execute_identityFromContext() throws IOException {
+        final HttpResponse okResponse = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("https", 1, 1), HttpStatus.SC_OK, "OK"));
+        when(httpClient.execute(eq(host), any(HttpRequest.class), any(HttpContext.class))).thenReturn(okResponse);
+        final HttpContext context = new BasicHttpContext();
+        context.setAttribute(GoodDataSessionRegistry.IDENTITY, USER1);
+
+        assertSame(okResponse, registry.execute(host, new HttpGet("/gdc/projects"), context));
+        assertEquals(1, registry.getSessionCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void execute_noIdentity() throws IOException {
+        registry.execute(host, new HttpGet("/gdc/projects"), new BasicHttpContext());
+    }
+}
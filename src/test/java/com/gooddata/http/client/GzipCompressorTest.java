@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GzipCompressorTest {
+
+    private static byte[] write(final HttpEntity entity) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static String gunzip(final byte[] compressed) throws IOException {
+        return IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(compressed)), "UTF-8");
+    }
+
+    @Test
+    public void compress() throws IOException {
+        final StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"identifier\":\"attr.").append(i).append("\"},");
+        }
+        final HttpEntity compressed = GzipCompressor.compress(new StringEntity(json.toString(), ContentType.APPLICATION_JSON));
+
+        assertEquals("gzip", compressed.getContentEncoding().getValue());
+        assertEquals(ContentType.APPLICATION_JSON.toString(), compressed.getContentType().getValue());
+        assertEquals(-1, compressed.getContentLength());
+        final byte[] content = write(compressed);
+        assertTrue(content.length < json.length() / 4);
+        assertEquals(json.toString(), gunzip(content));
+    }
+
+    @Test
+    public void compress_repeatable() throws IOException {
+        final HttpEntity compressed = GzipCompressor.compress(new StringEntity("upload content", ContentType.TEXT_PLAIN));
+
+        assertTrue(compressed.isRepeatable());
+        assertEquals("upload content", gunzip(write(compressed)));
+        assertEquals("upload content", gunzip(write(compressed)));
+    }
+
+    @Test
+    public void compress_streaming() throws IOException {
+        final HttpEntity compressed = GzipCompressor.compress(
+                new InputStreamEntity(new ByteArrayInputStream("upload content".getBytes()), -1));
+
+        assertFalse(compressed.isRepeatable());
+        assertEquals("upload content", gunzip(write(compressed)));
+    }
+
+    @Test
+    public void compress_pooledCompressorReused() throws IOException {
+        assertEquals("first", gunzip(write(GzipCompressor.compress(new StringEntity("first", ContentType.TEXT_PLAIN)))));
+        assertEquals("", gunzip(write(GzipCompressor.compress(new StringEntity("", ContentType.TEXT_PLAIN)))));
+        assertEquals("second", gunzip(write(GzipCompressor.compress(new StringEntity("second", ContentType.TEXT_PLAIN)))));
+    }
+
+    @Test
+    public void compress_singleByteWrites() throws IOException {
+        final HttpEntity compressed = GzipCompressor.compress(new StringEntity("bytes", ContentType.TEXT_PLAIN) {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException {
+                for (final byte b : content) {
+                    out.write(b);
+                }
+            }
+        });
+
+        assertEquals("bytes", gunzip(write(compressed)));
+    }
+
+    @Test
+    public void compressOnce_heap() throws IOException {
+        final HttpEntity compressed = GzipCompressor.compressOnce(new StringEntity("upload content", ContentType.TEXT_PLAIN));
+
+        assertFalse(compressed instanceof SpooledEntity);
+        assertTrue(compressed.isRepeatable());
+        assertEquals("gzip", compressed.getContentEncoding().getValue());
+        assertEquals(ContentType.TEXT_PLAIN.toString(), compressed.getContentType().getValue());
+        final byte[] content = write(compressed);
+        assertEquals(content.length, compressed.getContentLength());
+        assertEquals("upload content", gunzip(content));
+        assertEquals("upload content", gunzip(write(compressed)));
+    }
+
+    @Test
+    public void compressOnce_spooled() throws IOException {
+        final HttpEntity compressed = GzipCompressor.compressOnce(
+                new InputStreamEntity(new ByteArrayInputStream("upload content".getBytes()), -1));
+
+        try {
+            assertTrue(compressed instanceof SpooledEntity);
+            assertTrue(compressed.isRepeatable());
+            assertFalse(compressed.isChunked());
+            assertEquals("gzip", compressed.getContentEncoding().getValue());
+            assertEquals("upload content", gunzip(write(compressed)));
+            assertEquals("upload content", gunzip(write(compressed)));
+        } finally {
+            ((SpooledEntity) compressed).release();
+        }
+    }
+}
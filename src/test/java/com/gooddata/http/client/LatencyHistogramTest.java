@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    private LatencyHistogram histogram;
+
+    @Before
+    public void setUp() {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void empty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanNanos());
+        assertEquals(0, histogram.getPercentileNanos(99));
+    }
+
+    @Test
+    public void record() {
+        histogram.record(0);
+        histogram.record(100);
+        histogram.record(1000);
+        histogram.record(-5);
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(1100, histogram.getTotalNanos());
+        assertEquals(275, histogram.getMeanNanos());
+        assertEquals(1000, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void percentile() {
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100);
+        }
+        histogram.record(1000000);
+
+        assertEquals(127, histogram.getPercentileNanos(50));
+        assertEquals(127, histogram.getPercentileNanos(99));
+        assertEquals(1000000, histogram.getPercentileNanos(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentile_outOfRange() {
+        histogram.getPercentileNanos(0);
+    }
+}
@@ -23,10 +23,13 @@ import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -76,6 +79,30 @@ public class LoginSSTRetrievalStrategyTest {
         assertEquals("/gdc/account/login", postCaptor.getValue().getURI().getPath());
     }
 
+    @Test
+    public void obtainSst_throttled() throws IOException {
+        final RateLimiter limiter = new RateLimiter(1000, 100);
+        limiter.setEndpointLimit(LoginSSTRetrievalStrategy.LOGIN_URL, 1000, 100);
+        limiter.setMaxWait(0, TimeUnit.SECONDS);
+        sstStrategy.setRateLimiter(limiter);
+        final HttpResponse response = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("https", 1, 1), 429, "Too Many Requests"));
+        response.setHeader("Retry-After", "60");
+        when(httpClient.execute(isA(HttpHost.class), isA(HttpPost.class))).thenReturn(response);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                sstStrategy.obtainSst();
+                fail("Expected GoodDataAuthException");
+            } catch (GoodDataAuthException expected) {
+                // ok
+            }
+        }
+
+        verify(httpClient, times(1)).execute(isA(HttpHost.class), isA(HttpPost.class));
+        assertEquals(1, limiter.getThrottledCount());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
     @Test(expected = GoodDataAuthException.class)
     public void obtainSst_badLogin() throws IOException {
         statusLine = new BasicStatusLine(new ProtocolVersion("https", 1, 1), HttpStatus.SC_BAD_REQUEST, "Bad Request");
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    private static final String LOGIN = "/gdc/account/login";
+
+    private static final String PROJECTS = "/gdc/projects";
+
+    private final HttpHost host = new HttpHost("server.com");
+
+    private static HttpResponse response(final int status) {
+        return new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), status, "Reason"));
+    }
+
+    @Test
+    public void burstThenReject() {
+        final RateLimiter limiter = new RateLimiter(1, 3);
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+        assertFalse(limiter.tryAcquire(host, PROJECTS));
+        assertTrue(limiter.tryAcquire(new HttpHost("other.com"), PROJECTS));
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void endpointLimit() {
+        final RateLimiter limiter = new RateLimiter(1000, 100);
+        limiter.setEndpointLimit(LOGIN, 1, 1);
+        assertTrue(limiter.tryAcquire(host, LOGIN));
+        assertFalse(limiter.tryAcquire(host, LOGIN));
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+    }
+
+    @Test
+    public void endpointLimit_reset() {
+        final RateLimiter limiter = new RateLimiter(1000, 100);
+        limiter.setEndpointLimit(LOGIN, 1, 1);
+        limiter.setEndpointLimit("/gdc/account/.*", 1000, 100);
+        assertTrue(limiter.tryAcquire(host, LOGIN));
+        assertFalse(limiter.tryAcquire(host, LOGIN));
+
+        limiter.setEndpointLimit(LOGIN, 1, 3);
+        assertTrue(limiter.tryAcquire(host, LOGIN));
+        assertTrue(limiter.tryAcquire(host, LOGIN));
+        assertTrue(limiter.tryAcquire(host, LOGIN));
+        assertFalse(limiter.tryAcquire(host, LOGIN));
+    }
+
+    @Test
+    public void endpointRejectionDoesNotTakeHostPermit() {
+        final RateLimiter limiter = new RateLimiter(1, 2);
+        limiter.setEndpointLimit(LOGIN, 1, 1);
+        assertTrue(limiter.tryAcquire(host, LOGIN));
+        assertFalse(limiter.tryAcquire(host, LOGIN));
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+        assertFalse(limiter.tryAcquire(host, PROJECTS));
+    }
+
+    @Test
+    public void timedAcquire() throws IOException {
+        final RateLimiter limiter = new RateLimiter(20, 1);
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+        assertFalse(limiter.tryAcquire(host, PROJECTS, 1, TimeUnit.MILLISECONDS));
+        final long start = System.nanoTime();
+        assertTrue(limiter.tryAcquire(host, PROJECTS, 1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+    @Test(expected = RateLimitException.class)
+    public void admit_maxWait() throws IOException {
+        final RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.setMaxWait(0, TimeUnit.SECONDS);
+        limiter.admit(host, PROJECTS);
+        limiter.admit(host, PROJECTS);
+    }
+
+    @Test
+    public void update_tooManyRequests() {
+        final RateLimiter limiter = new RateLimiter(1000, 100);
+        limiter.setEndpointLimit(LOGIN, 1000, 100);
+        final HttpResponse response = response(429);
+        response.setHeader("Retry-After", "60");
+        limiter.update(host, LOGIN, response);
+
+        assertFalse(limiter.tryAcquire(host, LOGIN));
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+        assertEquals(1, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void update_serviceUnavailable() {
+        final RateLimiter limiter = new RateLimiter(1000, 100);
+        limiter.update(host, PROJECTS, response(HttpStatus.SC_SERVICE_UNAVAILABLE));
+        limiter.update(host, PROJECTS, response(HttpStatus.SC_OK));
+        assertTrue(limiter.tryAcquire(host, PROJECTS));
+
+        final HttpResponse response = response(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "60");
+        limiter.update(host, PROJECTS, response);
+        assertFalse(limiter.tryAcquire(host, LOGIN));
+        assertEquals(1, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void path() {
+        assertEquals(PROJECTS, RateLimiter.path(new HttpGet("https://server.com/gdc/projects?limit=10")));
+        assertEquals(PROJECTS, RateLimiter.path(new BasicHttpRequest("GET", "/gdc/projects?limit=10")));
+    }
+}
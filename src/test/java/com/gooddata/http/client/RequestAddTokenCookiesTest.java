@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.conn.HttpRoutedConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpecRegistry;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.cookie.BestMatchSpecFactory;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class RequestAddTokenCookiesTest {
+
+    @Mock
+    public HttpRoutedConnection connection;
+
+    private HttpContext context;
+
+    private TokenCookieStore cookieStore;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        final HttpHost host = new HttpHost("server.com", 443, "https");
+        when(connection.isSecure()).thenReturn(true);
+        when(connection.getRoute()).thenReturn(new HttpRoute(host));
+
+        final CookieSpecRegistry registry = new CookieSpecRegistry();
+        registry.register(CookiePolicy.BEST_MATCH, new BestMatchSpecFactory());
+        cookieStore = new TokenCookieStore();
+        final BasicClientCookie tt = new BasicClientCookie("GDCAuthTT", "tt");
+        tt.setDomain("server.com");
+        tt.setPath("/gdc");
+        cookieStore.addCookie(tt);
+
+        context = new BasicHttpContext();
+        context.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
+        context.setAttribute(ClientContext.COOKIESPEC_REGISTRY, registry);
+        context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, host);
+        context.setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+    }
+
+    @Test
+    public void process() throws Exception {
+        final HttpGet get = new HttpGet("/gdc/projects");
+
+        new RequestAddTokenCookies().process(get, context);
+
+        assertEquals("GDCAuthTT=tt", get.getFirstHeader("Cookie").getValue());
+        assertNotNull(context.getAttribute(ClientContext.COOKIE_SPEC));
+        final CookieOrigin origin = (CookieOrigin) context.getAttribute(ClientContext.COOKIE_ORIGIN);
+        assertEquals("/gdc/projects", origin.getPath());
+        assertEquals(443, origin.getPort());
+    }
+
+    @Test
+    public void process_otherCookieStore() throws Exception {
+        final BasicCookieStore basicCookieStore = new BasicCookieStore();
+        basicCookieStore.addCookie(cookieStore.getCookies().get(0));
+        context.setAttribute(ClientContext.COOKIE_STORE, basicCookieStore);
+        final HttpGet get = new HttpGet("/gdc/projects");
+
+        new RequestAddTokenCookies().process(get, context);
+
+        assertEquals("GDCAuthTT=tt", get.getFirstHeader("Cookie").getValue());
+    }
+
+    @Test
+    public void install() {
+        final DefaultHttpClient httpClient = new DefaultHttpClient();
+        final int count = httpClient.getRequestInterceptorCount();
+
+        RequestAddTokenCookies.install(httpClient);
+
+        assertEquals(count, httpClient.getRequestInterceptorCount());
+        boolean installed = false;
+        for (int i = 0; i < httpClient.getRequestInterceptorCount(); i++) {
+            final HttpRequestInterceptor interceptor = httpClient.getRequestInterceptor(i);
+            assertFalse(interceptor.getClass() == RequestAddCookies.class);
+            installed |= interceptor instanceof RequestAddTokenCookies;
+        }
+        assertTrue(installed);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void startsFull() {
+        final RetryBudget budget = new RetryBudget(0.1, 2);
+        assertEquals(2, budget.getAvailable());
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+        assertEquals(2, budget.getRetries());
+        assertEquals(1, budget.getRefused());
+    }
+
+    @Test
+    public void depositsRatioOfToken() {
+        final RetryBudget budget = new RetryBudget(0.25, 1);
+        assertTrue(budget.tryWithdraw());
+        for (int i = 0; i < 3; i++) {
+            budget.deposit();
+            assertFalse(budget.tryWithdraw());
+        }
+        budget.deposit();
+        assertTrue(budget.tryWithdraw());
+    }
+
+    @Test
+    public void depositCappedByMaxTokens() {
+        final RetryBudget budget = new RetryBudget(0.5, 1);
+        for (int i = 0; i < 10; i++) {
+            budget.deposit();
+        }
+        assertEquals(1, budget.getAvailable());
+    }
+
+    @Test
+    public void withdrawNeverRefused() {
+        final RetryBudget budget = new RetryBudget(0.5, 1);
+        budget.withdraw();
+        budget.withdraw();
+        assertEquals(0, budget.getAvailable());
+        assertEquals(2, budget.getRetries());
+        assertEquals(0, budget.getRefused());
+        budget.deposit();
+        budget.deposit();
+        assertEquals(1, budget.getAvailable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRatio() {
+        new RetryBudget(1.5, 10);
+    }
+}
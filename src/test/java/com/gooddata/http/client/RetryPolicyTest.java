@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.NonRepeatableRequestException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(2, 100, 1000, TimeUnit.MILLISECONDS, new RetryBudget());
+
+    @Test
+    public void isRetryable() {
+        assertTrue(policy.isRetryable(new HttpGet("/gdc"), 0));
+        assertTrue(policy.isRetryable(new HttpPut("/gdc"), 1));
+        assertFalse(policy.isRetryable(new HttpGet("/gdc"), 2));
+        assertFalse(policy.isRetryable(new HttpPost("/gdc"), 0));
+    }
+
+    @Test
+    public void isTransient() {
+        assertTrue(RetryPolicy.isTransient(new IOException("Connection reset")));
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException()));
+        assertFalse(RetryPolicy.isTransient(new UnknownHostException()));
+        assertFalse(RetryPolicy.isTransient(new SSLException("handshake")));
+        assertFalse(RetryPolicy.isTransient(new ClientProtocolException(new NonRepeatableRequestException("sent"))));
+        assertTrue(RetryPolicy.isTransient(HttpStatus.SC_SERVICE_UNAVAILABLE));
+        assertTrue(RetryPolicy.isTransient(HttpStatus.SC_BAD_GATEWAY));
+        assertTrue(RetryPolicy.isTransient(HttpStatus.SC_GATEWAY_TIMEOUT));
+        assertFalse(RetryPolicy.isTransient(HttpStatus.SC_INTERNAL_SERVER_ERROR));
+    }
+
+    @Test
+    public void isTransient_interrupted() {
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(RetryPolicy.isTransient(new InterruptedIOException()));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void backoffMillis() {
+        for (int i = 0; i < 100; i++) {
+            final long first = policy.backoffMillis(0, -1);
+            assertTrue(first >= 0 && first <= 100);
+            final long second = policy.backoffMillis(1, -1);
+            assertTrue(second >= 0 && second <= 200);
+            final long capped = policy.backoffMillis(10, -1);
+            assertTrue(capped >= 0 && capped <= 1000);
+        }
+        assertEquals(500, policy.backoffMillis(0, 500));
+        assertEquals(-1, policy.backoffMillis(0, 2000));
+    }
+
+    @Test
+    public void retryAfterMillis() {
+        final long now = System.currentTimeMillis();
+        final HttpResponse response = new BasicHttpResponse(
+                new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable"));
+        assertEquals(-1, RetryPolicy.retryAfterMillis(response, now));
+
+        response.setHeader("Retry-After", "120");
+        assertEquals(120000, RetryPolicy.retryAfterMillis(response, now));
+
+        response.setHeader("Retry-After", DateUtils.formatDate(new Date(now / 1000 * 1000 + 60000)));
+        assertEquals(60000, RetryPolicy.retryAfterMillis(response, now / 1000 * 1000));
+
+        response.setHeader("Retry-After", "soon");
+        assertEquals(-1, RetryPolicy.retryAfterMillis(response, now));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpooledEntityTest {
+
+    private static final byte[] CONTENT = "{\"project\":{\"content\":{}}}".getBytes();
+
+    @Test
+    public void spool() throws IOException {
+        final InputStreamEntity original = new InputStreamEntity(new ByteArrayInputStream(CONTENT), -1);
+        original.setContentType(ContentType.APPLICATION_JSON.toString());
+
+        final SpooledEntity spooled = SpooledEntity.spool(original);
+        try {
+            assertTrue(spooled.isRepeatable());
+            assertEquals(CONTENT.length, spooled.getContentLength());
+            assertEquals(ContentType.APPLICATION_JSON.toString(), spooled.getContentType().getValue());
+            assertArrayEquals(CONTENT, write(spooled));
+            assertArrayEquals(CONTENT, write(spooled));
+            try (InputStream content = spooled.getContent()) {
+                assertArrayEquals(CONTENT, IOUtils.toByteArray(content));
+            }
+        } finally {
+            spooled.release();
+        }
+    }
+
+    @Test
+    public void spool_empty() throws IOException {
+        final SpooledEntity spooled = SpooledEntity.spool(new InputStreamEntity(new ByteArrayInputStream(new byte[0]), -1));
+        try {
+            assertEquals(0, spooled.getContentLength());
+            assertEquals(0, write(spooled).length);
+        } finally {
+            spooled.release();
+        }
+    }
+
+    private byte[] write(final SpooledEntity entity) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        entity.writeTo(output);
+        return output.toByteArray();
+    }
+}
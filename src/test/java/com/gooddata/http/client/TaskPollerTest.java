@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TaskPollerTest {
+
+    private static final String URI = "/gdc/md/project/tasks/task/status";
+
+    @Mock
+    public HttpClient httpClient;
+
+    @Mock
+    public ScheduledExecutorService executor;
+
+    private TaskPoller poller;
+
+    private HttpHost host;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        host = new HttpHost("server.com");
+        poller = new TaskPoller(httpClient, executor);
+    }
+
+    private static HttpResponse response(final int status, final String body) {
+        final HttpResponse response = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), status, "Status"));
+        response.setEntity(new StringEntity(body, ContentType.TEXT_PLAIN));
+        return response;
+    }
+
+    /**
+     * Verify the poll has been scheduled after the delay and run it.
+     */
+    private void runScheduled(final long delayMillis) {
+        final ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(task.capture(), eq(delayMillis), eq(TimeUnit.MILLISECONDS));
+        reset(executor);
+        task.getValue().run();
+    }
+
+    @Test
+    public void poll_completes() throws Exception {
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenReturn(
+                response(HttpStatus.SC_ACCEPTED, "running"), response(HttpStatus.SC_OK, "done"));
+
+        final Future<String> result = poller.poll(host, URI, new BasicResponseHandler());
+        assertEquals(1, poller.getPendingCount());
+        runScheduled(1000);
+        assertFalse(result.isDone());
+        runScheduled(1500);
+
+        assertEquals("done", result.get());
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void poll_backoff() throws Exception {
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenReturn(response(HttpStatus.SC_ACCEPTED, "running"));
+        poller.setInitialInterval(10, TimeUnit.SECONDS);
+        poller.setMaxInterval(20, TimeUnit.SECONDS);
+
+        poller.poll(host, URI, new BasicResponseHandler());
+        runScheduled(10000);
+        runScheduled(15000);
+        runScheduled(20000);
+        runScheduled(20000);
+    }
+
+    @Test
+    public void poll_retryAfter() throws Exception {
+        final HttpResponse pending = response(HttpStatus.SC_ACCEPTED, "running");
+        pending.setHeader("Retry-After", "5");
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenReturn(pending);
+
+        poller.poll(host, URI, new BasicResponseHandler());
+        runScheduled(1000);
+        runScheduled(5000);
+    }
+
+    @Test
+    public void poll_failed() throws Exception {
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenReturn(response(HttpStatus.SC_BAD_REQUEST, "failed"));
+
+        final Future<String> result = poller.poll(host, URI, new BasicResponseHandler());
+        runScheduled(1000);
+
+        try {
+            result.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HttpResponseException);
+        }
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void poll_cancelled() throws Exception {
+        final Future<String> result = poller.poll(host, URI, new BasicResponseHandler());
+        result.cancel(true);
+        runScheduled(1000);
+
+        verify(httpClient, never()).execute(any(HttpHost.class), any(HttpRequest.class));
+        verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void poll_ioException() throws Exception {
+        when(httpClient.execute(eq(host), any(HttpRequest.class))).thenThrow(new IOException("Connection refused"));
+
+        final Future<String> result = poller.poll(host, URI, new BasicResponseHandler());
+        runScheduled(1000);
+
+        try {
+            result.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertEquals("Connection refused", e.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.Header;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.cookie.BestMatchSpec;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TokenCookieStoreTest {
+
+    private static final CookieOrigin TOKEN_ORIGIN = new CookieOrigin("server.com", 443, "/gdc/account/token", true);
+    private static final CookieOrigin RESOURCE_ORIGIN = new CookieOrigin("server.com", 443, "/gdc/projects", true);
+
+    private TokenCookieStore store;
+
+    @Before
+    public void setUp() {
+        store = new TokenCookieStore();
+    }
+
+    @Test
+    public void addCookie_replacesSameCookie() {
+        store.addCookie(cookie("GDCAuthTT", "tt1", "/gdc", null));
+        store.addCookie(cookie("GDCAuthSST", "sst", "/gdc/account", null));
+        store.addCookie(cookie("GDCAuthTT", "tt2", "/gdc", null));
+
+        final List<Cookie> cookies = store.getCookies();
+        assertEquals(2, cookies.size());
+        assertEquals("sst", cookies.get(0).getValue());
+        assertEquals("tt2", cookies.get(1).getValue());
+    }
+
+    @Test
+    public void addCookie_expiredRemovesCookie() {
+        store.addCookie(cookie("GDCAuthTT", "tt", "/gdc", null));
+        store.addCookie(cookie("GDCAuthTT", "", "/gdc", new Date(System.currentTimeMillis() - 1000)));
+
+        assertTrue(store.getCookies().isEmpty());
+    }
+
+    @Test
+    public void getCookies_snapshotNotChangedByUpdate() {
+        store.addCookie(cookie("GDCAuthTT", "tt", "/gdc", null));
+        final List<Cookie> cookies = store.getCookies();
+        store.clear();
+
+        assertEquals(1, cookies.size());
+        assertTrue(store.getCookies().isEmpty());
+    }
+
+    @Test
+    public void getCookies_purgesExpired() throws InterruptedException {
+        store.addCookie(cookie("GDCAuthTT", "tt", "/gdc", new Date(System.currentTimeMillis() + 50)));
+        store.addCookie(cookie("GDCAuthSST", "sst", "/gdc/account", null));
+        Thread.sleep(100);
+
+        assertEquals(1, store.getCookies().size());
+        assertEquals("sst", store.getCookies().get(0).getValue());
+    }
+
+    @Test
+    public void clearExpired() {
+        store.addCookie(cookie("GDCAuthTT", "tt", "/gdc", new Date(System.currentTimeMillis() + 60000)));
+
+        assertFalse(store.clearExpired(new Date()));
+        assertTrue(store.clearExpired(new Date(System.currentTimeMillis() + 120000)));
+        assertTrue(store.getCookies().isEmpty());
+    }
+
+    @Test
+    public void getCookieHeaders() {
+        store.addCookie(cookie("GDCAuthTT", "tt", "/gdc", null));
+        store.addCookie(cookie("GDCAuthSST", "sst", "/gdc/account", null));
+        final BestMatchSpec spec = new BestMatchSpec();
+
+        final List<Header> resource = store.getCookieHeaders(RESOURCE_ORIGIN, spec);
+        assertEquals(1, resource.size());
+        assertEquals("GDCAuthTT=tt", resource.get(0).getValue());
+
+        final List<Header> token = store.getCookieHeaders(TOKEN_ORIGIN, spec);
+        assertEquals(1, token.size());
+        assertTrue(token.get(0).getValue().contains("GDCAuthSST=sst"));
+        assertTrue(token.get(0).getValue().contains("GDCAuthTT=tt"));
+
+        assertTrue(store.getCookieHeaders(new CookieOrigin("other.com", 443, "/gdc", true), spec).isEmpty());
+    }
+
+    @Test
+    public void getCookieHeaders_cachedUntilUpdate() {
+        store.addCookie(cookie("GDCAuthTT", "tt", "/gdc", null));
+        final BestMatchSpec spec = new BestMatchSpec();
+
+        final List<Header> headers = store.getCookieHeaders(RESOURCE_ORIGIN, spec);
+        assertSame(headers, store.getCookieHeaders(new CookieOrigin("server.com", 443, "/gdc/md", true), spec));
+
+        store.addCookie(cookie("GDCAuthTT", "tt2", "/gdc", null));
+        final List<Header> updated = store.getCookieHeaders(RESOURCE_ORIGIN, spec);
+        assertNotSame(headers, updated);
+        assertEquals("GDCAuthTT=tt2", updated.get(0).getValue());
+    }
+
+    private static Cookie cookie(final String name, final String value, final String path, final Date expiry) {
+        final BasicClientCookie cookie = new BasicClientCookie(name, value);
+        cookie.setDomain("server.com");
+        cookie.setPath(path);
+        cookie.setSecure(true);
+        cookie.setExpiryDate(expiry);
+        return cookie;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenSnapshotStoreTest {
+
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+    private static final String DOMAIN = "server.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private TokenSnapshotStore store;
+
+    private CookieStore cookieStore;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "gooddata.tokens");
+        store = new TokenSnapshotStore(file, SECRET);
+        cookieStore = new BasicCookieStore();
+        CookieUtils.replaceSstCookie("sst", cookieStore, DOMAIN);
+        final BasicClientCookie tt = new BasicClientCookie(CookieUtils.TT_COOKIE_NAME, "tt");
+        tt.setDomain(DOMAIN);
+        tt.setPath("/gdc");
+        tt.setExpiryDate(new Date(System.currentTimeMillis() + 600000));
+        cookieStore.addCookie(tt);
+        cookieStore.addCookie(new BasicClientCookie("other", "value"));
+    }
+
+    @Test
+    public void saveAndRestore() throws IOException {
+        store.save(cookieStore);
+
+        final CookieStore restored = new BasicCookieStore();
+        assertTrue(store.restore(restored));
+
+        final List<Cookie> cookies = restored.getCookies();
+        assertEquals(2, cookies.size());
+        final Cookie sst = find(cookies, CookieUtils.SST_COOKIE_NAME);
+        assertEquals("sst", sst.getValue());
+        assertEquals(DOMAIN, sst.getDomain());
+        assertEquals(CookieUtils.SST_COOKIE_PATH, sst.getPath());
+        assertTrue(sst.isSecure());
+        assertEquals("tt", find(cookies, CookieUtils.TT_COOKIE_NAME).getValue());
+    }
+
+    @Test
+    public void restore_noSnapshot() {
+        assertFalse(store.restore(new BasicCookieStore()));
+    }
+
+    @Test
+    public void restore_tampered() throws IOException {
+        store.save(cookieStore);
+        final byte[] content = Files.readAllBytes(file.toPath());
+        content[content.length / 2] ^= 1;
+        Files.write(file.toPath(), content);
+
+        assertRejected();
+    }
+
+    @Test
+    public void restore_differentSecret() throws IOException {
+        store.save(cookieStore);
+        store = new TokenSnapshotStore(file, "another secret, 16+ bytes long".getBytes());
+
+        assertRejected();
+    }
+
+    @Test
+    public void restore_tooOld() throws Exception {
+        store = new TokenSnapshotStore(file, SECRET, 1, TimeUnit.MILLISECONDS);
+        store.save(cookieStore);
+        Thread.sleep(10);
+
+        assertRejected();
+    }
+
+    @Test
+    public void delete() throws IOException {
+        store.save(cookieStore);
+        store.delete();
+
+        assertFalse(file.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_shortSecret() {
+        new TokenSnapshotStore(file, new byte[8]);
+    }
+
+    private void assertRejected() {
+        final CookieStore restored = new BasicCookieStore();
+        assertFalse(store.restore(restored));
+        assertTrue(restored.getCookies().isEmpty());
+    }
+
+    private static Cookie find(final List<Cookie> cookies, final String name) {
+        for (final Cookie cookie : cookies) {
+            if (name.equals(cookie.getName())) {
+                return cookie;
+            }
+        }
+        throw new AssertionError("Cookie " + name + " not found");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2007-2013, GoodData(R) Corporation. All rights reserved.
+ * This program is made available under the terms of the BSD License.
+ */
+package com.gooddata.http.client;
+
+import org.apache.http.HttpHost;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TtRefreshSchedulerTest {
+
+    private static final long NOW = 1000000L;
+
+    @Mock
+    public ScheduledExecutorService executor;
+
+    @Mock
+    public TtRefreshScheduler.Refresh refresh;
+
+    private TtRefreshScheduler scheduler;
+
+    private long now;
+
+    private HttpHost host;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        host = new HttpHost("server.com");
+        now = NOW;
+        scheduler = new TtRefreshScheduler(executor, 1000, refresh) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void ttRefreshed_cookieExpiry() {
+        scheduler.ttRefreshed(host, new Date(NOW + 10000));
+
+        verify(executor).schedule(any(Runnable.class), eq(9000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void ttRefreshed_shortLifetime() {
+        scheduler.ttRefreshed(host, new Date(NOW + 1500));
+
+        verify(executor).schedule(any(Runnable.class), eq(750L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void ttRefreshed_unknownLifetime() {
+        scheduler.ttRefreshed(host, null);
+
+        verify(executor, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void ttExpired_learnsLifetime() {
+        scheduler.ttRefreshed(host, null);
+        now += 60000;
+        scheduler.ttExpired();
+        assertEquals(60000, scheduler.getLearnedLifetimeMillis());
+
+        scheduler.ttRefreshed(host, null);
+        verify(executor).schedule(any(Runnable.class), eq(59000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void ttExpired_keepsShortestLifetime() {
+        scheduler.ttRefreshed(host, null);
+        now += 60000;
+        scheduler.ttExpired();
+        scheduler.ttRefreshed(host, null);
+        now += 90000;
+        scheduler.ttExpired();
+
+        assertEquals(60000, scheduler.getLearnedLifetimeMillis());
+    }
+
+    @Test
+    public void refresh() {
+        scheduler.ttRefreshed(host, new Date(NOW + 10000));
+
+        final ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(task.capture(), anyLong(), any(TimeUnit.class));
+        task.getValue().run();
+
+        verify(refresh).refresh(host);
+    }
+}